@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.microsoft.services.discovery.ServiceInfo;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the {@link DiscoveryManager} and the {@link MailManager} at a target request rate
+ * against the local stand-in server in the standin module, and reports the sustained
+ * throughput, the latency percentiles and the number of threads the app used.
+ * Only available in debug builds. The app must be connected before starting a run, so the
+ * managers can get tokens from the cache; the stand-in accepts them without validation.
+ * The settings the run changes are restored at the end, and the services discovered from the
+ * stand-in are forgotten, so the app discovers the real ones again on its next call.
+ * From an emulator, the stand-in running on the development machine is at http://10.0.2.2:8080.
+ */
+public class LoadDriver {
+
+    private static final String TAG = "LoadDriver";
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * The operation to put under load.
+     */
+    public enum Target {
+        /** DiscoveryManager.getServiceInfo, served from the local cache after the first call. */
+        DISCOVERY_CACHED,
+        /**
+         * DiscoveryManager.getServiceInfo with a zero cache time to live. Calls that arrive while
+         * a discovery is in flight join it rather than going to the network, the report tells
+         * how many discoveries reached the stand-in.
+         */
+        DISCOVERY_NETWORK,
+        /** MailManager.sendMail to the stand-in Outlook endpoint. */
+        SEND_MAIL
+    }
+
+    /**
+     * Listener interface to receive the report at the end of a run.
+     */
+    public interface Listener {
+        void onReport(Report report);
+    }
+
+    private final String mStandInBaseUrl;
+    private final Target mTarget;
+    private final int mRequestsPerSecond;
+    private final int mDurationSeconds;
+
+    private final Histogram mLatencies = new Histogram();
+    private final AtomicInteger mIssuedCount = new AtomicInteger();
+    private final AtomicInteger mCompletedCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mRejectedCount = new AtomicInteger();
+    private final AtomicInteger mPeakThreadCount = new AtomicInteger();
+    private final AtomicLong mLastCompletionNanos = new AtomicLong();
+
+    /**
+     * @param standInBaseUrl The base URL of the stand-in server, such as http://10.0.2.2:8080.
+     * @param target The operation to put under load.
+     * @param requestsPerSecond The rate at which operations are started.
+     * @param durationSeconds How long to keep starting operations.
+     */
+    public LoadDriver(final String standInBaseUrl, final Target target, final int requestsPerSecond, final int durationSeconds) {
+        if (requestsPerSecond < 1 || durationSeconds < 1) {
+            throw new IllegalArgumentException("requestsPerSecond and durationSeconds must be positive");
+        }
+        mStandInBaseUrl = standInBaseUrl;
+        mTarget = target;
+        mRequestsPerSecond = requestsPerSecond;
+        mDurationSeconds = durationSeconds;
+    }
+
+    /**
+     * Starts the run in the background. The listener is called from a background thread once
+     * all the operations finished or the drain timeout ran out.
+     * @param listener The listener to notify with the report.
+     */
+    public void start(final Listener listener) {
+        final DiscoveryManager discoveryManager = DiscoveryManager.getInstance();
+        final MailManager mailManager = MailManager.getInstance();
+        final String discoveryResourceUrl = discoveryManager.getDiscoveryResourceUrl();
+        final long cacheTimeToLive = discoveryManager.getCacheTimeToLive();
+        final long cacheStalePeriod = discoveryManager.getCacheStalePeriod();
+        final long negativeCacheTimeToLive = discoveryManager.getNegativeCacheTimeToLive();
+        final String serviceResourceId = mailManager.getServiceResourceId();
+        final String serviceEndpointUri = mailManager.getServiceEndpointUri();
+        final SendRateLimiter rateLimiter = mailManager.getRateLimiter();
+
+        // Point the managers to the stand-in and forget what was discovered from the real service
+        discoveryManager.setDiscoveryResourceUrl(mStandInBaseUrl + "/discovery/v1.0/me/");
+        discoveryManager.clearCache();
+        if (mTarget == Target.DISCOVERY_NETWORK) {
+            discoveryManager.setCacheTimeToLive(0, 0);
+            discoveryManager.setNegativeCacheTimeToLive(0);
+        }
+        // The stand-in doesn't validate tokens, but asking for the real Outlook resource lets the
+        // resolver use the tokens the signed in user already has, so no AAD round trip is needed
+        mailManager.setServiceResourceId(Constants.OUTLOOK_RESOURCE_ID);
+        mailManager.setServiceEndpointUri(mStandInBaseUrl + "/api/v1.0");
+        // The stand-in has no per mailbox limit, measure the send path rather than the pacing
+        mailManager.setRateLimiter(SendRateLimiter.createUnlimited());
+
+        final long networkCount = getMetricCount(Metrics.DISCOVERY_NETWORK);
+        final long notModifiedCount = getMetricCount(Metrics.DISCOVERY_NOT_MODIFIED);
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        final long startNanos = System.nanoTime();
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                issueOperation();
+            }
+        }, 0, TimeUnit.SECONDS.toNanos(1) / mRequestsPerSecond, TimeUnit.NANOSECONDS);
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                int threadCount = Thread.activeCount();
+                int peak;
+                while (threadCount > (peak = mPeakThreadCount.get())) {
+                    if (mPeakThreadCount.compareAndSet(peak, threadCount)) {
+                        break;
+                    }
+                }
+            }
+        }, 0, 100, TimeUnit.MILLISECONDS);
+
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.shutdownNow();
+                waitForCompletion();
+
+                // Put back the settings of the app, the operations still running past the drain
+                // timeout may fail, but they're already counted as not completed
+                discoveryManager.setDiscoveryResourceUrl(discoveryResourceUrl);
+                discoveryManager.clearCache();
+                discoveryManager.setCacheTimeToLive(cacheTimeToLive, cacheStalePeriod);
+                discoveryManager.setNegativeCacheTimeToLive(negativeCacheTimeToLive);
+                mailManager.setServiceResourceId(serviceResourceId);
+                mailManager.setServiceEndpointUri(serviceEndpointUri);
+                mailManager.setRateLimiter(rateLimiter);
+
+                Report report = new Report(
+                        mTarget,
+                        mRequestsPerSecond,
+                        mIssuedCount.get(),
+                        mCompletedCount.get(),
+                        mErrorCount.get(),
+                        mRejectedCount.get(),
+                        getMetricCount(Metrics.DISCOVERY_NETWORK) - networkCount,
+                        getMetricCount(Metrics.DISCOVERY_NOT_MODIFIED) - notModifiedCount,
+                        mLastCompletionNanos.get() - startNanos,
+                        mLatencies,
+                        mPeakThreadCount.get(),
+                        WorkerPool.getInstance().getStats());
+                DiagnosticLog.i(TAG, "start - {}", report);
+                listener.onReport(report);
+            }
+        }, mDurationSeconds, TimeUnit.SECONDS);
+    }
+
+    private void issueOperation() {
+        final long issueNanos = System.nanoTime();
+        mIssuedCount.incrementAndGet();
+
+        try {
+            if (mTarget == Target.SEND_MAIL) {
+                MailManager.getInstance().sendMail(
+                        "loadtest@example.com",
+                        "Load test",
+                        "<p>Load test message</p>",
+                        new OperationCallback<Integer>() {
+                            @Override
+                            public void onSuccess(Integer result) {
+                                onOperationDone(issueNanos, true);
+                            }
+
+                            @Override
+                            public void onError(Exception e) {
+                                onOperationDone(issueNanos, false);
+                            }
+                        });
+            } else {
+                DiscoveryManager.getInstance().getServiceInfo(
+                        Constants.MAIL_CAPABILITY,
+                        new OperationCallback<ServiceInfo>() {
+                            @Override
+                            public void onSuccess(ServiceInfo result) {
+                                onOperationDone(issueNanos, true);
+                            }
+
+                            @Override
+                            public void onError(Exception e) {
+                                onOperationDone(issueNanos, false);
+                            }
+                        });
+            }
+        } catch (RejectedExecutionException e) {
+            // The worker pool is saturated, that's a result too
+            mRejectedCount.incrementAndGet();
+            onOperationDone(issueNanos, false);
+        }
+    }
+
+    private void onOperationDone(final long issueNanos, final boolean success) {
+        long now = System.nanoTime();
+        mLatencies.record(TimeUnit.NANOSECONDS.toMicros(now - issueNanos));
+        if (!success) {
+            mErrorCount.incrementAndGet();
+        }
+        mLastCompletionNanos.set(now);
+        mCompletedCount.incrementAndGet();
+    }
+
+    private static long getMetricCount(final String name) {
+        Metrics.Snapshot snapshot = Metrics.getInstance().getSnapshots().get(name);
+        return snapshot == null ? 0 : snapshot.getCount();
+    }
+
+    private void waitForCompletion() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        while (mCompletedCount.get() < mIssuedCount.get() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The outcome of a load test run. Latencies are in microseconds.
+     */
+    public static class Report {
+        private final Target mTarget;
+        private final int mTargetRate;
+        private final int mIssuedCount;
+        private final int mCompletedCount;
+        private final int mErrorCount;
+        private final int mRejectedCount;
+        private final long mDiscoveryNetworkCount;
+        private final long mDiscoveryNotModifiedCount;
+        private final double mThroughput;
+        private final long mP50;
+        private final long mP99;
+        private final long mMax;
+        private final int mPeakThreadCount;
+        private final WorkerPool.Stats mWorkerPoolStats;
+
+        Report(Target target, int targetRate, int issuedCount, int completedCount, int errorCount, int rejectedCount,
+               long discoveryNetworkCount, long discoveryNotModifiedCount, long elapsedNanos, Histogram latencies,
+               int peakThreadCount, WorkerPool.Stats workerPoolStats) {
+            mTarget = target;
+            mTargetRate = targetRate;
+            mIssuedCount = issuedCount;
+            mCompletedCount = completedCount;
+            mErrorCount = errorCount;
+            mRejectedCount = rejectedCount;
+            mDiscoveryNetworkCount = discoveryNetworkCount;
+            mDiscoveryNotModifiedCount = discoveryNotModifiedCount;
+            mThroughput = elapsedNanos <= 0 ? 0 : (completedCount - errorCount) * 1e9 / elapsedNanos;
+            mP50 = latencies.getPercentile(50);
+            mP99 = latencies.getPercentile(99);
+            mMax = latencies.getMax();
+            mPeakThreadCount = peakThreadCount;
+            mWorkerPoolStats = workerPoolStats;
+        }
+
+        /** @return The successful operations per second, over the whole run. */
+        public double getThroughput() {
+            return mThroughput;
+        }
+
+        public long getP50() {
+            return mP50;
+        }
+
+        public long getP99() {
+            return mP99;
+        }
+
+        public int getErrorCount() {
+            return mErrorCount;
+        }
+
+        public int getPeakThreadCount() {
+            return mPeakThreadCount;
+        }
+
+        /** @return The discoveries that reached the discovery service, including failed ones. */
+        public long getDiscoveryNetworkCount() {
+            return mDiscoveryNetworkCount;
+        }
+
+        /** @return The discoveries the discovery service answered as not modified. */
+        public long getDiscoveryNotModifiedCount() {
+            return mDiscoveryNotModifiedCount;
+        }
+
+        @Override
+        public String toString() {
+            return mTarget + " at " + mTargetRate + "/s"
+                    + ": issued=" + mIssuedCount
+                    + ", completed=" + mCompletedCount
+                    + ", errors=" + mErrorCount
+                    + ", rejected=" + mRejectedCount
+                    + ", discoveryNetwork=" + mDiscoveryNetworkCount
+                    + ", discoveryNotModified=" + mDiscoveryNotModifiedCount
+                    + ", throughput=" + String.format("%.1f", mThroughput) + "/s"
+                    + ", p50=" + mP50 + "us"
+                    + ", p99=" + mP99 + "us"
+                    + ", max=" + mMax + "us"
+                    + ", peakThreads=" + mPeakThreadCount
+                    + ", workerPool=[" + mWorkerPoolStats + "]";
+        }
+    }
+}
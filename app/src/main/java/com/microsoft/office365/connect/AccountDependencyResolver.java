@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.microsoft.aad.adal.AuthenticationContext;
+import com.microsoft.aad.adal.AuthenticationResult;
+import com.microsoft.services.orc.http.Credentials;
+import com.microsoft.services.orc.http.impl.OAuthCredentials;
+import com.microsoft.services.orc.resolvers.ADALDependencyResolver;
+
+/**
+ * Dependency resolver that gets the tokens of one specific user. The ADAL token cache is shared
+ * by all the accounts of the {@link SessionStore}, so the tokens are looked up by user id
+ * instead of taking whichever user signed in last.
+ */
+class AccountDependencyResolver extends ADALDependencyResolver {
+
+    private static final String TAG = "AccountDependencyResolver";
+
+    private final AuthenticationContext mAuthenticationContext;
+    private final String mResourceId;
+    private final String mUserId;
+
+    AccountDependencyResolver(final AuthenticationContext authenticationContext, final String resourceId, final String userId) {
+        super(authenticationContext, resourceId, Constants.CLIENT_ID);
+        mAuthenticationContext = authenticationContext;
+        mResourceId = resourceId;
+        mUserId = userId;
+    }
+
+    @Override
+    public Credentials getCredentials() {
+        try {
+            AuthenticationResult authenticationResult = mAuthenticationContext.acquireTokenSilentSync(
+                    mResourceId,
+                    Constants.CLIENT_ID,
+                    mUserId);
+            if (authenticationResult != null && authenticationResult.getAccessToken() != null) {
+                return new OAuthCredentials(authenticationResult.getAccessToken());
+            }
+        } catch (Exception e) {
+            DiagnosticLog.e(TAG, "getCredentials - {}", e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.content.Context;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.aad.adal.ADALError;
+import com.microsoft.aad.adal.AuthenticationCallback;
+import com.microsoft.aad.adal.AuthenticationContext;
+import com.microsoft.aad.adal.AuthenticationException;
+import com.microsoft.aad.adal.AuthenticationResult;
+import com.microsoft.aad.adal.AuthenticationResult.AuthenticationStatus;
+import com.microsoft.services.orc.resolvers.ADALDependencyResolver;
+import com.microsoft.services.outlook.fetchers.OutlookClient;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The in-memory state of one of the accounts of the {@link SessionStore}: the resolvers that
+ * get the tokens of the user, the services discovered for the user and the Outlook clients.
+ * Nothing is shared with the other accounts, so operations for different accounts run in
+ * parallel. Get one with {@link SessionStore#getSession(String)}.
+ */
+public class AccountSession implements ServiceOwner {
+
+    private final String mUserId;
+    private final String mDisplayableId;
+    private final Context mContext;
+    private final AuthenticationContext mAuthenticationContext;
+    private final ConcurrentHashMap<String, ADALDependencyResolver> mDependencyResolvers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, OutlookClient> mOutlookClients = new ConcurrentHashMap<>();
+    private volatile DiscoveryCache.Entry mCachedServices;
+
+    AccountSession(final String userId, final String displayableId, final Context context, final AuthenticationContext authenticationContext) {
+        mUserId = userId;
+        mDisplayableId = displayableId;
+        mContext = context;
+        mAuthenticationContext = authenticationContext;
+    }
+
+    @Override
+    public String getUserId() {
+        return mUserId;
+    }
+
+    /**
+     * @return The sign in name of the user, usually their email address.
+     */
+    public String getDisplayableId() {
+        return mDisplayableId;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return mContext;
+    }
+
+    /**
+     * Dependency resolver for the provided resource, which gets the tokens of this account only.
+     * @param resourceId URL of resource ID to be accessed on behalf of user.
+     * @return The dependency resolver object for the resource.
+     */
+    @Override
+    public ADALDependencyResolver getDependencyResolver(final String resourceId) {
+        ADALDependencyResolver dependencyResolver = mDependencyResolvers.get(resourceId);
+        if (dependencyResolver == null) {
+            ADALDependencyResolver newDependencyResolver = new AccountDependencyResolver(mAuthenticationContext, resourceId, mUserId);
+            dependencyResolver = mDependencyResolvers.putIfAbsent(resourceId, newDependencyResolver);
+            if (dependencyResolver == null) {
+                dependencyResolver = newDependencyResolver;
+            }
+        }
+        return dependencyResolver;
+    }
+
+    @Override
+    public ListenableFuture<AuthenticationResult> acquireTokenAsync(final String resourceId) {
+        final SettableFuture<AuthenticationResult> future = SettableFuture.create();
+        mAuthenticationContext.acquireTokenSilent(
+                resourceId,
+                Constants.CLIENT_ID,
+                mUserId,
+                new AuthenticationCallback<AuthenticationResult>() {
+                    @Override
+                    public void onSuccess(final AuthenticationResult authenticationResult) {
+                        if (authenticationResult != null && authenticationResult.getStatus() == AuthenticationStatus.Succeeded) {
+                            future.set(authenticationResult);
+                        } else {
+                            future.setException(
+                                    new AuthenticationException(
+                                            ADALError.AUTH_FAILED,
+                                            authenticationResult == null ? null : authenticationResult.getErrorDescription()));
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        future.setException(e);
+                    }
+                }
+        );
+        return future;
+    }
+
+    @Override
+    public DiscoveryCache.Entry getCachedServices() {
+        return mCachedServices;
+    }
+
+    @Override
+    public void setCachedServices(final DiscoveryCache.Entry cacheEntry) {
+        mCachedServices = cacheEntry;
+    }
+
+    /**
+     * Gets the Outlook client of this account for the provided endpoint and resource, creating
+     * it on first use.
+     * @param serviceEndpointUri The service endpoint uri obtained from the discovery service.
+     * @param serviceResourceId The service resource id obtained from the discovery service.
+     * @return The Outlook client.
+     */
+    OutlookClient getOutlookClient(final String serviceEndpointUri, final String serviceResourceId) {
+        String key = serviceResourceId + " " + serviceEndpointUri;
+        OutlookClient outlookClient = mOutlookClients.get(key);
+        if (outlookClient == null) {
+            long startNanos = System.nanoTime();
+            OutlookClient newOutlookClient = new OutlookClient(serviceEndpointUri, getDependencyResolver(serviceResourceId));
+            Metrics.getInstance().recordTiming(Metrics.MAIL_CLIENT_CONSTRUCTION, startNanos, true);
+            outlookClient = mOutlookClients.putIfAbsent(key, newOutlookClient);
+            if (outlookClient == null) {
+                outlookClient = newOutlookClient;
+            }
+        }
+        return outlookClient;
+    }
+}
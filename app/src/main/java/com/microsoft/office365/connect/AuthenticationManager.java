@@ -9,8 +9,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.provider.Settings;
-import android.util.Log;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
 import com.microsoft.aad.adal.ADALError;
 import com.microsoft.aad.adal.AuthenticationCallback;
 import com.microsoft.aad.adal.AuthenticationContext;
@@ -18,22 +22,33 @@ import com.microsoft.aad.adal.AuthenticationException;
 import com.microsoft.aad.adal.AuthenticationResult;
 import com.microsoft.aad.adal.AuthenticationResult.AuthenticationStatus;
 import com.microsoft.aad.adal.AuthenticationSettings;
+import com.microsoft.aad.adal.ITokenCacheStore;
+import com.microsoft.aad.adal.ITokenStoreQuery;
 import com.microsoft.aad.adal.PromptBehavior;
 import com.microsoft.services.orc.core.DependencyResolver;
 import com.microsoft.services.orc.log.LogLevel;
 import com.microsoft.services.orc.resolvers.ADALDependencyResolver;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Handles setup of ADAL Dependency Resolver for use in API clients.
  * Check the {@link AuthenticationManager#connect(AuthenticationCallback)} method to learn how to
  * get Azure AD tokens for your app.
- * You can also check {@link AuthenticationManager#authenticatePrompt(AuthenticationCallback)} to
+ * You can also check {@link AuthenticationManager#authenticatePrompt(AuthenticationCallback, boolean)} to
  * learn how to get tokens by prompting the user for credentials, or
  * {@link AuthenticationManager#authenticateSilent(AuthenticationCallback)} to learn how to get
  * tokens silently.
  * To learn how to dispose the tokens, see {@link AuthenticationManager#disconnect()}.
+ * ADAL is set up on first use, or ahead of time in the background with
+ * {@link AuthenticationManager#initializeAsync(Context)}.
  */
 
 public class AuthenticationManager {
@@ -42,10 +57,29 @@ public class AuthenticationManager {
     private static final String USER_ID_VAR_NAME = "userId";
     private AuthenticationContext mAuthenticationContext;
     private ADALDependencyResolver mDependencyResolver;
-    private Activity mContextActivity;
+    private final ConcurrentHashMap<String, ADALDependencyResolver> mDependencyResolvers = new ConcurrentHashMap<>();
+    private volatile LogLevel mLogLevel;
+    // The resources whose tokens the background refresh gave up on, until the user signs in again
+    private final Set<String> mResourcesNeedingSignIn = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final TokenRefreshScheduler mTokenRefreshScheduler;
+    // Only held weakly, the manager lives as long as the process and mustn't keep the activity
+    private WeakReference<Activity> mContextActivity = new WeakReference<>(null);
+    private Context mApplicationContext;
     private String mResourceId;
+    private ListenableFuture<Void> mInitialization;
+
+    private static boolean sAuthenticationSettingsInitialized;
+
+    /**
+     * Sets up ADAL before the first authentication context is created. Done once per process,
+     * it outlives the AuthenticationManager objects. Every class that creates an authentication
+     * context must call it first, such as the {@link SessionStore}.
+     */
+    static synchronized void initializeAuthenticationSettings() {
+        if (sAuthenticationSettingsInitialized) {
+            return;
+        }
 
-    static{
         // Devices with API level lower than 18 must setup an encryption key.
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2 &&
                 AuthenticationSettings.INSTANCE.getSecretKeyData() == null) {
@@ -59,40 +93,141 @@ public class AuthenticationManager {
         // USE_CREDENTIALS
         // MANAGE_ACCOUNTS
         AuthenticationSettings.INSTANCE.setSkipBroker(true);
+        sAuthenticationSettingsInitialized = true;
+    }
+
+    /**
+     * Sets up ADAL and creates the authentication context on a worker thread, and loads the
+     * preferences that tell if a user is signed in. Without it this is done on first use, which
+     * can be on the main thread, such as when the ADAL activity reports back to onActivityResult.
+     * Call it as early as possible, such as in the onCreate method of the first activity.
+     * @param context Any context of the app, only the application context is kept.
+     * @return A future that completes when the initialization is done. Calling this method again
+     * returns the same future.
+     */
+    public synchronized ListenableFuture<Void> initializeAsync(final Context context) {
+        if (this.mApplicationContext == null) {
+            this.mApplicationContext = context.getApplicationContext();
+        }
+        if (mInitialization == null) {
+            ListenableFutureTask<Void> initialization = ListenableFutureTask.create(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    long startNanos = System.nanoTime();
+                    StartupTrace.beginSection("AuthenticationManager.initialize");
+                    try {
+                        boolean succeeded = getAuthenticationContext() != null;
+                        // The first read of the preferences loads the file from disk
+                        isConnected();
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_INITIALIZATION, startNanos, succeeded);
+                    } finally {
+                        StartupTrace.endSection();
+                    }
+                    return null;
+                }
+            });
+            try {
+                WorkerPool.getInstance().execute(initialization);
+            } catch (RejectedExecutionException e) {
+                // The pool is saturated, the next call tries again
+                DiagnosticLog.e(TAG, "initializeAsync - {}", e.getMessage());
+                return Futures.immediateFailedFuture(e);
+            }
+            mInitialization = initialization;
+        }
+        return mInitialization;
     }
 
     /**
-     * Calls {@link AuthenticationManager#authenticatePrompt(AuthenticationCallback)} if no user id is stored in the shared preferences.
+     * Calls {@link AuthenticationManager#authenticatePrompt(AuthenticationCallback, boolean)} if no user id is stored in the shared preferences,
+     * or if the tokens couldn't be refreshed in the background and the user must sign in again.
      * Calls {@link AuthenticationManager#authenticateSilent(AuthenticationCallback)} otherwise.
      * @param authenticationCallback The callback to notify when the processing is finished.
+     * @return A handle to cancel the connection.
      */
-    public void connect(final AuthenticationCallback<AuthenticationResult> authenticationCallback) {
-        // Since we're doing considerable work, let's get out of the main thread
-        new Thread(new Runnable() {
+    public OperationHandle connect(final AuthenticationCallback<AuthenticationResult> authenticationCallback) {
+        return connect(Deadline.NONE, authenticationCallback);
+    }
+
+    /**
+     * Connects like {@link AuthenticationManager#connect(AuthenticationCallback)}, giving up if
+     * it takes longer than the timeout. ADAL can't abort a sign in once it has started, so
+     * cancelling or timing out only drops its outcome: the callback gets a single
+     * CancellationException or TimeoutException instead.
+     * Keep in mind the timeout includes the time the user spends on the sign in page.
+     * @param timeoutMillis The time the connection has to complete. Zero for no deadline.
+     * @param authenticationCallback The callback to notify when the processing is finished.
+     * @return A handle to cancel the connection.
+     */
+    public OperationHandle connect(final long timeoutMillis, final AuthenticationCallback<AuthenticationResult> authenticationCallback) {
+        final SettableFuture<AuthenticationResult> connection = SettableFuture.create();
+        final AuthenticationCallback<AuthenticationResult> connectionCallback = new AuthenticationCallback<AuthenticationResult>() {
+            @Override
+            public void onSuccess(AuthenticationResult authenticationResult) {
+                connection.set(authenticationResult);
+            }
+
             @Override
-            public void run() {
-                if (verifyAuthenticationContext()) {
-                    if (isConnected()) {
-                        authenticateSilent(authenticationCallback);
+            public void onError(Exception e) {
+                connection.setException(e);
+            }
+        };
+
+        ListenableFuture<AuthenticationResult> result = Deadline.withTimeout(connection, timeoutMillis);
+        Futures.addCallback(result, new FutureCallback<AuthenticationResult>() {
+            @Override
+            public void onSuccess(AuthenticationResult authenticationResult) {
+                authenticationCallback.onSuccess(authenticationResult);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                authenticationCallback.onError(t instanceof Exception ? (Exception) t : new ExecutionException(t.getMessage(), t));
+            }
+        });
+
+        // Since we're doing considerable work, let's get out of the main thread
+        try {
+            WorkerPool.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (connection.isDone()) {
+                        // Cancelled before it started
+                        return;
+                    }
+                    if (verifyAuthenticationContext()) {
+                        if (!isConnected()) {
+                            authenticatePrompt(connectionCallback, true);
+                        } else if (isInteractiveSignInNeeded()) {
+                            // The user is still signed in, only the background refresh gave up.
+                            // Dismissing the prompt mustn't sign them out and drop their queued mail
+                            authenticatePrompt(connectionCallback, false);
+                        } else {
+                            authenticateSilent(connectionCallback);
+                        }
                     } else {
-                        authenticatePrompt(authenticationCallback);
+                        DiagnosticLog.e(TAG, "connect - Auth context verification failed. Did you set a context activity?");
+                        // Report it to the caller rather than throwing on a worker thread
+                        connectionCallback.onError(new AuthenticationException(
+                                ADALError.ACTIVITY_REQUEST_INTENT_DATA_IS_NULL,
+                                "Auth context verification failed. Did you set a context activity?"));
                     }
-                } else {
-                    Log.e(TAG, "connect - Auth context verification failed. Did you set a context activity?");
-                    throw new AuthenticationException(
-                            ADALError.ACTIVITY_REQUEST_INTENT_DATA_IS_NULL,
-                            "Auth context verification failed. Did you set a context activity?");
                 }
-            }
-        }).start();
+            });
+        } catch (RejectedExecutionException e) {
+            // The pool is saturated, report it to the caller rather than throwing
+            connectionCallback.onError(e);
+        }
+        return new OperationHandle(result);
     }
 
     /**
      * Calls acquireTokenSilent with the user id stored in shared preferences.
-     * In case of an error, it falls back to {@link AuthenticationManager#authenticatePrompt(AuthenticationCallback)}.
+     * In case of an error, it falls back to {@link AuthenticationManager#authenticatePrompt(AuthenticationCallback, boolean)}.
      * @param authenticationCallback The callback to notify when the processing is finished.
      */
     private void authenticateSilent(final AuthenticationCallback<AuthenticationResult> authenticationCallback) {
+        final long startNanos = System.nanoTime();
         getAuthenticationContext().acquireTokenSilent(
                 this.mResourceId,
                 Constants.CLIENT_ID,
@@ -100,24 +235,26 @@ public class AuthenticationManager {
                 new AuthenticationCallback<AuthenticationResult>() {
                     @Override
                     public void onSuccess(final AuthenticationResult authenticationResult) {
-                        if (authenticationResult != null && authenticationResult.getStatus() == AuthenticationStatus.Succeeded) {
-                            mDependencyResolver = new ADALDependencyResolver(
-                                    getAuthenticationContext(),
-                                    mResourceId,
-                                    Constants.CLIENT_ID);
+                        boolean succeeded = authenticationResult != null && authenticationResult.getStatus() == AuthenticationStatus.Succeeded;
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_SILENT, startNanos, succeeded);
+                        if (succeeded) {
+                            mDependencyResolver = getDependencyResolver(mResourceId);
+                            mTokenRefreshScheduler.onRefreshSucceeded(mResourceId, authenticationResult.getExpiresOn());
+                            addToSessionStore(authenticationResult);
                             authenticationCallback.onSuccess(authenticationResult);
                         } else if (authenticationResult != null) {
                             // I could not authenticate the user silently,
                             // falling back to prompt the user for credentials.
-                            authenticatePrompt(authenticationCallback);
+                            authenticatePrompt(authenticationCallback, true);
                         }
                     }
 
                     @Override
                     public void onError(Exception e) {
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_SILENT, startNanos, false);
                         // I could not authenticate the user silently,
                         // falling back to prompt the user for credentials.
-                        authenticatePrompt(authenticationCallback);
+                        authenticatePrompt(authenticationCallback, true);
                     }
                 }
         );
@@ -126,10 +263,23 @@ public class AuthenticationManager {
     /**
      * Calls acquireToken to prompt the user for credentials.
      * @param authenticationCallback The callback to notify when the processing is finished.
+     * @param disconnectOnFailure True to clear the data of the user if the sign in fails, false
+     *                            to keep the user signed in, such as when they're only asked to
+     *                            sign in again because their tokens couldn't be refreshed.
      */
-    private void authenticatePrompt(final AuthenticationCallback<AuthenticationResult> authenticationCallback) {
+    private void authenticatePrompt(final AuthenticationCallback<AuthenticationResult> authenticationCallback, final boolean disconnectOnFailure) {
+        Activity contextActivity = this.mContextActivity.get();
+        if (contextActivity == null) {
+            // The activity went away before we could show the prompt on top of it
+            authenticationCallback.onError(new AuthenticationException(
+                    ADALError.ACTIVITY_REQUEST_INTENT_DATA_IS_NULL,
+                    "The context activity is gone, set a new one before connecting"));
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
         getAuthenticationContext().acquireToken(
-                this.mContextActivity,
+                contextActivity,
                 this.mResourceId,
                 Constants.CLIENT_ID,
                 Constants.REDIRECT_URI,
@@ -137,16 +287,20 @@ public class AuthenticationManager {
                 new AuthenticationCallback<AuthenticationResult>() {
                     @Override
                     public void onSuccess(final AuthenticationResult authenticationResult) {
-                        if (authenticationResult != null && authenticationResult.getStatus() == AuthenticationStatus.Succeeded) {
+                        boolean succeeded = authenticationResult != null && authenticationResult.getStatus() == AuthenticationStatus.Succeeded;
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_PROMPT, startNanos, succeeded);
+                        if (succeeded) {
                             setUserId(authenticationResult.getUserInfo().getUserId());
-                            mDependencyResolver = new ADALDependencyResolver(
-                                    getAuthenticationContext(),
-                                    mResourceId,
-                                    Constants.CLIENT_ID);
+                            mDependencyResolver = getDependencyResolver(mResourceId);
+                            mTokenRefreshScheduler.onRefreshSucceeded(mResourceId, authenticationResult.getExpiresOn());
+                            resumeRefreshes();
+                            addToSessionStore(authenticationResult);
                             authenticationCallback.onSuccess(authenticationResult);
                         } else if (authenticationResult != null) {
                             // We need to make sure that there is no data stored with the failed auth
-                            AuthenticationManager.getInstance().disconnect();
+                            if (disconnectOnFailure) {
+                                AuthenticationManager.getInstance().disconnect();
+                            }
                             // This condition can happen if user signs in with an MSA account
                             // instead of an Office 365 account
                             authenticationCallback.onError(
@@ -160,24 +314,155 @@ public class AuthenticationManager {
 
                     @Override
                     public void onError(Exception e) {
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_PROMPT, startNanos, false);
                         // We need to make sure that there is no data stored with the failed auth
-                        AuthenticationManager.getInstance().disconnect();
+                        if (disconnectOnFailure) {
+                            AuthenticationManager.getInstance().disconnect();
+                        }
                         authenticationCallback.onError(e);
                     }
                 }
         );
     }
 
+    /**
+     * Tells if the tokens of the signed in user couldn't be refreshed in the background. The app
+     * should call {@link AuthenticationManager#connect(AuthenticationCallback)} from an activity
+     * in the foreground, such as before the next send, so the user can sign in again.
+     * @return True if the user must sign in again.
+     */
+    public boolean isInteractiveSignInNeeded() {
+        return !mResourcesNeedingSignIn.isEmpty();
+    }
+
+    /**
+     * Starts refreshing again the tokens the background refresh gave up on, now that the user
+     * signed in again.
+     */
+    private void resumeRefreshes() {
+        for (String resourceId : mResourcesNeedingSignIn) {
+            mResourcesNeedingSignIn.remove(resourceId);
+            mTokenRefreshScheduler.track(resourceId);
+        }
+    }
+
+    /**
+     * Remembers the signed in user in the {@link SessionStore}, so the account can be used
+     * alongside the other ones.
+     * @param authenticationResult The successful result of the authentication.
+     */
+    private void addToSessionStore(final AuthenticationResult authenticationResult) {
+        if (authenticationResult.getUserInfo() != null) {
+            SessionStore.getInstance(this.mApplicationContext).addAccount(
+                    authenticationResult.getUserInfo().getUserId(),
+                    authenticationResult.getUserInfo().getDisplayableId());
+        }
+    }
+
+    /**
+     * Calls acquireTokenSilent for the provided resource in the background and reports the new
+     * expiration to the token refresh scheduler, so the token is refreshed again before it
+     * expires. The outcome is always reported, a failure when there is no signed in user too,
+     * so the scheduler retries or gives up instead of waiting for a refresh that never ends.
+     * @param resourceId URL of the resource to refresh the token for.
+     */
+    private void refreshToken(final String resourceId) {
+        Futures.addCallback(acquireTokenAsync(resourceId), new FutureCallback<AuthenticationResult>() {
+            @Override
+            public void onSuccess(AuthenticationResult authenticationResult) {
+                mTokenRefreshScheduler.onRefreshSucceeded(resourceId, authenticationResult.getExpiresOn());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                mTokenRefreshScheduler.onRefreshFailed(
+                        resourceId,
+                        t instanceof Exception ? (Exception) t : new ExecutionException(t.getMessage(), t));
+            }
+        });
+    }
+
+    /**
+     * Gets a token for the provided resource for the signed in user without prompting, from the
+     * token cache or with the refresh token. Doesn't block, so it can be chained with the
+     * operations that need the token.
+     * @param resourceId URL of the resource to get the token for.
+     * @return A future with the authentication result, or that fails with an
+     * AuthenticationException if the user isn't connected or the token couldn't be acquired
+     * silently.
+     */
+    public ListenableFuture<AuthenticationResult> acquireTokenAsync(final String resourceId) {
+        // Silent requests don't show anything, they work after the context activity is gone
+        if (!verifyApplicationContext() || !isConnected()) {
+            return Futures.immediateFailedFuture(new AuthenticationException(
+                    ADALError.AUTH_FAILED,
+                    "There is no signed in user to get a token for"));
+        }
+
+        final SettableFuture<AuthenticationResult> future = SettableFuture.create();
+        final long startNanos = System.nanoTime();
+        getAuthenticationContext().acquireTokenSilent(
+                resourceId,
+                Constants.CLIENT_ID,
+                getUserId(),
+                new AuthenticationCallback<AuthenticationResult>() {
+                    @Override
+                    public void onSuccess(final AuthenticationResult authenticationResult) {
+                        boolean succeeded = authenticationResult != null && authenticationResult.getStatus() == AuthenticationStatus.Succeeded;
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_SILENT, startNanos, succeeded);
+                        if (succeeded) {
+                            future.set(authenticationResult);
+                        } else {
+                            future.setException(
+                                    new AuthenticationException(
+                                            ADALError.AUTH_FAILED,
+                                            authenticationResult == null ? null : authenticationResult.getErrorDescription()));
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Metrics.getInstance().recordTiming(Metrics.AUTH_SILENT, startNanos, false);
+                        future.setException(e);
+                    }
+                }
+        );
+        return future;
+    }
+
     /**
      * Disconnects the app from Office 365 by clearing the token cache, setting the client objects
      * to null, and removing the user id from shred preferences.
      */
     public void disconnect(){
-        // Clear tokens.
-        if(getAuthenticationContext().getCache() != null) {
-            getAuthenticationContext().getCache().removeAll();
+        // Forget the services discovered for the user, before we forget the user
+        DiscoveryManager.getInstance().clearCache();
+
+        // The clients hold the resolvers of the user, don't reuse them for the next one
+        MailManager.getInstance().clearClients();
+        WarmUpManager.getInstance().reset();
+
+        // Don't send the mail queued by the user from the account of the next one
+        MailOutbox.getInstance(this.mApplicationContext).clear();
+
+        // Clear tokens. Only the user's own when the cache can tell them apart, the other
+        // accounts of the session store stay signed in
+        String userId = getUserId();
+        ITokenCacheStore tokenCache = getAuthenticationContext().getCache();
+        if (userId != null && tokenCache instanceof ITokenStoreQuery) {
+            SessionStore.getInstance(this.mApplicationContext).removeAccount(userId);
+            ((ITokenStoreQuery) tokenCache).clearTokensForUser(userId);
+        } else {
+            // Without the tokens, none of the accounts of the session store is signed in anymore
+            SessionStore.getInstance(this.mApplicationContext).clear();
+            if (tokenCache != null) {
+                tokenCache.removeAll();
+            }
         }
 
+        // Stop refreshing the tokens we just removed
+        mTokenRefreshScheduler.shutdown();
+
         // Reset the AuthenticationManager object
         AuthenticationManager.resetInstance();
 
@@ -200,6 +485,20 @@ public class AuthenticationManager {
 
     private AuthenticationManager() {
         mResourceId = Constants.DISCOVERY_RESOURCE_ID;
+        mTokenRefreshScheduler = new TokenRefreshScheduler(new TokenRefreshScheduler.Refresher() {
+            @Override
+            public void refresh(String resourceId) {
+                refreshToken(resourceId);
+            }
+
+            @Override
+            public void onRefreshExhausted(final String resourceId) {
+                // I could not refresh the token silently. Don't prompt from here, the app may be
+                // in the background: the next connect from an activity prompts the user
+                DiagnosticLog.e(TAG, "onRefreshExhausted - The user must sign in again to use {}", resourceId);
+                mResourcesNeedingSignIn.add(resourceId);
+            }
+        });
     }
 
     /**
@@ -208,30 +507,39 @@ public class AuthenticationManager {
      *                        prompt.
      */
     public void setContextActivity(final Activity contextActivity) {
-        this.mContextActivity = contextActivity;
+        this.mContextActivity = new WeakReference<>(contextActivity);
+        this.mApplicationContext = contextActivity.getApplicationContext();
     }
 
     /**
      * Change from the default Resource ID set in ServiceConstants to a different
      * resource ID.
      * This can be called at anytime without requiring another interactive prompt.
+     * It only changes the resolver returned by {@link AuthenticationManager#getDependencyResolver()},
+     * the resolvers of other resources are not affected. Prefer
+     * {@link AuthenticationManager#getDependencyResolver(String)} when working with
+     * several resources at the same time.
      * @param resourceId URL of resource ID to be accessed on behalf of user.
      */
     public void setResourceId(final String resourceId) {
         this.mResourceId = resourceId;
-        this.mDependencyResolver.setResourceId(resourceId);
+        this.mDependencyResolver = getDependencyResolver(resourceId);
     }
 
     /**
      * Gets authentication context for Azure Active Directory.
+     * Creates it on first use, unless {@link AuthenticationManager#initializeAsync(Context)}
+     * already did it in the background.
      * @return an authentication context, if successful.
      */
-    public AuthenticationContext getAuthenticationContext() {
+    public synchronized AuthenticationContext getAuthenticationContext() {
         if (mAuthenticationContext == null) {
+            initializeAuthenticationSettings();
             try {
-                mAuthenticationContext = new AuthenticationContext(this.mContextActivity, Constants.AUTHORITY_URL, false);
+                // The prompt gets the activity when it's shown, the context itself must not hold it
+                mAuthenticationContext = new AuthenticationContext(this.mApplicationContext, Constants.AUTHORITY_URL, false);
             } catch (Throwable t) {
-                Log.e(TAG, t.toString());
+                DiagnosticLog.e(TAG, t.toString());
             }
         }
         return mAuthenticationContext;
@@ -239,7 +547,7 @@ public class AuthenticationManager {
 
     /**
      * Dependency resolver that can be used to create client objects.
-     * The {@link DiscoveryManager#getServiceInfo} method uses it to create a DiscoveryClient object.
+     * The {@link DiscoveryManager#getServiceInfo} method uses it to get the tokens for the discovery service.
      * The {@link MailManager#sendMail(String, String, String, OperationCallback)} uses it to create an OutlookClient object.
      * @return The dependency resolver object.
      */
@@ -247,9 +555,71 @@ public class AuthenticationManager {
         return getInstance().mDependencyResolver;
     }
 
+    /**
+     * Gets the id of the signed in user, so other managers can keep per-user state.
+     * @return The user id stored in shared preferences, or null if there is no signed in user or
+     * the context activity hasn't been set.
+     */
+    String getConnectedUserId() {
+        if (this.mApplicationContext == null || !isConnected()) {
+            return null;
+        }
+        return getUserId();
+    }
+
+    /**
+     * Gets the application context, so other managers can keep state that outlives activities.
+     * @return The application context, or null if the context activity hasn't been set.
+     */
+    Context getApplicationContext() {
+        return this.mApplicationContext;
+    }
+
+    /**
+     * Dependency resolver for the provided resource. Each resource has its own resolver, which
+     * gets the tokens for that resource only, so operations against different services can run
+     * in parallel without switching each other's token audience.
+     * The {@link DiscoveryManager#getServiceInfo} method uses it to get the tokens for the discovery service.
+     * The {@link MailManager#sendMail(String, String, String, OperationCallback)} uses it to create an OutlookClient object.
+     * @param resourceId URL of resource ID to be accessed on behalf of user.
+     * @return The dependency resolver object for the resource.
+     */
+    public ADALDependencyResolver getDependencyResolver(final String resourceId) {
+        ADALDependencyResolver dependencyResolver = mDependencyResolvers.get(resourceId);
+        if (dependencyResolver == null) {
+            ADALDependencyResolver newDependencyResolver = new ADALDependencyResolver(
+                    getAuthenticationContext(),
+                    resourceId,
+                    Constants.CLIENT_ID);
+            applyLogLevel(newDependencyResolver, mLogLevel);
+
+            dependencyResolver = mDependencyResolvers.putIfAbsent(resourceId, newDependencyResolver);
+            if (dependencyResolver == null) {
+                dependencyResolver = newDependencyResolver;
+                // Get a token for the new resource before the first operation needs it
+                if (this.mApplicationContext != null && isConnected()) {
+                    mTokenRefreshScheduler.track(resourceId);
+                }
+            }
+        }
+        return dependencyResolver;
+    }
+
     private boolean verifyAuthenticationContext() {
-        if (this.mContextActivity == null) {
-            Log.e(TAG, "Must set context activity");
+        if (this.mContextActivity.get() == null) {
+            DiagnosticLog.e(TAG, "Must set context activity");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Silent token requests only need the application context, which outlives the context
+     * activity. Only the interactive prompt needs the activity itself.
+     */
+    private boolean verifyApplicationContext() {
+        if (this.mApplicationContext == null) {
+            DiagnosticLog.e(TAG, "Must set context activity");
             return false;
         }
         return true;
@@ -257,7 +627,7 @@ public class AuthenticationManager {
 
     private boolean isConnected(){
         SharedPreferences settings = this
-                .mContextActivity
+                .mApplicationContext
                 .getSharedPreferences(PREFERENCES_FILENAME, Context.MODE_PRIVATE);
 
         return settings.contains(USER_ID_VAR_NAME);
@@ -265,7 +635,7 @@ public class AuthenticationManager {
 
     private String getUserId(){
         SharedPreferences settings = this
-                .mContextActivity
+                .mApplicationContext
                 .getSharedPreferences(PREFERENCES_FILENAME, Context.MODE_PRIVATE);
 
         return settings.getString(USER_ID_VAR_NAME, "");
@@ -273,7 +643,7 @@ public class AuthenticationManager {
 
     private void setUserId(String value){
         SharedPreferences settings = this
-                .mContextActivity
+                .mApplicationContext
                 .getSharedPreferences(PREFERENCES_FILENAME, Context.MODE_PRIVATE);
 
         SharedPreferences.Editor editor = settings.edit();
@@ -283,7 +653,7 @@ public class AuthenticationManager {
 
     private void removeUserId(){
         SharedPreferences settings = this
-                .mContextActivity
+                .mApplicationContext
                 .getSharedPreferences(PREFERENCES_FILENAME, Context.MODE_PRIVATE);
 
         SharedPreferences.Editor editor = settings.edit();
@@ -306,7 +676,7 @@ public class AuthenticationManager {
         try{
             android_id = Settings.Secure.ANDROID_ID.getBytes("UTF-8");
         } catch (UnsupportedEncodingException e){
-            Log.e(TAG, "generateSecretKey - " + e.getMessage());
+            DiagnosticLog.e(TAG, "generateSecretKey - {}", e.getMessage());
             throw new RuntimeException(e);
         }
 
@@ -318,18 +688,32 @@ public class AuthenticationManager {
     }
 
     /**
-     * Turn logging on.
+     * Turn logging on for the resolvers of all the resources.
      * @param level LogLevel to set.
      */
     public void enableLogging(LogLevel level) {
-        this.mDependencyResolver.getLogger().setEnabled(true);
-        this.mDependencyResolver.getLogger().setLogLevel(level);
+        this.mLogLevel = level;
+        for (ADALDependencyResolver dependencyResolver : mDependencyResolvers.values()) {
+            applyLogLevel(dependencyResolver, level);
+        }
     }
 
     /**
-     * Turn logging off.
+     * Turn logging off for the resolvers of all the resources.
      */
     public void disableLogging() {
-        this.mDependencyResolver.getLogger().setEnabled(false);
+        this.mLogLevel = null;
+        for (ADALDependencyResolver dependencyResolver : mDependencyResolvers.values()) {
+            applyLogLevel(dependencyResolver, null);
+        }
+    }
+
+    private static void applyLogLevel(final ADALDependencyResolver dependencyResolver, final LogLevel level) {
+        if (level == null) {
+            dependencyResolver.getLogger().setEnabled(false);
+        } else {
+            dependencyResolver.getLogger().setEnabled(true);
+            dependencyResolver.getLogger().setLogLevel(level);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+/**
+ * Callback interface for Office 365 operations that work on a batch of items,
+ * such as sending many email messages.
+ * The methods are called from worker threads, possibly from several at the same time.
+ * @param <I> The type of the items in the batch.
+ * @param <T> The result of the operation for each item in case of success.
+ */
+interface BatchOperationCallback<I, T> {
+    /**
+     * The method to call when the operation succeeds for an item.
+     * @param index The position of the item in the batch.
+     * @param item The item.
+     * @param result The result of the operation for the item.
+     */
+    void onItemSuccess(int index, I item, T result);
+
+    /**
+     * The method to call when the operation fails for an item.
+     * @param index The position of the item in the batch.
+     * @param item The item.
+     * @param e The exception or reason of failure.
+     */
+    void onItemError(int index, I item, Exception e);
+
+    /**
+     * The method to call every time an item is done.
+     * @param completedCount The number of items done so far, successful or not.
+     * @param failedCount The number of items that failed so far.
+     * @param totalCount The number of items in the batch.
+     */
+    void onProgress(int completedCount, int failedCount, int totalCount);
+
+    /**
+     * The method to call once all the items are done.
+     * @param batchResult The outcome of the operation for each item.
+     */
+    void onComplete(BatchResult<I, T> batchResult);
+}
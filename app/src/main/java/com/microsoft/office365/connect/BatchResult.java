@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The outcome of an operation on a batch of items.
+ * @param <I> The type of the items in the batch.
+ * @param <T> The result of the operation for each item in case of success.
+ */
+public class BatchResult<I, T> {
+
+    private final List<ItemResult<I, T>> mItemResults;
+    private final int mFailureCount;
+
+    BatchResult(final AtomicReferenceArray<ItemResult<I, T>> itemResults) {
+        List<ItemResult<I, T>> results = new ArrayList<>(itemResults.length());
+        int failureCount = 0;
+        for (int i = 0; i < itemResults.length(); i++) {
+            ItemResult<I, T> itemResult = itemResults.get(i);
+            if (!itemResult.isSuccessful()) {
+                failureCount++;
+            }
+            results.add(itemResult);
+        }
+        mItemResults = Collections.unmodifiableList(results);
+        mFailureCount = failureCount;
+    }
+
+    /**
+     * @return The outcome for each item, in the same order as the items in the batch.
+     */
+    public List<ItemResult<I, T>> getItemResults() {
+        return mItemResults;
+    }
+
+    public int getTotalCount() {
+        return mItemResults.size();
+    }
+
+    public int getSuccessCount() {
+        return mItemResults.size() - mFailureCount;
+    }
+
+    public int getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * The outcome of the operation for one item of the batch.
+     * @param <I> The type of the item.
+     * @param <T> The result of the operation in case of success.
+     */
+    public static class ItemResult<I, T> {
+        private final I mItem;
+        private final T mResult;
+        private final Exception mException;
+        private final int mAttempts;
+
+        ItemResult(final I item, final T result, final Exception exception, final int attempts) {
+            mItem = item;
+            mResult = result;
+            mException = exception;
+            mAttempts = attempts;
+        }
+
+        public I getItem() {
+            return mItem;
+        }
+
+        /**
+         * @return The result of the operation, or null if it failed.
+         */
+        public T getResult() {
+            return mResult;
+        }
+
+        /**
+         * @return The reason of failure, or null if the operation succeeded.
+         */
+        public Exception getException() {
+            return mException;
+        }
+
+        /**
+         * @return The number of times the operation was attempted for the item.
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        public boolean isSuccessful() {
+            return mException == null;
+        }
+    }
+}
@@ -7,13 +7,13 @@ package com.microsoft.office365.connect;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.google.common.util.concurrent.Futures;
 import com.microsoft.aad.adal.AuthenticationCallback;
 import com.microsoft.aad.adal.AuthenticationResult;
 
@@ -30,18 +30,40 @@ import java.util.UUID;
 public class ConnectActivity extends AppCompatActivity {
 
     private static final String TAG = "ConnectActivity";
+    private static final String CONNECT_KEY = "/ConnectActivity.connect";
+    private static final String INITIALIZE_KEY = "/ConnectActivity.initialize";
 
     private Button mConnectButton;
     private TextView mTitleTextView;
     private ProgressBar mConnectProgressBar;
     private TextView mDescriptionTextView;
+    private AuthenticationCallback<AuthenticationResult> mConnectCallback;
+    private OperationCallback<Void> mInitializeCallback;
+    private StartupTrace mStartupTrace;
+    private String mDispatchScope;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_connect);
+        mDispatchScope = ResultDispatcher.getScope(savedInstanceState);
+        mStartupTrace = new StartupTrace(this, Metrics.CONNECT_FIRST_FRAME, Metrics.CONNECT_INTERACTIVE);
+        StartupTrace.beginSection("ConnectActivity.onCreate");
+        try {
+            setContentView(R.layout.activity_connect);
+
+            initializeViews();
+
+            // The connection only gets a callback that doesn't hold this activity
+            bindCallbacks();
 
-        initializeViews();
+            // Set up ADAL in the background, so neither the first tap on the connect button
+            // nor the result of the sign in activity have to wait for it on the main thread
+            Futures.addCallback(
+                    AuthenticationManager.getInstance().initializeAsync(this),
+                    new OperationFutureCallback<>(mInitializeCallback));
+        } finally {
+            StartupTrace.endSection();
+        }
     }
 
     /**
@@ -66,10 +88,37 @@ public class ConnectActivity extends AppCompatActivity {
             return;
         }
 
-        final Intent sendMailIntent = new Intent(this, SendMailActivity.class);
         AuthenticationManager.getInstance().setContextActivity(this);
 
-        AuthenticationManager.getInstance().connect(
+        // A user signed in before, get ready for the first send while we connect
+        if (AuthenticationManager.getInstance().getConnectedUserId() != null) {
+            WarmUpManager.getInstance().start();
+        }
+
+        AuthenticationManager.getInstance().connect(mConnectCallback);
+    }
+
+    private void bindCallbacks() {
+        mInitializeCallback = ResultDispatcher.getInstance().bind(
+                this,
+                mDispatchScope + INITIALIZE_KEY,
+                new OperationCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        mStartupTrace.reportReady();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        // Connecting sets ADAL up again, the button is still usable
+                        DiagnosticLog.e(TAG, "onCreate - {}", e.getMessage());
+                        mStartupTrace.reportReady();
+                    }
+                });
+
+        mConnectCallback = ResultDispatcher.getInstance().bind(
+                this,
+                mDispatchScope + CONNECT_KEY,
                 new AuthenticationCallback<AuthenticationResult>() {
                     /**
                      * If the connection is successful, the activity extracts the username and
@@ -80,8 +129,12 @@ public class ConnectActivity extends AppCompatActivity {
                      */
                     @Override
                     public void onSuccess(AuthenticationResult result) {
-                        Log.i(TAG, "onConnectButtonClick - Successfully connected to Office 365");
+                        DiagnosticLog.i(TAG, "onConnectButtonClick - Successfully connected to Office 365");
 
+                        // Joins the warm-up started above, or starts it for a user that just signed in
+                        WarmUpManager.getInstance().start();
+
+                        Intent sendMailIntent = new Intent(ConnectActivity.this, SendMailActivity.class);
                         sendMailIntent.putExtra("givenName", result
                                 .getUserInfo()
                                 .getGivenName());
@@ -95,7 +148,7 @@ public class ConnectActivity extends AppCompatActivity {
 
                     @Override
                     public void onError(final Exception e) {
-                        Log.e(TAG, "onCreate - " + e.getMessage());
+                        DiagnosticLog.e(TAG, "onCreate - {}", e.getMessage());
                         showConnectErrorUI();
                     }
                 });
@@ -112,7 +165,7 @@ public class ConnectActivity extends AppCompatActivity {
      */
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        Log.i(TAG, "onActivityResult - AuthenticationActivity has come back with results");
+        DiagnosticLog.i(TAG, "onActivityResult - AuthenticationActivity has come back with results");
         super.onActivityResult(requestCode, resultCode, data);
         AuthenticationManager
                 .getInstance()
@@ -120,6 +173,12 @@ public class ConnectActivity extends AppCompatActivity {
                 .onActivityResult(requestCode, resultCode, data);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        ResultDispatcher.saveScope(outState, mDispatchScope);
+    }
+
     private void initializeViews(){
         mConnectButton = (Button)findViewById(R.id.connectButton);
         mConnectProgressBar = (ProgressBar)findViewById(R.id.connectProgressBar);
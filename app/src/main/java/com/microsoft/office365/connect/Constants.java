@@ -12,4 +12,7 @@ interface Constants {
     // Update these two constants with the values for your application:
     String CLIENT_ID = "<Your client id here>";
     String REDIRECT_URI = "<Your redirect URI here>";
+
+    // Resource of the Outlook service, used to get its token before discovery returns it
+    String OUTLOOK_RESOURCE_ID = "https://outlook.office365.com/";
 }
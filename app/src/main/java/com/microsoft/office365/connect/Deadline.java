@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Puts a time limit on the asynchronous operations. When the deadline passes, the operation is
+ * cancelled, which aborts its pending request, and the future it returned fails with a
+ * TimeoutException. The deadlines are timers on a single shared thread, no thread waits for
+ * the operation.
+ */
+class Deadline {
+
+    private static final String THREAD_NAME_PREFIX = "o365-deadline-";
+
+    /**
+     * Pass as the timeout to run an operation without a deadline.
+     */
+    static final long NONE = 0;
+
+    private Deadline() {
+    }
+
+    /**
+     * @param future The future of the operation.
+     * @param timeoutMillis The time the operation has to complete, or {@link Deadline#NONE}.
+     * @param <T> The result of the operation in case of success.
+     * @return A future that completes like the operation, or fails with a TimeoutException at
+     * the deadline. Cancelling it cancels the operation.
+     */
+    static <T> ListenableFuture<T> withTimeout(final ListenableFuture<T> future, final long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis can't be negative");
+        }
+        if (timeoutMillis == NONE) {
+            return future;
+        }
+
+        final SettableFuture<T> result = SettableFuture.create();
+        final ScheduledFuture<?> timer = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (result.setException(new TimeoutException("The operation didn't complete within " + timeoutMillis + " ms"))) {
+                    future.cancel(true);
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (t instanceof CancellationException) {
+                    result.cancel(false);
+                } else {
+                    result.setException(t);
+                }
+            }
+        });
+
+        // Whatever ends first, stop the other side
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timer.cancel(false);
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (SCHEDULER == null) {
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, new WorkerPool.NamedThreadFactory(THREAD_NAME_PREFIX));
+        }
+        return SCHEDULER;
+    }
+
+    private static ScheduledExecutorService SCHEDULER;
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Logging facade for the app, in front of logcat. Messages are templates whose "{}"
+ * placeholders are replaced by the arguments, and the message is only built when it's printed.
+ * An event below the active levels costs a comparison, no string is built and nothing is
+ * written to logcat.
+ * Events at or above the record level are kept in a fixed-size ring buffer of the most recent
+ * events, as the template and its arguments, without being formatted. The buffer can be
+ * exported on demand with {@link DiagnosticLog#export(Writer)}, such as to attach it to a bug
+ * report from the field. The arguments are kept until their slot is reused, pass values such
+ * as strings and numbers, not large objects.
+ * The levels are the priorities of {@link Log}, such as {@link Log#INFO}.
+ */
+public class DiagnosticLog {
+
+    static final int DEFAULT_CAPACITY = 256;
+    private static final int MAX_ARGS = 4;
+    private static final String PLACEHOLDER = "{}";
+
+    // Debug builds print what they record, release builds only print warnings and errors
+    private static volatile int sLogcatLevel = BuildConfig.DEBUG ? Log.INFO : Log.WARN;
+    private static volatile int sRecordLevel = Log.INFO;
+
+    private static final long[] sTimestamps = new long[DEFAULT_CAPACITY];
+    private static final int[] sLevels = new int[DEFAULT_CAPACITY];
+    private static final String[] sTags = new String[DEFAULT_CAPACITY];
+    private static final String[] sThreadNames = new String[DEFAULT_CAPACITY];
+    private static final String[] sTemplates = new String[DEFAULT_CAPACITY];
+    private static final Object[] sArgs = new Object[DEFAULT_CAPACITY * MAX_ARGS];
+    private static final int[] sArgCounts = new int[DEFAULT_CAPACITY];
+    private static long sEventCount;
+
+    private DiagnosticLog() {
+    }
+
+    /**
+     * Changes the level from which events are printed to logcat.
+     * @param level The lowest level printed, such as {@link Log#INFO}.
+     */
+    public static void setLogcatLevel(final int level) {
+        sLogcatLevel = level;
+    }
+
+    /**
+     * Changes the level from which events are kept in the ring buffer.
+     * @param level The lowest level recorded, such as {@link Log#INFO}.
+     */
+    public static void setRecordLevel(final int level) {
+        sRecordLevel = level;
+    }
+
+    /**
+     * Check it before computing an argument that is expensive to get.
+     * @param level The level of the event.
+     * @return True if an event of the level is printed or recorded.
+     */
+    public static boolean isLoggable(final int level) {
+        return level >= sLogcatLevel || level >= sRecordLevel;
+    }
+
+    public static void i(final String tag, final String message) {
+        log(Log.INFO, tag, message, 0, null, null, null, null);
+    }
+
+    public static void i(final String tag, final String template, final Object arg1) {
+        log(Log.INFO, tag, template, 1, arg1, null, null, null);
+    }
+
+    public static void i(final String tag, final String template, final Object arg1, final Object arg2) {
+        log(Log.INFO, tag, template, 2, arg1, arg2, null, null);
+    }
+
+    public static void i(final String tag, final String template, final Object arg1, final Object arg2, final Object arg3) {
+        log(Log.INFO, tag, template, 3, arg1, arg2, arg3, null);
+    }
+
+    public static void i(final String tag, final String template, final Object arg1, final Object arg2, final Object arg3, final Object arg4) {
+        log(Log.INFO, tag, template, 4, arg1, arg2, arg3, arg4);
+    }
+
+    public static void e(final String tag, final String message) {
+        log(Log.ERROR, tag, message, 0, null, null, null, null);
+    }
+
+    public static void e(final String tag, final String template, final Object arg1) {
+        log(Log.ERROR, tag, template, 1, arg1, null, null, null);
+    }
+
+    public static void e(final String tag, final String template, final Object arg1, final Object arg2) {
+        log(Log.ERROR, tag, template, 2, arg1, arg2, null, null);
+    }
+
+    public static void e(final String tag, final String template, final Object arg1, final Object arg2, final Object arg3) {
+        log(Log.ERROR, tag, template, 3, arg1, arg2, arg3, null);
+    }
+
+    public static void e(final String tag, final String template, final Object arg1, final Object arg2, final Object arg3, final Object arg4) {
+        log(Log.ERROR, tag, template, 4, arg1, arg2, arg3, arg4);
+    }
+
+    private static void log(final int level, final String tag, final String template, final int argCount,
+                            final Object arg1, final Object arg2, final Object arg3, final Object arg4) {
+        if (level >= sRecordLevel) {
+            record(level, tag, template, argCount, arg1, arg2, arg3, arg4);
+        }
+        if (level >= sLogcatLevel) {
+            Log.println(level, tag, format(template, argCount, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    private static synchronized void record(final int level, final String tag, final String template, final int argCount,
+                                            final Object arg1, final Object arg2, final Object arg3, final Object arg4) {
+        int slot = (int) (sEventCount++ % DEFAULT_CAPACITY);
+        sTimestamps[slot] = System.currentTimeMillis();
+        sLevels[slot] = level;
+        sTags[slot] = tag;
+        sThreadNames[slot] = Thread.currentThread().getName();
+        sTemplates[slot] = template;
+        sArgCounts[slot] = argCount;
+        int argsOffset = slot * MAX_ARGS;
+        sArgs[argsOffset] = arg1;
+        sArgs[argsOffset + 1] = arg2;
+        sArgs[argsOffset + 2] = arg3;
+        sArgs[argsOffset + 3] = arg4;
+    }
+
+    /**
+     * Writes the recorded events, oldest first, one per line in the format of logcat.
+     * The events are copied first, so logging isn't held up while they're formatted and written.
+     * @param writer Where to write the events.
+     * @throws IOException If the writer failed.
+     */
+    public static void export(final Writer writer) throws IOException {
+        long[] timestamps;
+        int[] levels;
+        String[] tags;
+        String[] threadNames;
+        String[] templates;
+        Object[] args;
+        int[] argCounts;
+        int count;
+        int first;
+        synchronized (DiagnosticLog.class) {
+            count = (int) Math.min(sEventCount, DEFAULT_CAPACITY);
+            first = (int) ((sEventCount - count) % DEFAULT_CAPACITY);
+            timestamps = sTimestamps.clone();
+            levels = sLevels.clone();
+            tags = sTags.clone();
+            threadNames = sThreadNames.clone();
+            templates = sTemplates.clone();
+            args = sArgs.clone();
+            argCounts = sArgCounts.clone();
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (int i = 0; i < count; i++) {
+            int slot = (first + i) % DEFAULT_CAPACITY;
+            int argsOffset = slot * MAX_ARGS;
+            writer.write(dateFormat.format(new Date(timestamps[slot])));
+            writer.write(' ');
+            writer.write(getLevelName(levels[slot]));
+            writer.write('/');
+            writer.write(tags[slot]);
+            writer.write(" [");
+            writer.write(threadNames[slot]);
+            writer.write("]: ");
+            writer.write(format(
+                    templates[slot],
+                    argCounts[slot],
+                    args[argsOffset],
+                    args[argsOffset + 1],
+                    args[argsOffset + 2],
+                    args[argsOffset + 3]));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return The recorded events, like {@link DiagnosticLog#export(Writer)} writes them.
+     */
+    public static String export() {
+        StringWriter writer = new StringWriter();
+        try {
+            export(writer);
+        } catch (IOException e) {
+            // A StringWriter doesn't fail
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Forgets the recorded events.
+     */
+    public static synchronized void clear() {
+        sEventCount = 0;
+        Arrays.fill(sTags, null);
+        Arrays.fill(sThreadNames, null);
+        Arrays.fill(sTemplates, null);
+        Arrays.fill(sArgs, null);
+    }
+
+    /**
+     * Replaces the placeholders of the template with the arguments, in order. Placeholders
+     * without an argument are left as they are.
+     */
+    static String format(final String template, final int argCount,
+                         final Object arg1, final Object arg2, final Object arg3, final Object arg4) {
+        if (argCount == 0 || template == null) {
+            return String.valueOf(template);
+        }
+
+        StringBuilder message = new StringBuilder(template.length() + 16 * argCount);
+        int start = 0;
+        for (int i = 0; i < argCount; i++) {
+            int placeholder = template.indexOf(PLACEHOLDER, start);
+            if (placeholder < 0) {
+                break;
+            }
+            message.append(template, start, placeholder);
+            message.append(i == 0 ? arg1 : i == 1 ? arg2 : i == 2 ? arg3 : arg4);
+            start = placeholder + PLACEHOLDER.length();
+        }
+        message.append(template, start, template.length());
+        return message.toString();
+    }
+
+    private static String getLevelName(final int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return "V";
+            case Log.DEBUG:
+                return "D";
+            case Log.INFO:
+                return "I";
+            case Log.WARN:
+                return "W";
+            case Log.ERROR:
+                return "E";
+            default:
+                return "A";
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.microsoft.services.discovery.ServiceInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of the services returned by the discovery service, keyed by user id.
+ * The entries survive process restarts, so the app can find the service endpoints without
+ * contacting the discovery service on a cold start.
+ * The {@link DiscoveryManager} decides how long an entry can be served. Each entry keeps the
+ * ETag and Last-Modified date the discovery service sent with the services, so a refresh can
+ * ask for the services only if they changed.
+ */
+class DiscoveryCache {
+
+    private static final String TAG = "DiscoveryCache";
+    private static final String PREFERENCES_FILENAME = "DiscoveryCacheFile";
+    private static final String TIMESTAMP_KEY = "timestamp";
+    private static final String SERVICES_KEY = "services";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String SERVICE_RESOURCE_ID_KEY = "serviceResourceId";
+    private static final String SERVICE_ENDPOINT_URI_KEY = "serviceEndpointUri";
+    private static final String SERVICE_NAME_KEY = "serviceName";
+    private static final String CAPABILITY_KEY = "capability";
+
+    private final SharedPreferences mPreferences;
+
+    static synchronized DiscoveryCache getInstance(final Context context) {
+        if (INSTANCE == null) {
+            INSTANCE = new DiscoveryCache(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    private static DiscoveryCache INSTANCE;
+
+    private DiscoveryCache(final Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_FILENAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads the cached services of the provided user.
+     * @param userId The id of the user that owns the services.
+     * @return The cache entry, or null if there's no entry for the user.
+     */
+    Entry get(final String userId) {
+        String serialized = mPreferences.getString(userId, null);
+        if (serialized == null) {
+            return null;
+        }
+
+        try {
+            JSONObject jsonEntry = new JSONObject(serialized);
+            JSONArray jsonServices = jsonEntry.getJSONArray(SERVICES_KEY);
+            List<ServiceInfo> services = new ArrayList<>(jsonServices.length());
+            for (int i = 0; i < jsonServices.length(); i++) {
+                JSONObject jsonService = jsonServices.getJSONObject(i);
+                ServiceInfo serviceInfo = new ServiceInfo();
+                serviceInfo.setServiceResourceId(jsonService.optString(SERVICE_RESOURCE_ID_KEY, null));
+                serviceInfo.setServiceEndpointUri(jsonService.optString(SERVICE_ENDPOINT_URI_KEY, null));
+                serviceInfo.setServiceName(jsonService.optString(SERVICE_NAME_KEY, null));
+                serviceInfo.setCapability(jsonService.optString(CAPABILITY_KEY, null));
+                services.add(serviceInfo);
+            }
+
+            // Entries written before the validators were kept don't have them
+            return new Entry(
+                    userId,
+                    services,
+                    jsonEntry.getLong(TIMESTAMP_KEY),
+                    jsonEntry.optString(ETAG_KEY, null),
+                    jsonEntry.optString(LAST_MODIFIED_KEY, null));
+        } catch (JSONException e) {
+            // The entry is corrupted, forget it so we go back to the discovery service
+            DiagnosticLog.e(TAG, "get - {}", e.getMessage());
+            remove(userId);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the services of the provided user.
+     * @param userId The id of the user that owns the services.
+     * @param services The services returned by the discovery service.
+     * @param eTag The ETag of the services, or null if the service didn't send one.
+     * @param lastModified The Last-Modified date of the services, or null if the service didn't
+     *                     send one.
+     * @return The new cache entry.
+     */
+    Entry put(final String userId, final List<ServiceInfo> services, final String eTag, final String lastModified) {
+        Entry entry = new Entry(userId, services, System.currentTimeMillis(), eTag, lastModified);
+        write(entry);
+        return entry;
+    }
+
+    /**
+     * Restarts the time to live of an entry the discovery service reported as not modified.
+     * The services are kept as they are, they don't have to be parsed again.
+     * @param entry The entry that is still current.
+     * @return The entry with the current time as its timestamp.
+     */
+    Entry revalidate(final Entry entry) {
+        Entry revalidatedEntry = entry.revalidate();
+        write(revalidatedEntry);
+        return revalidatedEntry;
+    }
+
+    private void write(final Entry entry) {
+        try {
+            JSONArray jsonServices = new JSONArray();
+            for (ServiceInfo serviceInfo : entry.getServices()) {
+                JSONObject jsonService = new JSONObject();
+                jsonService.put(SERVICE_RESOURCE_ID_KEY, serviceInfo.getServiceResourceId());
+                jsonService.put(SERVICE_ENDPOINT_URI_KEY, serviceInfo.getServiceEndpointUri());
+                jsonService.put(SERVICE_NAME_KEY, serviceInfo.getServiceName());
+                jsonService.put(CAPABILITY_KEY, serviceInfo.getCapability());
+                jsonServices.put(jsonService);
+            }
+
+            JSONObject jsonEntry = new JSONObject();
+            jsonEntry.put(TIMESTAMP_KEY, entry.getTimestamp());
+            jsonEntry.put(SERVICES_KEY, jsonServices);
+            jsonEntry.putOpt(ETAG_KEY, entry.getETag());
+            jsonEntry.putOpt(LAST_MODIFIED_KEY, entry.getLastModified());
+
+            mPreferences.edit().putString(entry.getUserId(), jsonEntry.toString()).apply();
+        } catch (JSONException e) {
+            // We can still serve the entry from memory
+            DiagnosticLog.e(TAG, "write - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets the cached services of the provided user.
+     * @param userId The id of the user that owns the services.
+     */
+    void remove(final String userId) {
+        mPreferences.edit().remove(userId).apply();
+    }
+
+    /**
+     * The services discovered for a user, the time when they were discovered and their
+     * validators.
+     * The services are indexed by capability. Entries are immutable, so they can be shared
+     * between threads once published.
+     */
+    static class Entry {
+        private final String mUserId;
+        private final List<ServiceInfo> mServices;
+        private final Map<String, ServiceInfo> mServicesByCapability;
+        private final long mTimestamp;
+        private final String mETag;
+        private final String mLastModified;
+
+        Entry(final String userId, final List<ServiceInfo> services, final long timestamp, final String eTag, final String lastModified) {
+            this(userId, Collections.unmodifiableList(new ArrayList<>(services)), indexByCapability(services), timestamp, eTag, lastModified);
+        }
+
+        private Entry(final String userId, final List<ServiceInfo> services, final Map<String, ServiceInfo> servicesByCapability, final long timestamp, final String eTag, final String lastModified) {
+            mUserId = userId;
+            mServices = services;
+            mServicesByCapability = servicesByCapability;
+            mTimestamp = timestamp;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * @return A copy of the entry, sharing its services and index, timestamped now.
+         */
+        Entry revalidate() {
+            return new Entry(mUserId, mServices, mServicesByCapability, System.currentTimeMillis(), mETag, mLastModified);
+        }
+
+        private static Map<String, ServiceInfo> indexByCapability(final List<ServiceInfo> services) {
+
+            Map<String, ServiceInfo> servicesByCapability = new HashMap<>();
+            for (ServiceInfo serviceInfo : services) {
+                // Keep the first service for each capability, like the discovery order suggests
+                if (serviceInfo.getCapability() != null
+                        && !servicesByCapability.containsKey(serviceInfo.getCapability())) {
+                    servicesByCapability.put(serviceInfo.getCapability(), serviceInfo);
+                }
+            }
+            return Collections.unmodifiableMap(servicesByCapability);
+        }
+
+        /**
+         * Finds the service that corresponds to the provided capability.
+         * @param capability The capability of the service.
+         * @return The service, or null if the user doesn't have access to the capability.
+         */
+        ServiceInfo getService(final String capability) {
+            return mServicesByCapability.get(capability);
+        }
+
+        String getUserId() {
+            return mUserId;
+        }
+
+        List<ServiceInfo> getServices() {
+            return mServices;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return The ETag of the services, or null if the discovery service didn't send one.
+         */
+        String getETag() {
+            return mETag;
+        }
+
+        /**
+         * @return The Last-Modified date of the services, or null if the discovery service didn't
+         * send one.
+         */
+        String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @return True if the services can be requested conditionally.
+         */
+        boolean hasValidators() {
+            return mETag != null || mLastModified != null;
+        }
+
+        long getAgeMillis() {
+            return System.currentTimeMillis() - mTimestamp;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.aad.adal.ADALError;
+import com.microsoft.aad.adal.AuthenticationException;
+import com.microsoft.aad.adal.AuthenticationResult;
+import com.microsoft.services.discovery.ServiceInfo;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Gets the services of a user from the discovery service with a conditional request. The
+ * validators of the cached services, their ETag and Last-Modified date, are sent along, so when
+ * the services haven't changed the service answers 304 Not Modified without a body, and the
+ * cached services are kept as they are instead of being downloaded and parsed again.
+ * The SDK discovery client can neither send the validators nor report a 304, so the request
+ * goes straight through the {@link SharedHttpClient}, like the streaming uploads, with the
+ * access token of the user from ADAL.
+ */
+class DiscoveryFetcher {
+
+    private static final String TAG = "DiscoveryFetcher";
+    private static final String SERVICES_SEGMENT = "services";
+    private static final String SELECT_FIELDS = "serviceResourceId,serviceEndpointUri,serviceName,capability";
+
+    private DiscoveryFetcher() {
+    }
+
+    /**
+     * Requests the services, unless the cached ones are still current. Neither the token nor
+     * the response is awaited by blocking a thread. Cancelling the future cancels the request.
+     * @param discoveryResourceUrl The URL of the discovery service.
+     * @param owner The user whose token for the discovery service authorizes the request.
+     * @param cacheEntry The cached services whose validators are sent, or null to get the
+     *                   services unconditionally.
+     * @return A future with the result, or that fails with a {@link HttpStatusException} if the
+     * service rejected the request.
+     */
+    static ListenableFuture<Result> fetchAsync(final String discoveryResourceUrl, final ServiceOwner owner, final DiscoveryCache.Entry cacheEntry) {
+        return Futures.transform(
+                owner.acquireTokenAsync(Constants.DISCOVERY_RESOURCE_ID),
+                new AsyncFunction<AuthenticationResult, Result>() {
+                    @Override
+                    public ListenableFuture<Result> apply(AuthenticationResult authenticationResult) throws AuthenticationException {
+                        return execute(createRequest(discoveryResourceUrl, authenticationResult, cacheEntry), cacheEntry != null);
+                    }
+                });
+    }
+
+    private static Request createRequest(final String discoveryResourceUrl, final AuthenticationResult authenticationResult, final DiscoveryCache.Entry cacheEntry)
+            throws AuthenticationException {
+        HttpUrl url = HttpUrl.parse(discoveryResourceUrl);
+        if (url == null) {
+            throw new IllegalArgumentException("Invalid discovery URL " + discoveryResourceUrl);
+        }
+        Request.Builder builder = new Request.Builder()
+                .url(url.newBuilder()
+                        .addPathSegment(SERVICES_SEGMENT)
+                        .addQueryParameter("$select", SELECT_FIELDS)
+                        .build())
+                .header("Accept", "application/json");
+
+        if (authenticationResult == null || authenticationResult.getAccessToken() == null) {
+            throw new AuthenticationException(ADALError.AUTH_FAILED, "Couldn't get a token for the discovery service");
+        }
+        builder.header("Authorization", "Bearer " + authenticationResult.getAccessToken());
+
+        if (cacheEntry != null) {
+            if (cacheEntry.getETag() != null) {
+                builder.header("If-None-Match", cacheEntry.getETag());
+            }
+            if (cacheEntry.getLastModified() != null) {
+                builder.header("If-Modified-Since", cacheEntry.getLastModified());
+            }
+        }
+        return builder.build();
+    }
+
+    private static ListenableFuture<Result> execute(final Request request, final boolean conditional) {
+        final SettableFuture<Result> future = SettableFuture.create();
+        final Call call = SharedHttpClient.getInstance().getClient().newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Request failedRequest, IOException e) {
+                future.setException(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                try {
+                    future.set(readResponse(response, conditional));
+                } catch (Exception e) {
+                    future.setException(e);
+                } finally {
+                    // Returns the connection to the pool
+                    closeQuietly(response);
+                }
+            }
+        });
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    call.cancel();
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private static Result readResponse(final Response response, final boolean conditional)
+            throws IOException, JSONException, HttpStatusException {
+        int statusCode = response.code();
+        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+            // The cached services are current, there's no body to read
+            DiagnosticLog.i(TAG, "readResponse - Services not modified");
+            return new Result(null, null, null);
+        }
+        if (statusCode / 100 != 2) {
+            throw new HttpStatusException(
+                    statusCode,
+                    response.header("Retry-After"),
+                    "Discovery failed with HTTP " + statusCode + " " + response.message());
+        }
+
+        JSONArray jsonServices = new JSONObject(response.body().string()).getJSONArray("value");
+        List<ServiceInfo> services = new ArrayList<>(jsonServices.length());
+        for (int i = 0; i < jsonServices.length(); i++) {
+            JSONObject jsonService = jsonServices.getJSONObject(i);
+            ServiceInfo serviceInfo = new ServiceInfo();
+            serviceInfo.setServiceResourceId(jsonService.optString("serviceResourceId", null));
+            serviceInfo.setServiceEndpointUri(jsonService.optString("serviceEndpointUri", null));
+            serviceInfo.setServiceName(jsonService.optString("serviceName", null));
+            serviceInfo.setCapability(jsonService.optString("capability", null));
+            services.add(serviceInfo);
+        }
+        DiagnosticLog.i(TAG, "readResponse - {} services discovered over {}", services.size(), response.protocol());
+        return new Result(services, response.header("ETag"), response.header("Last-Modified"));
+    }
+
+    private static void closeQuietly(final Response response) {
+        try {
+            response.body().close();
+        } catch (IOException e) {
+            // Nothing left to do with the response
+        }
+    }
+
+    /**
+     * The outcome of a discovery request: either the services with their validators, or the
+     * confirmation that the cached services haven't changed.
+     */
+    static class Result {
+        private final List<ServiceInfo> mServices;
+        private final String mETag;
+        private final String mLastModified;
+
+        Result(final List<ServiceInfo> services, final String eTag, final String lastModified) {
+            mServices = services == null ? null : Collections.unmodifiableList(services);
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * @return True if the service answered 304 and the cached services are still current.
+         */
+        boolean isNotModified() {
+            return mServices == null;
+        }
+
+        /**
+         * @return The services, or null if they weren't modified.
+         */
+        List<ServiceInfo> getServices() {
+            return mServices;
+        }
+
+        /**
+         * @return The ETag of the services, or null if the service didn't send one.
+         */
+        String getETag() {
+            return mETag;
+        }
+
+        /**
+         * @return The Last-Modified date of the services, or null if the service didn't send one.
+         */
+        String getLastModified() {
+            return mLastModified;
+        }
+    }
+}
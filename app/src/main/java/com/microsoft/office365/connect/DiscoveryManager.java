@@ -4,15 +4,24 @@
  */
 package com.microsoft.office365.connect;
 
-import android.util.Log;
+import android.content.Context;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.aad.adal.AuthenticationResult;
 import com.microsoft.services.discovery.ServiceInfo;
-import com.microsoft.services.discovery.fetchers.DiscoveryClient;
 import com.microsoft.services.orc.resolvers.ADALDependencyResolver;
 
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles the discovery of the service endpoints
@@ -22,8 +31,19 @@ import java.util.concurrent.ExecutionException;
 public class DiscoveryManager {
 
     private static final String TAG = "DiscoveryManager";
+    private static final String UNKNOWN_USER_ID = "";
+    private static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long DEFAULT_STALE_PERIOD_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final long DEFAULT_NEGATIVE_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
-    private List<ServiceInfo> mServices;
+    private volatile DiscoveryCache.Entry mCacheEntry;
+    private volatile long mTimeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+    private volatile long mStalePeriodMillis = DEFAULT_STALE_PERIOD_MILLIS;
+    private volatile long mNegativeTimeToLiveMillis = DEFAULT_NEGATIVE_TIME_TO_LIVE_MILLIS;
+    private final Map<String, ListenableFuture<DiscoveryCache.Entry>> mInFlightDiscoveries = new HashMap<>();
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.createDefault();
+    private volatile String mDiscoveryResourceUrl = Constants.DISCOVERY_RESOURCE_URL;
+    private final ServiceOwner mConnectedUser = new ConnectedUser();
 
     public static synchronized DiscoveryManager getInstance() {
         if (INSTANCE == null) {
@@ -36,82 +56,463 @@ public class DiscoveryManager {
 
     /**
      * Provides information about the service that corresponds to the provided capability.
-     * Gets the info from a local cache.
-     * Calls {@link DiscoveryManager#getServiceInfoFromDiscoveryService(String, OperationCallback)}
-     * if the service info was not found in cache.
+     * Callback variant of {@link DiscoveryManager#getServiceInfoAsync(String)}.
      * @param capability A string that contains the capability of the service that
      *                   is going to be discovered.
      * @param operationCallback The callback to which return the result or error.
+     * @return A handle to cancel the discovery.
      */
-    public void getServiceInfo(final String capability, final OperationCallback<ServiceInfo> operationCallback) {
-        // Since we're doing considerable work, let's get out of the main thread
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // First, look in the locally cached services.
-                if(mServices != null) {
-                    for (ServiceInfo serviceInfo : mServices) {
-                        if (serviceInfo.getCapability().equals(capability)) {
-                            Log.i(TAG, "getServiceInfo - " + serviceInfo.getServiceName() + " service for " + capability + " was found in local cached services");
-                            operationCallback.onSuccess(serviceInfo);
-                            return;
-                        }
+    public OperationHandle getServiceInfo(final String capability, final OperationCallback<ServiceInfo> operationCallback) {
+        return getServiceInfo(capability, Deadline.NONE, operationCallback);
+    }
+
+    /**
+     * Provides information about the service that corresponds to the provided capability,
+     * giving up if it takes longer than the timeout.
+     * Callback variant of {@link DiscoveryManager#getServiceInfoAsync(String)}.
+     * @param capability A string that contains the capability of the service that
+     *                   is going to be discovered.
+     * @param timeoutMillis The time the discovery has to complete, after which the callback
+     *                      gets a TimeoutException. Zero for no deadline.
+     * @param operationCallback The callback to which return the result or error.
+     * @return A handle to cancel the discovery.
+     */
+    public OperationHandle getServiceInfo(final String capability, final long timeoutMillis, final OperationCallback<ServiceInfo> operationCallback) {
+        ListenableFuture<ServiceInfo> serviceInfo = Deadline.withTimeout(getServiceInfoAsync(capability), timeoutMillis);
+        Futures.addCallback(serviceInfo, new OperationFutureCallback<>(operationCallback));
+        return new OperationHandle(serviceInfo);
+    }
+
+    /**
+     * Provides information about the service that corresponds to the provided capability.
+     * Gets the info from a local cache, which is kept on disk so it's still there after a
+     * process restart. If the cached info is older than its time to live, it's still served while
+     * a fresh copy is fetched in the background, with a conditional request that doesn't
+     * download the services again if they haven't changed.
+     * Calls {@link DiscoveryManager#getServiceInfoFromDiscoveryService(ServiceOwner, DiscoveryCache.Entry, String)}
+     * if the service info was not found in cache.
+     * No thread is blocked while waiting for the discovery service.
+     * @param capability A string that contains the capability of the service that
+     *                   is going to be discovered.
+     * @return A future with the service info, or that fails with a NoSuchElementException if
+     * the user doesn't have access to the capability.
+     */
+    public ListenableFuture<ServiceInfo> getServiceInfoAsync(final String capability) {
+        return getServiceInfoAsync(mConnectedUser, capability);
+    }
+
+    /**
+     * Provides information about the service that corresponds to the provided capability, for
+     * one of the accounts of the {@link SessionStore}. Each account has its own cached services
+     * and its own discovery requests, so lookups for different accounts run in parallel.
+     * @param session The account to discover the service for.
+     * @param capability A string that contains the capability of the service that
+     *                   is going to be discovered.
+     * @return A future with the service info, or that fails with a NoSuchElementException if
+     * the user doesn't have access to the capability.
+     */
+    public ListenableFuture<ServiceInfo> getServiceInfoAsync(final AccountSession session, final String capability) {
+        return getServiceInfoAsync((ServiceOwner) session, capability);
+    }
+
+    private ListenableFuture<ServiceInfo> getServiceInfoAsync(final ServiceOwner owner, final String capability) {
+        // The cache may have to be read from disk, let's get out of the main thread
+        ListenableFutureTask<ListenableFuture<ServiceInfo>> lookup = ListenableFutureTask.create(
+                new Callable<ListenableFuture<ServiceInfo>>() {
+                    @Override
+                    public ListenableFuture<ServiceInfo> call() {
+                        return lookUpServiceInfo(owner, capability);
                     }
+                });
+        try {
+            WorkerPool.getInstance().execute(lookup);
+        } catch (RejectedExecutionException e) {
+            // The pool is saturated, fail the lookup rather than throwing into the caller
+            return Futures.immediateFailedFuture(e);
+        }
+        return Futures.dereference(lookup);
+    }
 
-                    // We already cached the services but couldn't find the requested service in local cache
-                    Log.e(TAG, "getServiceInfo - The " + capability + " capability was not found in the local cached services. "
-                            + "Falling back to the discovery service");
-                    getServiceInfoFromDiscoveryService(capability, operationCallback);
-                } else {
-                    // The services have not been cached yet. Go ask the discovery service.
-                    getServiceInfoFromDiscoveryService(capability, operationCallback);
+    private ListenableFuture<ServiceInfo> lookUpServiceInfo(final ServiceOwner owner, final String capability) {
+        // First, look in the locally cached services.
+        long startNanos = System.nanoTime();
+        DiscoveryCache.Entry cacheEntry = getCacheEntry(owner);
+        if(cacheEntry != null) {
+            ServiceInfo serviceInfo = cacheEntry.getService(capability);
+            if (serviceInfo != null) {
+                Metrics.getInstance().recordTiming(Metrics.DISCOVERY_CACHE_HIT, startNanos, true);
+                DiagnosticLog.i(TAG, "getServiceInfo - {} service for {} was found in local cached services", serviceInfo.getServiceName(), capability);
+
+                // Serve the stale entry but get a fresh copy for the next callers
+                if (!isFresh(cacheEntry)) {
+                    refreshServices(owner, cacheEntry);
                 }
+                return Futures.immediateFuture(serviceInfo);
+            }
+
+            // The services were discovered recently, asking again won't make the capability show up
+            if (cacheEntry.getAgeMillis() <= mNegativeTimeToLiveMillis) {
+                NoSuchElementException noSuchElementException = new NoSuchElementException("The " + capability + " capability was not found in the user services.");
+                DiagnosticLog.e(TAG, "getServiceInfo - {}", noSuchElementException.getMessage());
+                return Futures.immediateFailedFuture(noSuchElementException);
             }
-        }).start();
+
+            // We already cached the services but couldn't find the requested service in local cache
+            DiagnosticLog.e(TAG, "getServiceInfo - The {} capability was not found in the local cached services. Falling back to the discovery service", capability);
+        }
+        // The services have not been cached yet, or are missing the capability. Go ask the discovery service.
+        return getServiceInfoFromDiscoveryService(owner, cacheEntry, capability);
     }
 
     /**
      * Provides information about the service that corresponds to the provided capability.
-     * Gets the info from the discovery service.
+     * Gets the info from the discovery service. Concurrent calls for the same user share a single
+     * request to the discovery service.
+     * @param owner The user to discover the service for.
+     * @param cacheEntry The cached services of the user, or null if there are none.
      * @param capability A string that contains the capability of the service that
      *                   is going to be discovered.
-     * @param operationCallback The callback to which return the result or error.
+     * @return A future with the service info.
+     */
+    private ListenableFuture<ServiceInfo> getServiceInfoFromDiscoveryService(final ServiceOwner owner, final DiscoveryCache.Entry cacheEntry, final String capability) {
+        // Each caller gets its own future, so one of them cancelling doesn't cancel the shared request
+        final SettableFuture<ServiceInfo> future = SettableFuture.create();
+        Futures.addCallback(discoverAndCacheServices(owner, cacheEntry), new FutureCallback<DiscoveryCache.Entry>() {
+            @Override
+            public void onSuccess(DiscoveryCache.Entry cacheEntry) {
+                ServiceInfo serviceInfo = cacheEntry.getService(capability);
+                if (serviceInfo != null) {
+                    // We found the service, send the info to the caller
+                    DiagnosticLog.i(TAG, "getServiceInfoFromDiscoveryService - {} service for {} was found in services retrieved from discovery", serviceInfo.getServiceName(), capability);
+                    future.set(serviceInfo);
+                } else {
+                    // We haven't cached the services but couldn't find the requested service in discovery service
+                    NoSuchElementException noSuchElementException = new NoSuchElementException("The " + capability + " capability was not found in the user services.");
+                    DiagnosticLog.e(TAG, "getServiceInfoFromDiscoveryService - {}", noSuchElementException.getMessage());
+                    future.setException(noSuchElementException);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Gets the services from the discovery service and caches them. Joins the request in flight
+     * for the user, if there's one.
+     * If services are already cached, the request is conditional. When the discovery service
+     * reports that they haven't changed, the cached services are kept and only their time to
+     * live is restarted.
+     * @param owner The user to discover the services for.
+     * @param cachedEntry The cached services of the user, or null if there are none.
+     * @return A future with the new cache entry.
      */
-    private void getServiceInfoFromDiscoveryService(final String capability, final OperationCallback<ServiceInfo> operationCallback) {
+    private ListenableFuture<DiscoveryCache.Entry> discoverAndCacheServices(final ServiceOwner owner, final DiscoveryCache.Entry cachedEntry) {
+        final String ownerKey = getOwnerKey(owner);
+        final SettableFuture<DiscoveryCache.Entry> discovery;
+        synchronized (mInFlightDiscoveries) {
+            ListenableFuture<DiscoveryCache.Entry> inFlightDiscovery = mInFlightDiscoveries.get(ownerKey);
+            if (inFlightDiscovery != null) {
+                // There's already a request in flight, we'll get the result when it comes back
+                return inFlightDiscovery;
+            }
+            discovery = SettableFuture.create();
+            mInFlightDiscoveries.put(ownerKey, discovery);
+        }
+
+        final long startNanos = System.nanoTime();
+        ListenableFuture<DiscoveryFetcher.Result> request;
         try {
-            AuthenticationManager.getInstance().setResourceId(Constants.DISCOVERY_RESOURCE_ID);
-            ADALDependencyResolver dependencyResolver = (ADALDependencyResolver) AuthenticationManager
-                    .getInstance()
-                    .getDependencyResolver();
-
-            DiscoveryClient discoveryClient = new DiscoveryClient(Constants.DISCOVERY_RESOURCE_URL, dependencyResolver);
-
-            List<ServiceInfo> services =
-                    discoveryClient
-                            .getServices()
-                            .select("serviceResourceId,serviceEndpointUri,serviceName,capability")
-                            .read().get();
-
-            Log.i(TAG, "getServiceInfoFromDiscoveryService - Services discovered\n");
-            // Save the discovered services to serve further requests from the local cache.
-            mServices = services;
-
-            for (ServiceInfo serviceInfo : services) {
-                if (serviceInfo.getCapability().equals(capability)) {
-                    // We found the service, send the info to the caller and end this method call
-                    Log.i(TAG, "getServiceInfoFromDiscoveryService - " + serviceInfo.getServiceName() + " service for " + capability + " was found in services retrieved from discovery");
-                    operationCallback.onSuccess(serviceInfo);
+            request = discoverServices(owner, cachedEntry);
+        } catch (RuntimeException e) {
+            // Don't leave the entry behind, the callers joining it would never get an answer
+            DiagnosticLog.e(TAG, "discoverAndCacheServices - {}", e.getMessage());
+            removeInFlightDiscovery(ownerKey);
+            discovery.setException(e);
+            return discovery;
+        }
+        Futures.addCallback(request, new FutureCallback<DiscoveryFetcher.Result>() {
+            @Override
+            public void onSuccess(DiscoveryFetcher.Result result) {
+                DiscoveryCache.Entry cacheEntry;
+                try {
+                    if (result.isNotModified()) {
+                        Metrics.getInstance().recordTiming(Metrics.DISCOVERY_NOT_MODIFIED, startNanos, true);
+                        DiagnosticLog.i(TAG, "discoverAndCacheServices - Services not modified\n");
+
+                        // Keep serving the services we already have, they're current again
+                        cacheEntry = revalidateServices(owner, cachedEntry);
+                    } else {
+                        Metrics.getInstance().recordTiming(Metrics.DISCOVERY_NETWORK, startNanos, true);
+                        DiagnosticLog.i(TAG, "discoverAndCacheServices - Services discovered\n");
+
+                        // Save the discovered services to serve further requests from the local cache.
+                        cacheEntry = cacheServices(owner, result);
+                    }
+                } catch (RuntimeException e) {
+                    DiagnosticLog.e(TAG, "discoverAndCacheServices - {}", e.getMessage());
+                    discovery.setException(e);
                     return;
+                } finally {
+                    removeInFlightDiscovery(ownerKey);
                 }
+                discovery.set(cacheEntry);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Metrics.getInstance().recordTiming(Metrics.DISCOVERY_NETWORK, startNanos, false);
+                DiagnosticLog.e(TAG, "discoverAndCacheServices - {}", t.getMessage());
+                removeInFlightDiscovery(ownerKey);
+                discovery.setException(t);
             }
+        });
+        return discovery;
+    }
+
+    private void removeInFlightDiscovery(final String ownerKey) {
+        synchronized (mInFlightDiscoveries) {
+            mInFlightDiscoveries.remove(ownerKey);
+        }
+    }
+
+    /**
+     * Changes how long the discovered services are served from the local cache.
+     * @param timeToLiveMillis The time, in milliseconds, during which the cached services are
+     *                         used without contacting the discovery service.
+     * @param stalePeriodMillis The time, in milliseconds, after the time to live during which the
+     *                          cached services are still used while they're refreshed in the
+     *                          background.
+     */
+    public void setCacheTimeToLive(final long timeToLiveMillis, final long stalePeriodMillis) {
+        if (timeToLiveMillis < 0 || stalePeriodMillis < 0) {
+            throw new IllegalArgumentException("timeToLiveMillis and stalePeriodMillis can't be negative");
+        }
+        mTimeToLiveMillis = timeToLiveMillis;
+        mStalePeriodMillis = stalePeriodMillis;
+    }
+
+    /**
+     * Changes how long a capability that wasn't found in the discovered services is reported as
+     * missing without contacting the discovery service again.
+     * @param negativeTimeToLiveMillis The time, in milliseconds, since the services were
+     *                                 discovered during which a missing capability is not
+     *                                 looked up again.
+     */
+    public void setNegativeCacheTimeToLive(final long negativeTimeToLiveMillis) {
+        if (negativeTimeToLiveMillis < 0) {
+            throw new IllegalArgumentException("negativeTimeToLiveMillis can't be negative");
+        }
+        mNegativeTimeToLiveMillis = negativeTimeToLiveMillis;
+    }
+
+    /**
+     * Changes how failed requests to the discovery service are attempted again.
+     * @param retryPolicy The policy to use for the next requests.
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Points the discovery requests to a different URL, such as a local stand-in of the
+     * discovery service used for load tests.
+     * @param discoveryResourceUrl The URL of the discovery service.
+     */
+    void setDiscoveryResourceUrl(final String discoveryResourceUrl) {
+        this.mDiscoveryResourceUrl = discoveryResourceUrl;
+    }
+
+    /**
+     * @return The URL the discovery requests are sent to.
+     */
+    String getDiscoveryResourceUrl() {
+        return mDiscoveryResourceUrl;
+    }
+
+    /**
+     * @return The time, in milliseconds, during which the cached services are used without
+     *         contacting the discovery service.
+     */
+    long getCacheTimeToLive() {
+        return mTimeToLiveMillis;
+    }
+
+    /**
+     * @return The time, in milliseconds, after the time to live during which the cached services
+     *         are still used while they're refreshed in the background.
+     */
+    long getCacheStalePeriod() {
+        return mStalePeriodMillis;
+    }
+
+    /**
+     * @return The time, in milliseconds, during which a missing capability is not looked up again.
+     */
+    long getNegativeCacheTimeToLive() {
+        return mNegativeTimeToLiveMillis;
+    }
+
+    /**
+     * Forgets the services discovered for the signed in user, both in memory and on disk.
+     */
+    void clearCache() {
+        clearCache(mConnectedUser);
+    }
+
+    /**
+     * Forgets the services discovered for the user, both in memory and on disk.
+     * @param owner The user to forget the services of.
+     */
+    void clearCache(final ServiceOwner owner) {
+        DiscoveryCache.Entry cacheEntry = owner.getCachedServices();
+        owner.setCachedServices(null);
+
+        DiscoveryCache discoveryCache = getDiscoveryCache(owner);
+        if (cacheEntry != null && discoveryCache != null && !cacheEntry.getUserId().equals(UNKNOWN_USER_ID)) {
+            discoveryCache.remove(cacheEntry.getUserId());
+        }
+    }
+
+    /**
+     * Gets the cached services for the user. Looks in memory first and then in the
+     * on-disk cache, which is still there after a process restart.
+     * @param owner The user that owns the services.
+     * @return The cache entry, or null if the services are not cached or have expired.
+     */
+    private DiscoveryCache.Entry getCacheEntry(final ServiceOwner owner) {
+        String userId = owner.getUserId();
+
+        DiscoveryCache.Entry cacheEntry = owner.getCachedServices();
+        if (cacheEntry != null && cacheEntry.getUserId().equals(getOwnerKey(owner)) && isUsable(cacheEntry)) {
+            return cacheEntry;
+        }
+
+        DiscoveryCache discoveryCache = getDiscoveryCache(owner);
+        if (userId == null || discoveryCache == null) {
+            return null;
+        }
+        cacheEntry = discoveryCache.get(userId);
+        if (cacheEntry != null && !isUsable(cacheEntry)) {
+            discoveryCache.remove(userId);
+            cacheEntry = null;
+        }
+        owner.setCachedServices(cacheEntry);
+        return cacheEntry;
+    }
+
+    private DiscoveryCache.Entry cacheServices(final ServiceOwner owner, final DiscoveryFetcher.Result result) {
+        String userId = owner.getUserId();
+        DiscoveryCache discoveryCache = getDiscoveryCache(owner);
+        DiscoveryCache.Entry cacheEntry;
+        if (userId == null || discoveryCache == null) {
+            // We can't tell who owns the services, keep them for the current process only
+            cacheEntry = new DiscoveryCache.Entry(UNKNOWN_USER_ID, result.getServices(), System.currentTimeMillis(), result.getETag(), result.getLastModified());
+        } else {
+            cacheEntry = discoveryCache.put(userId, result.getServices(), result.getETag(), result.getLastModified());
+        }
+        owner.setCachedServices(cacheEntry);
+        return cacheEntry;
+    }
+
+    private DiscoveryCache.Entry revalidateServices(final ServiceOwner owner, final DiscoveryCache.Entry cachedEntry) {
+        DiscoveryCache discoveryCache = getDiscoveryCache(owner);
+        DiscoveryCache.Entry cacheEntry;
+        if (cachedEntry.getUserId().equals(UNKNOWN_USER_ID) || discoveryCache == null) {
+            cacheEntry = cachedEntry.revalidate();
+        } else {
+            cacheEntry = discoveryCache.revalidate(cachedEntry);
+        }
+        owner.setCachedServices(cacheEntry);
+        return cacheEntry;
+    }
+
+    /**
+     * Gets a fresh copy of the services from the discovery service without blocking the caller.
+     * Joins the request in flight, if there's one.
+     * @param owner The user to discover the services for.
+     * @param cachedEntry The stale services, whose validators make the request conditional.
+     */
+    private void refreshServices(final ServiceOwner owner, final DiscoveryCache.Entry cachedEntry) {
+        discoverAndCacheServices(owner, cachedEntry);
+    }
+
+    private ListenableFuture<DiscoveryFetcher.Result> discoverServices(final ServiceOwner owner, final DiscoveryCache.Entry cachedEntry) {
+        // Without validators there's nothing to compare against, ask for the services unconditionally
+        final DiscoveryCache.Entry conditionEntry = cachedEntry != null && cachedEntry.hasValidators() ? cachedEntry : null;
+        ListenableFuture<RetryPolicy.Result<DiscoveryFetcher.Result>> result = mRetryPolicy.executeAsync(new RetryPolicy.AsyncOperation<DiscoveryFetcher.Result>() {
+            @Override
+            public ListenableFuture<DiscoveryFetcher.Result> run() {
+                return DiscoveryFetcher.fetchAsync(mDiscoveryResourceUrl, owner, conditionEntry);
+            }
+        });
+        return Futures.transform(result, new Function<RetryPolicy.Result<DiscoveryFetcher.Result>, DiscoveryFetcher.Result>() {
+            @Override
+            public DiscoveryFetcher.Result apply(RetryPolicy.Result<DiscoveryFetcher.Result> result) {
+                DiagnosticLog.i(TAG, "discoverServices - Discovery took {} attempts", result.getAttempts());
+                return result.getValue();
+            }
+        });
+    }
+
+    private static String getOwnerKey(final ServiceOwner owner) {
+        String userId = owner.getUserId();
+        return userId == null ? UNKNOWN_USER_ID : userId;
+    }
+
+    boolean isFresh(final DiscoveryCache.Entry cacheEntry) {
+        return cacheEntry.getAgeMillis() <= mTimeToLiveMillis;
+    }
+
+    boolean isUsable(final DiscoveryCache.Entry cacheEntry) {
+        return cacheEntry.getAgeMillis() <= mTimeToLiveMillis + mStalePeriodMillis;
+    }
+
+    private DiscoveryCache getDiscoveryCache(final ServiceOwner owner) {
+        Context context = owner.getApplicationContext();
+        if (context == null) {
+            return null;
+        }
+        return DiscoveryCache.getInstance(context);
+    }
+
+    /**
+     * The user connected with the {@link AuthenticationManager}, whose services are kept in
+     * memory by the DiscoveryManager itself.
+     */
+    private class ConnectedUser implements ServiceOwner {
+        @Override
+        public String getUserId() {
+            return AuthenticationManager.getInstance().getConnectedUserId();
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return AuthenticationManager.getInstance().getApplicationContext();
+        }
+
+        @Override
+        public ADALDependencyResolver getDependencyResolver(final String resourceId) {
+            return AuthenticationManager.getInstance().getDependencyResolver(resourceId);
+        }
+
+        @Override
+        public ListenableFuture<AuthenticationResult> acquireTokenAsync(final String resourceId) {
+            return AuthenticationManager.getInstance().acquireTokenAsync(resourceId);
+        }
+
+        @Override
+        public DiscoveryCache.Entry getCachedServices() {
+            return mCacheEntry;
+        }
 
-            // We haven't cached the services but couldn't find the requested service in discovery service
-            NoSuchElementException noSuchElementException = new NoSuchElementException("The " + capability + " capability was not found in the user services.");
-            Log.e(TAG, "getServiceInfoFromDiscoveryService - " + noSuchElementException.getMessage());
-            operationCallback.onError(noSuchElementException);
-        } catch (InterruptedException | ExecutionException e) {
-            Log.e(TAG, "getServiceInfoFromDiscoveryService - " + e.getMessage());
-            operationCallback.onError(e);
+        @Override
+        public void setCachedServices(final DiscoveryCache.Entry cacheEntry) {
+            mCacheEntry = cacheEntry;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets.
+ * Each power of two is split in four buckets, so percentiles are accurate to within 25% of the
+ * recorded value, for values between one microsecond and several hours. Recording a value
+ * doesn't allocate, so it's cheap enough for the hot paths.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 64 * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a value.
+     * @param value The value, in microseconds. Negative values are recorded as zero.
+     */
+    public void record(final long value) {
+        long positiveValue = Math.max(0, value);
+        mBuckets.incrementAndGet(getBucketIndex(positiveValue));
+        mCount.incrementAndGet();
+        mSum.addAndGet(positiveValue);
+
+        long max;
+        while (positiveValue > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, positiveValue)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Gets the value below which the provided percentage of the recorded values fall.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the bucket that contains the percentile, or zero if nothing
+     * has been recorded.
+     */
+    public long getPercentile(final double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long threshold = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= threshold) {
+                return Math.min(getBucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Forgets all the recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int getBucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getBucketUpperBound(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        if (exponent > 62) {
+            return Long.MAX_VALUE;
+        }
+        // Subtract first, the last bucket ends at Long.MAX_VALUE
+        long base = 1L << exponent;
+        return base - 1 + (subBucket + 1) * (base >>> SUB_BUCKET_BITS);
+    }
+}
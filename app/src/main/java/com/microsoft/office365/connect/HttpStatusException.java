@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+/**
+ * Reports an HTTP error response from an Office 365 service called without the SDK.
+ * The {@link RetryPolicy} reads the status code and the Retry-After header from it directly.
+ */
+public class HttpStatusException extends Exception {
+
+    private final int mStatusCode;
+    private final String mRetryAfter;
+
+    /**
+     * @param statusCode The HTTP status code of the response.
+     * @param retryAfter The value of the Retry-After header, or null if there wasn't one.
+     * @param message A description of the failure.
+     */
+    HttpStatusException(final int statusCode, final String retryAfter, final String message) {
+        super(message);
+        mStatusCode = statusCode;
+        mRetryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return The value of the Retry-After header, or null if there wasn't one.
+     */
+    public String getRetryAfter() {
+        return mRetryAfter;
+    }
+}
@@ -4,8 +4,13 @@
  */
 package com.microsoft.office365.connect;
 
-import android.util.Log;
-
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.aad.adal.AuthenticationResult;
+import com.microsoft.services.discovery.ServiceInfo;
 import com.microsoft.services.orc.resolvers.ADALDependencyResolver;
 import com.microsoft.services.outlook.BodyType;
 import com.microsoft.services.outlook.EmailAddress;
@@ -15,9 +20,15 @@ import com.microsoft.services.outlook.Recipient;
 import com.microsoft.services.outlook.fetchers.OutlookClient;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.MissingResourceException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Handles the creation of the message and contacting the mail service to send the message.
@@ -28,20 +39,79 @@ public class MailManager {
 
     private static final String TAG = "MailManager";
 
-    private String mServiceResourceId;
-    private String mServiceEndpointUri;
+    /**
+     * The most recipients the Office 365 service accepts on a single message, To, Cc and Bcc
+     * together.
+     */
+    public static final int MAX_RECIPIENTS_PER_MESSAGE = 500;
+
+    /**
+     * The longest the outbox waits for a send, past the longest the default retry policy keeps
+     * trying.
+     */
+    static final long OUTBOX_SEND_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(3);
+
+    // Set by the discovery callbacks on worker threads, read by the sends on other threads
+    private volatile String mServiceResourceId;
+    private volatile String mServiceEndpointUri;
+    private final ConcurrentHashMap<String, OutlookClient> mOutlookClients = new ConcurrentHashMap<>();
+    // Sending mail isn't idempotent, a send that may have reached the service isn't repeated
+    private volatile RetryPolicy mRetryPolicy = RetryPolicy.createNonIdempotent();
+    // Stay under the per mailbox limit up front rather than waiting for the service to throttle
+    private volatile SendRateLimiter mRateLimiter = SendRateLimiter.createPaced();
+
+    /**
+     * Sends an email message using the Office 365 mail capability from the address of the
+     * signed in user. Callback variant of {@link MailManager#sendMailAsync(MailMessage)}.
+     * You need to initialize the MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param emailAddress The recipient email address.
+     * @param subject The subject to use in the mail message.
+     * @param body The body of the message.
+     * @param operationCallback The callback to which return the result or error.
+     * @return A handle to cancel the send.
+     */
+    public OperationHandle sendMail(final String emailAddress, final String subject, final String body, final OperationCallback<Integer> operationCallback) {
+        return sendMail(emailAddress, subject, body, Deadline.NONE, operationCallback);
+    }
 
     /**
      * Sends an email message using the Office 365 mail capability from the address of the
-     * signed in user. You need to initialize the MailManager by calling
+     * signed in user, giving up if it takes longer than the timeout, retries included.
+     * Callback variant of {@link MailManager#sendMailAsync(MailMessage)}.
+     * You need to initialize the MailManager by calling
      * - {@link MailManager#setServiceResourceId(String)}
      * - {@link MailManager#setServiceEndpointUri(String)}
      * @param emailAddress The recipient email address.
      * @param subject The subject to use in the mail message.
      * @param body The body of the message.
+     * @param timeoutMillis The time the send has to complete, after which the callback gets a
+     *                      TimeoutException. Zero for no deadline.
      * @param operationCallback The callback to which return the result or error.
+     * @return A handle to cancel the send.
+     */
+    public OperationHandle sendMail(final String emailAddress, final String subject, final String body, final long timeoutMillis, final OperationCallback<Integer> operationCallback) {
+        ListenableFuture<Integer> mailId = Deadline.withTimeout(
+                sendMailAsync(new MailMessage(emailAddress, subject, body)),
+                timeoutMillis);
+        Futures.addCallback(mailId, new OperationFutureCallback<>(operationCallback));
+        return new OperationHandle(mailId);
+    }
+
+    /**
+     * Sends an email message using the Office 365 mail capability from the address of the
+     * signed in user. No thread is blocked while waiting for the service, transient failures
+     * are attempted again as the retry policy allows. The message can have up to
+     * {@link MailManager#MAX_RECIPIENTS_PER_MESSAGE} recipients, use
+     * {@link MailManager#sendMailToAllAsync(MailMessage)} for more. You need to initialize the
+     * MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param message The message to send.
+     * @return A future with the id returned by the service.
      */
-    public void sendMail(final String emailAddress, final String subject, final String body, final OperationCallback<Integer> operationCallback) {
+    public ListenableFuture<Integer> sendMailAsync(final MailMessage message) {
 
         if(!isReady()){
             throw new MissingResourceException(
@@ -50,51 +120,599 @@ public class MailManager {
                     "ServiceResourceId, ServiceEndPointUri"
             );
         }
+        if (message.getRecipientCount() > MAX_RECIPIENTS_PER_MESSAGE) {
+            throw new IllegalArgumentException("The message has too many recipients, send it with sendMailToAllAsync");
+        }
+
+        ListenableFuture<RetryPolicy.Result<Integer>> result = sendMessageAsync(message);
+        Futures.addCallback(result, new FutureCallback<RetryPolicy.Result<Integer>>() {
+            @Override
+            public void onSuccess(RetryPolicy.Result<Integer> result) {
+                DiagnosticLog.i(TAG, "sendMail - Email with ID: {} sent after {} attempts", result.getValue(), result.getAttempts());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                DiagnosticLog.e(TAG, "sendMail - {}", t.getMessage());
+            }
+        });
+        ListenableFuture<Integer> mailId = Futures.transform(result, new Function<RetryPolicy.Result<Integer>, Integer>() {
+            @Override
+            public Integer apply(RetryPolicy.Result<Integer> result) {
+                return result.getValue();
+            }
+        });
+        return mailId;
+    }
+
+    /**
+     * Sends an email message to many recipients using the Office 365 mail capability from the
+     * address of the signed in user. Callback variant of
+     * {@link MailManager#sendMailToAllAsync(MailMessage)}.
+     * You need to initialize the MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param toRecipients The addresses of the To recipients.
+     * @param ccRecipients The addresses of the Cc recipients, or null.
+     * @param bccRecipients The addresses of the Bcc recipients, or null.
+     * @param subject The subject to use in the mail message.
+     * @param body The body of the message.
+     * @param operationCallback The callback to which return the ids of the messages sent, or
+     *                          the error.
+     * @return A handle to cancel the messages that aren't sent yet.
+     */
+    public OperationHandle sendMail(final Collection<String> toRecipients, final Collection<String> ccRecipients, final Collection<String> bccRecipients, final String subject, final String body, final OperationCallback<List<Integer>> operationCallback) {
+        ListenableFuture<List<Integer>> mailIds = sendMailToAllAsync(new MailMessage(toRecipients, ccRecipients, bccRecipients, subject, body));
+        Futures.addCallback(mailIds, new OperationFutureCallback<>(operationCallback));
+        return new OperationHandle(mailIds);
+    }
+
+    /**
+     * Sends an email message to all of its recipients, however many there are. The message is
+     * split into the fewest messages the service accepts, of up to
+     * {@link MailManager#MAX_RECIPIENTS_PER_MESSAGE} recipients each, which are sent at the same
+     * time. Each of them is attempted again after transient failures as the retry policy allows.
+     * You need to initialize the MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param message The message to send.
+     * @return A future with the ids returned by the service, one per message sent. Fails if any
+     * of the messages couldn't be sent, the others may have been sent.
+     */
+    public ListenableFuture<List<Integer>> sendMailToAllAsync(final MailMessage message) {
+
+        if(!isReady()){
+            throw new MissingResourceException(
+                    "You must set the ServiceResourceId and ServiceEndPointUri before using sendMailToAllAsync",
+                    "MailManager",
+                    "ServiceResourceId, ServiceEndPointUri"
+            );
+        }
+
+        final List<MailMessage> messages = message.split(MAX_RECIPIENTS_PER_MESSAGE);
+        List<ListenableFuture<Integer>> mailIds = new ArrayList<>(messages.size());
+        for (MailMessage part : messages) {
+            mailIds.add(Futures.transform(sendMessageAsync(part), new Function<RetryPolicy.Result<Integer>, Integer>() {
+                @Override
+                public Integer apply(RetryPolicy.Result<Integer> result) {
+                    return result.getValue();
+                }
+            }));
+        }
+
+        ListenableFuture<List<Integer>> result = Futures.allAsList(mailIds);
+        Futures.addCallback(result, new FutureCallback<List<Integer>>() {
+            @Override
+            public void onSuccess(List<Integer> result) {
+                DiagnosticLog.i(TAG, "sendMailToAllAsync - Email to {} recipients sent in {} messages", message.getRecipientCount(), messages.size());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                DiagnosticLog.e(TAG, "sendMailToAllAsync - {}", t.getMessage());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends a templated email message, rendered for the recipient with the compiled template.
+     * You need to initialize the MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param template The compiled subject and body.
+     * @param recipient The recipient and the values of the template arguments.
+     * @return A future with the id returned by the service.
+     */
+    public ListenableFuture<Integer> sendMailAsync(final MailTemplate template, final MailTemplate.Recipient recipient) {
+        return sendMailAsync(template.render(recipient));
+    }
+
+    /**
+     * Sends an email message whose body and attachments are read from streams while they're
+     * uploaded, so large messages don't need to fit in memory. Transient failures are attempted
+     * again as the retry policy allows, each attempt opens the content again and gets a fresh
+     * token. The upload runs on the dispatcher of the {@link SharedHttpClient}, within its limit
+     * of requests per host. You need to initialize the MailManager
+     * by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param message The message to send.
+     * @return A future with the HTTP status code returned by the service.
+     */
+    public ListenableFuture<Integer> sendMailStreamingAsync(final StreamingMailMessage message) {
+
+        if(!isReady()){
+            throw new MissingResourceException(
+                    "You must set the ServiceResourceId and ServiceEndPointUri before using sendMailStreamingAsync",
+                    "MailManager",
+                    "ServiceResourceId, ServiceEndPointUri"
+            );
+        }
 
-        // Since we're doing considerable work, let's get out of the main thread
-        new Thread(new Runnable() {
+        final String userId = AuthenticationManager.getInstance().getConnectedUserId();
+        final String serviceResourceId = mServiceResourceId;
+        final String serviceEndpointUri = mServiceEndpointUri;
+        ListenableFuture<RetryPolicy.Result<Integer>> result = mRetryPolicy.executeAsync(new RetryPolicy.AsyncOperation<Integer>() {
             @Override
-            public void run() {
-                try {
-                    AuthenticationManager.getInstance().setResourceId(mServiceResourceId);
-                    ADALDependencyResolver dependencyResolver = (ADALDependencyResolver) AuthenticationManager
-                            .getInstance()
-                            .getDependencyResolver();
+            public ListenableFuture<Integer> run() {
+                ListenableFuture<AuthenticationResult> token = Futures.transform(
+                        mRateLimiter.acquire(userId, serviceEndpointUri),
+                        new AsyncFunction<Void, AuthenticationResult>() {
+                            @Override
+                            public ListenableFuture<AuthenticationResult> apply(Void permit) {
+                                return AuthenticationManager
+                                        .getInstance()
+                                        .acquireTokenAsync(serviceResourceId);
+                            }
+                        });
+                return Futures.transform(token, new AsyncFunction<AuthenticationResult, Integer>() {
+                    @Override
+                    public ListenableFuture<Integer> apply(final AuthenticationResult authenticationResult) {
+                        final long startNanos = System.nanoTime();
+                        ListenableFuture<Integer> upload = StreamingMailSender.sendAsync(serviceEndpointUri, authenticationResult.getAccessToken(), message);
+                        Futures.addCallback(upload, new FutureCallback<Integer>() {
+                            @Override
+                            public void onSuccess(Integer statusCode) {
+                                Metrics.getInstance().recordTiming(Metrics.MAIL_SEND_NETWORK, startNanos, true);
+                            }
 
-                    OutlookClient mailClient = new OutlookClient(mServiceEndpointUri, dependencyResolver);
+                            @Override
+                            public void onFailure(Throwable t) {
+                                Metrics.getInstance().recordTiming(Metrics.MAIL_SEND_NETWORK, startNanos, false);
+                            }
+                        });
+                        reportThrottling(userId, serviceEndpointUri, upload);
+                        return upload;
+                    }
+                });
+            }
+        });
 
-                    // Prepare the message.
-                    List<Recipient> recipientList = new ArrayList<>();
+        Futures.addCallback(result, new FutureCallback<RetryPolicy.Result<Integer>>() {
+            @Override
+            public void onSuccess(RetryPolicy.Result<Integer> result) {
+                DiagnosticLog.i(TAG, "sendMailStreamingAsync - Email with {} attachments sent after {} attempts", message.getAttachments().size(), result.getAttempts());
+            }
 
-                    Recipient recipient = new Recipient();
-                    EmailAddress email = new EmailAddress();
-                    email.setAddress(emailAddress);
-                    recipient.setEmailAddress(email);
-                    recipientList.add(recipient);
+            @Override
+            public void onFailure(Throwable t) {
+                DiagnosticLog.e(TAG, "sendMailStreamingAsync - {}", t.getMessage());
+            }
+        });
+        return Futures.transform(result, new Function<RetryPolicy.Result<Integer>, Integer>() {
+            @Override
+            public Integer apply(RetryPolicy.Result<Integer> result) {
+                return result.getValue();
+            }
+        });
+    }
 
-                    Message messageToSend = new Message();
-                    messageToSend.setToRecipients(recipientList);
+    /**
+     * Sends an email message from the address of one of the accounts of the
+     * {@link SessionStore}, which doesn't need to be the connected user. The mail service of the
+     * account is discovered if needed, and the message is sent with the account's own client,
+     * so sends for different accounts run in parallel. The MailManager doesn't need to be
+     * initialized beforehand.
+     * @param session The session of the account to send from.
+     * @param message The message to send.
+     * @return A future with the id returned by the service.
+     */
+    public ListenableFuture<Integer> sendMailAsync(final AccountSession session, final MailMessage message) {
+        if (message.getRecipientCount() > MAX_RECIPIENTS_PER_MESSAGE) {
+            throw new IllegalArgumentException("The message has too many recipients, split it with MailMessage.split");
+        }
+        ListenableFuture<ServiceInfo> mailService = DiscoveryManager
+                .getInstance()
+                .getServiceInfoAsync(session, Constants.MAIL_CAPABILITY);
 
-                    ItemBody bodyItem = new ItemBody();
-                    bodyItem.setContentType(BodyType.HTML);
-                    bodyItem.setContent(body);
-                    messageToSend.setBody(bodyItem);
-                    messageToSend.setSubject(subject);
+        // Build and send the message on a worker thread
+        ListenableFuture<RetryPolicy.Result<Integer>> result = Futures.transform(mailService, new AsyncFunction<ServiceInfo, RetryPolicy.Result<Integer>>() {
+            @Override
+            public ListenableFuture<RetryPolicy.Result<Integer>> apply(final ServiceInfo serviceInfo) {
+                final OutlookClient mailClient = session.getOutlookClient(
+                        serviceInfo.getServiceEndpointUri(),
+                        serviceInfo.getServiceResourceId());
+                return mRetryPolicy.executeAsync(new RetryPolicy.AsyncOperation<Integer>() {
+                    @Override
+                    public ListenableFuture<Integer> run() {
+                        return sendMessagePaced(session.getUserId(), mailClient, serviceInfo.getServiceEndpointUri(), message);
+                    }
+                });
+            }
+        }, WorkerPool.getInstance());
+
+        Futures.addCallback(result, new FutureCallback<RetryPolicy.Result<Integer>>() {
+            @Override
+            public void onSuccess(RetryPolicy.Result<Integer> result) {
+                DiagnosticLog.i(TAG, "sendMailAsync - Email from {} sent after {} attempts", session.getDisplayableId(), result.getAttempts());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                DiagnosticLog.e(TAG, "sendMailAsync - {}", t.getMessage());
+            }
+        });
+        return Futures.transform(result, new Function<RetryPolicy.Result<Integer>, Integer>() {
+            @Override
+            public Integer apply(RetryPolicy.Result<Integer> result) {
+                return result.getValue();
+            }
+        });
+    }
+
+    /**
+     * Discovers the mail service of the signed in user, gets a token for it and sends an email
+     * message, as a single chain of asynchronous steps. The MailManager is initialized with the
+     * discovered service along the way, so it doesn't need to be initialized beforehand.
+     * @param message The message to send.
+     * @return A future with the id returned by the service.
+     */
+    public ListenableFuture<Integer> discoverAndSendMailAsync(final MailMessage message) {
+        ListenableFuture<ServiceInfo> mailService = DiscoveryManager
+                .getInstance()
+                .getServiceInfoAsync(Constants.MAIL_CAPABILITY);
 
-                    // Contact the Office 365 service and deliver the message.
-                    Integer mailId = mailClient
-                            .getMe()
-                            .getOperations()
-                            .sendMail(messageToSend, true).get();
+        ListenableFuture<ServiceInfo> authorizedMailService = Futures.transform(mailService, new AsyncFunction<ServiceInfo, ServiceInfo>() {
+            @Override
+            public ListenableFuture<ServiceInfo> apply(final ServiceInfo serviceInfo) {
+                ListenableFuture<AuthenticationResult> token = AuthenticationManager
+                        .getInstance()
+                        .acquireTokenAsync(serviceInfo.getServiceResourceId());
+                return Futures.transform(token, new Function<AuthenticationResult, ServiceInfo>() {
+                    @Override
+                    public ServiceInfo apply(AuthenticationResult authenticationResult) {
+                        return serviceInfo;
+                    }
+                });
+            }
+        });
 
-                    Log.i(TAG, "sendMail - Email with ID: " + mailId + "sent");
-                    operationCallback.onSuccess(mailId);
-                } catch (InterruptedException | ExecutionException e) {
-                    Log.e(TAG, "sendMail - " + e.getMessage());
-                    operationCallback.onError(e);
+        // ADAL reports the token on the main thread, build and send the message on a worker thread
+        return Futures.transform(authorizedMailService, new AsyncFunction<ServiceInfo, Integer>() {
+            @Override
+            public ListenableFuture<Integer> apply(ServiceInfo serviceInfo) {
+                setServiceResourceId(serviceInfo.getServiceResourceId());
+                setServiceEndpointUri(serviceInfo.getServiceEndpointUri());
+                return sendMailAsync(message);
+            }
+        }, WorkerPool.getInstance());
+    }
+
+    /**
+     * Sends a batch of email messages using the Office 365 mail capability from the address of
+     * the signed in user. Up to maxInFlight messages are sent at the same time, as soon as one
+     * is done the next one starts. No thread is blocked while the messages are in flight.
+     * You need to initialize the MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param messages The messages to send.
+     * @param maxInFlight The maximum number of messages being sent at the same time.
+     * @param batchOperationCallback The callback to which return the result or error of each
+     *                               message, the progress and the outcome of the batch.
+     */
+    public void sendMailBatch(final Collection<MailMessage> messages, final int maxInFlight, final BatchOperationCallback<MailMessage, Integer> batchOperationCallback) {
+
+        if(!isReady()){
+            throw new MissingResourceException(
+                    "You must set the ServiceResourceId and ServiceEndPointUri before using sendMailBatch",
+                    "MailManager",
+                    "ServiceResourceId, ServiceEndPointUri"
+            );
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        final List<MailMessage> batch = new ArrayList<>(messages);
+        sendMailBatch(batch.size(), new MessageSource() {
+            @Override
+            public MailMessage get(int index) {
+                return batch.get(index);
+            }
+        }, maxInFlight, batchOperationCallback);
+    }
+
+    /**
+     * Sends a templated email message to each of the recipients, using the Office 365 mail
+     * capability from the address of the signed in user. Each message is rendered right before
+     * it's sent, instead of rendering the whole batch upfront.
+     * Up to maxInFlight messages are sent at the same time. You need to initialize the
+     * MailManager by calling
+     * - {@link MailManager#setServiceResourceId(String)}
+     * - {@link MailManager#setServiceEndpointUri(String)}
+     * @param template The compiled subject and body.
+     * @param recipients The recipients and the values of the template arguments for each.
+     * @param maxInFlight The maximum number of messages being sent at the same time.
+     * @param batchOperationCallback The callback to which return the result or error of each
+     *                               rendered message, the progress and the outcome of the batch.
+     */
+    public void sendMailBatch(final MailTemplate template, final List<MailTemplate.Recipient> recipients, final int maxInFlight, final BatchOperationCallback<MailMessage, Integer> batchOperationCallback) {
+
+        if(!isReady()){
+            throw new MissingResourceException(
+                    "You must set the ServiceResourceId and ServiceEndPointUri before using sendMailBatch",
+                    "MailManager",
+                    "ServiceResourceId, ServiceEndPointUri"
+            );
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        final List<MailTemplate.Recipient> batch = new ArrayList<>(recipients);
+        sendMailBatch(batch.size(), new MessageSource() {
+            @Override
+            public MailMessage get(int index) {
+                return template.render(batch.get(index));
+            }
+        }, maxInFlight, batchOperationCallback);
+    }
+
+    private void sendMailBatch(final int totalCount, final MessageSource batch, final int maxInFlight, final BatchOperationCallback<MailMessage, Integer> batchOperationCallback) {
+        if (totalCount == 0) {
+            batchOperationCallback.onComplete(new BatchResult<>(new AtomicReferenceArray<BatchResult.ItemResult<MailMessage, Integer>>(0)));
+            return;
+        }
+
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicInteger completedCount = new AtomicInteger();
+        final AtomicInteger failedCount = new AtomicInteger();
+        final AtomicReferenceArray<BatchResult.ItemResult<MailMessage, Integer>> itemResults = new AtomicReferenceArray<>(totalCount);
+
+        // Each lane takes the next pending message as soon as it's done with the previous one,
+        // so there are always maxInFlight messages being sent until the batch runs out
+        int laneCount = Math.min(maxInFlight, totalCount);
+        for (int i = 0; i < laneCount; i++) {
+            final BatchLane lane = new BatchLane(totalCount, batch, nextIndex, completedCount, failedCount, itemResults, batchOperationCallback);
+            // Since we're doing considerable work, let's get out of the main thread
+            try {
+                WorkerPool.getInstance().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lane.sendNext();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The pool is saturated, start the lane here rather than losing it. Starting a
+                // send doesn't wait for the service
+                lane.sendNext();
+            }
+        }
+    }
+
+    /**
+     * Sends the messages of a batch one after the other. The next message is started by the
+     * callback of the previous one, in whatever thread completed it, instead of going back to
+     * the worker pool, where a saturated queue could reject it and leave the batch unfinished.
+     * Sends that complete right away, such as failures before the request goes out, are looped
+     * over instead of being nested, so the stack doesn't grow with them.
+     */
+    private class BatchLane {
+        private final int mTotalCount;
+        private final MessageSource mBatch;
+        private final AtomicInteger mNextIndex;
+        private final AtomicInteger mCompletedCount;
+        private final AtomicInteger mFailedCount;
+        private final AtomicReferenceArray<BatchResult.ItemResult<MailMessage, Integer>> mItemResults;
+        private final BatchOperationCallback<MailMessage, Integer> mBatchOperationCallback;
+        // Pending requests to start the next message, only the first requester loops over them
+        private final AtomicInteger mPendingStarts = new AtomicInteger();
+
+        BatchLane(final int totalCount, final MessageSource batch, final AtomicInteger nextIndex,
+                  final AtomicInteger completedCount, final AtomicInteger failedCount,
+                  final AtomicReferenceArray<BatchResult.ItemResult<MailMessage, Integer>> itemResults,
+                  final BatchOperationCallback<MailMessage, Integer> batchOperationCallback) {
+            mTotalCount = totalCount;
+            mBatch = batch;
+            mNextIndex = nextIndex;
+            mCompletedCount = completedCount;
+            mFailedCount = failedCount;
+            mItemResults = itemResults;
+            mBatchOperationCallback = batchOperationCallback;
+        }
+
+        void sendNext() {
+            if (mPendingStarts.getAndIncrement() > 0) {
+                // Called back from within the loop below, it takes care of it
+                return;
+            }
+            do {
+                startNext();
+            } while (mPendingStarts.decrementAndGet() > 0);
+        }
+
+        private void startNext() {
+            final int index = mNextIndex.getAndIncrement();
+            if (index >= mTotalCount) {
+                return;
+            }
+
+            final MailMessage message;
+            ListenableFuture<RetryPolicy.Result<Integer>> result;
+            try {
+                message = mBatch.get(index);
+            } catch (RuntimeException e) {
+                onItemFailed(index, null, e);
+                return;
+            }
+            try {
+                result = sendMessageAsync(message);
+            } catch (RuntimeException e) {
+                result = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(result, new FutureCallback<RetryPolicy.Result<Integer>>() {
+                @Override
+                public void onSuccess(RetryPolicy.Result<Integer> result) {
+                    mItemResults.set(index, new BatchResult.ItemResult<>(message, result.getValue(), null, result.getAttempts()));
+                    mBatchOperationCallback.onItemSuccess(index, message, result.getValue());
+                    onItemDone();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    onItemFailed(index, message, t);
                 }
+            });
+        }
+
+        private void onItemFailed(final int index, final MailMessage message, final Throwable t) {
+            DiagnosticLog.e(TAG, "sendMailBatch - {}", t.getMessage());
+            Exception e = t instanceof Exception ? (Exception) t : new ExecutionException(t.getMessage(), t);
+            mFailedCount.incrementAndGet();
+            int attempts = e instanceof RetryPolicy.RetryException ? ((RetryPolicy.RetryException) e).getAttempts() : 1;
+            mItemResults.set(index, new BatchResult.ItemResult<MailMessage, Integer>(message, null, e, attempts));
+            mBatchOperationCallback.onItemError(index, message, e);
+            onItemDone();
+        }
+
+        private void onItemDone() {
+            int completed = mCompletedCount.incrementAndGet();
+            mBatchOperationCallback.onProgress(completed, mFailedCount.get(), mTotalCount);
+            if (completed == mTotalCount) {
+                DiagnosticLog.i(TAG, "sendMailBatch - Batch of {} emails done", mTotalCount);
+                mBatchOperationCallback.onComplete(new BatchResult<>(mItemResults));
+            } else {
+                sendNext();
             }
-        }).start();
+        }
+    }
+
+    /**
+     * Gives the messages of a batch by index, so they can be created right before they're sent.
+     */
+    private interface MessageSource {
+        MailMessage get(int index);
+    }
+
+    /**
+     * Sends the message, attempting it again after transient failures as the retry policy
+     * allows, without blocking.
+     * @param message The message to send.
+     * @return A future with the id returned by the service and the number of attempts it took.
+     */
+    ListenableFuture<RetryPolicy.Result<Integer>> sendMessageAsync(final MailMessage message) {
+        final String serviceEndpointUri = mServiceEndpointUri;
+        final String serviceResourceId = mServiceResourceId;
+        // The attempts run on the worker pool, reading the preferences and building the client
+        // included, the calling thread is free right away
+        return mRetryPolicy.executeAsync(new RetryPolicy.AsyncOperation<Integer>() {
+            @Override
+            public ListenableFuture<Integer> run() {
+                String userId = AuthenticationManager.getInstance().getConnectedUserId();
+                return sendMessagePaced(userId, getOutlookClient(serviceEndpointUri, serviceResourceId), serviceEndpointUri, message);
+            }
+        });
+    }
+
+    /**
+     * Sends the message once the rate limiter lets it go, so every attempt is paced, retries
+     * included. A throttled attempt holds back the next sends of the account.
+     * @param userId The id of the account sending the message.
+     * @param mailClient The client of the account to send from.
+     * @param serviceEndpointUri The endpoint of the client.
+     * @param message The message to send.
+     * @return A future with the id returned by the service.
+     */
+    private ListenableFuture<Integer> sendMessagePaced(final String userId, final OutlookClient mailClient, final String serviceEndpointUri, final MailMessage message) {
+        // A permit that comes later is handed out on the limiter's timer, don't send from it
+        return Futures.transform(mRateLimiter.acquire(userId, serviceEndpointUri), new AsyncFunction<Void, Integer>() {
+            @Override
+            public ListenableFuture<Integer> apply(Void permit) {
+                ListenableFuture<Integer> mailId = sendMessageOnce(mailClient, message);
+                reportThrottling(userId, serviceEndpointUri, mailId);
+                return mailId;
+            }
+        }, WorkerPool.getInstance());
+    }
+
+    private void reportThrottling(final String userId, final String serviceEndpointUri, final ListenableFuture<Integer> request) {
+        final SendRateLimiter rateLimiter = mRateLimiter;
+        Futures.addCallback(request, new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                rateLimiter.onRequestFailed(userId, serviceEndpointUri, t);
+            }
+        });
+    }
+
+    /**
+     * Creates the message and contacts the Office 365 service to deliver it.
+     * @param mailClient The client of the account to send from.
+     * @param message The message to send.
+     * @return A future with the id returned by the service.
+     */
+    private ListenableFuture<Integer> sendMessageOnce(final OutlookClient mailClient, final MailMessage message) {
+        // Prepare the message.
+        Message messageToSend = new Message();
+        messageToSend.setToRecipients(createRecipientList(message.getToRecipients()));
+        if (!message.getCcRecipients().isEmpty()) {
+            messageToSend.setCcRecipients(createRecipientList(message.getCcRecipients()));
+        }
+        if (!message.getBccRecipients().isEmpty()) {
+            messageToSend.setBccRecipients(createRecipientList(message.getBccRecipients()));
+        }
+
+        ItemBody bodyItem = new ItemBody();
+        bodyItem.setContentType(BodyType.HTML);
+        bodyItem.setContent(message.getBody());
+        messageToSend.setBody(bodyItem);
+        messageToSend.setSubject(message.getSubject());
+
+        // Contact the Office 365 service and deliver the message.
+        final long startNanos = System.nanoTime();
+        ListenableFuture<Integer> mailId = mailClient
+                .getMe()
+                .getOperations()
+                .sendMail(messageToSend, true);
+        Futures.addCallback(mailId, new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                Metrics.getInstance().recordTiming(Metrics.MAIL_SEND_NETWORK, startNanos, true);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Metrics.getInstance().recordTiming(Metrics.MAIL_SEND_NETWORK, startNanos, false);
+            }
+        });
+        return mailId;
+    }
+
+    private static List<Recipient> createRecipientList(final List<String> emailAddresses) {
+        List<Recipient> recipientList = new ArrayList<>(emailAddresses.size());
+        for (String emailAddress : emailAddresses) {
+            Recipient recipient = new Recipient();
+            EmailAddress email = new EmailAddress();
+            email.setAddress(emailAddress);
+            recipient.setEmailAddress(email);
+            recipientList.add(recipient);
+        }
+        return recipientList;
     }
 
     public static synchronized MailManager getInstance() {
@@ -122,11 +740,98 @@ public class MailManager {
         this.mServiceEndpointUri = serviceEndpointUri;
     }
 
+    /**
+     * Changes how failed sends are attempted again. A policy that isn't created as
+     * non-idempotent may send a message twice, when a send fails after reaching the service.
+     * @param retryPolicy The policy to use for the next sends.
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Changes how fast sends go out for each account and endpoint. The default paces them under
+     * the service limit, use {@link SendRateLimiter#createPaced(double, int)} to change the rate
+     * or burst, or {@link SendRateLimiter#createAdaptive()} to only hold sends back when the
+     * service throttles them.
+     * @param rateLimiter The limiter to use for the next sends.
+     */
+    public void setRateLimiter(final SendRateLimiter rateLimiter) {
+        this.mRateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return The service resource id the tokens for the sends are requested for.
+     */
+    String getServiceResourceId() {
+        return mServiceResourceId;
+    }
+
+    /**
+     * @return The service endpoint uri the messages are sent to.
+     */
+    String getServiceEndpointUri() {
+        return mServiceEndpointUri;
+    }
+
+    /**
+     * @return The limiter the sends go through.
+     */
+    SendRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Forgets the Outlook clients created for the signed in user. The next send creates new
+     * clients with the resolvers of the user that is signed in at that moment.
+     */
+    void clearClients() {
+        mOutlookClients.clear();
+    }
+
+    /**
+     * Creates the Outlook client for the current service endpoint and resource ahead of the
+     * first send, so the send doesn't pay for it. Does nothing if the MailManager hasn't been
+     * initialized yet.
+     */
+    void prepareClient() {
+        if (isReady()) {
+            getOutlookClient(mServiceEndpointUri, mServiceResourceId);
+        }
+    }
+
+    /**
+     * Gets the Outlook client for the provided endpoint and resource. Clients are created on
+     * first use and then reused, so back to back sends share their connection and serializer
+     * state.
+     * @param serviceEndpointUri The service endpoint uri obtained from the discovery service.
+     * @param serviceResourceId The service resource id obtained from the discovery service.
+     * @return The Outlook client.
+     */
+    private OutlookClient getOutlookClient(final String serviceEndpointUri, final String serviceResourceId) {
+        String key = serviceResourceId + " " + serviceEndpointUri;
+        OutlookClient outlookClient = mOutlookClients.get(key);
+        if (outlookClient == null) {
+            ADALDependencyResolver dependencyResolver = AuthenticationManager
+                    .getInstance()
+                    .getDependencyResolver(serviceResourceId);
+
+            long startNanos = System.nanoTime();
+            OutlookClient newOutlookClient = new OutlookClient(serviceEndpointUri, dependencyResolver);
+            Metrics.getInstance().recordTiming(Metrics.MAIL_CLIENT_CONSTRUCTION, startNanos, true);
+            outlookClient = mOutlookClients.putIfAbsent(key, newOutlookClient);
+            if (outlookClient == null) {
+                outlookClient = newOutlookClient;
+            }
+        }
+        return outlookClient;
+    }
+
     /**
      * Check to see if the service resource id and service endpoint uri values have been set.
      * @return True if service resource id and service endpoint uri have been set, false otherwise.
      */
-    private boolean isReady(){
+    boolean isReady(){
         return mServiceEndpointUri != null && mServiceResourceId != null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An email message to send with the {@link MailManager}.
+ * The To, Cc and Bcc addresses are trimmed and deduplicated when the message is created,
+ * ignoring case. An address that appears in several lists is kept in the most visible one,
+ * To before Cc before Bcc.
+ */
+public class MailMessage {
+
+    private final List<String> mToRecipients;
+    private final List<String> mCcRecipients;
+    private final List<String> mBccRecipients;
+    private final String mSubject;
+    private final String mBody;
+
+    /**
+     * @param emailAddress The recipient email address.
+     * @param subject The subject to use in the mail message.
+     * @param body The body of the message.
+     */
+    public MailMessage(final String emailAddress, final String subject, final String body) {
+        this(Collections.singletonList(emailAddress), Collections.<String>emptyList(), Collections.<String>emptyList(), subject, body);
+    }
+
+    /**
+     * @param toRecipients The addresses of the To recipients.
+     * @param ccRecipients The addresses of the Cc recipients, or null.
+     * @param bccRecipients The addresses of the Bcc recipients, or null.
+     * @param subject The subject to use in the mail message.
+     * @param body The body of the message.
+     */
+    public MailMessage(final Collection<String> toRecipients, final Collection<String> ccRecipients, final Collection<String> bccRecipients, final String subject, final String body) {
+        Set<String> seenAddresses = new HashSet<>();
+        mToRecipients = normalize(toRecipients, seenAddresses);
+        mCcRecipients = normalize(ccRecipients, seenAddresses);
+        mBccRecipients = normalize(bccRecipients, seenAddresses);
+        mSubject = subject;
+        mBody = body;
+    }
+
+    /**
+     * @return The first To recipient, the only one of a message created for a single address.
+     */
+    public String getEmailAddress() {
+        return mToRecipients.isEmpty() ? null : mToRecipients.get(0);
+    }
+
+    public List<String> getToRecipients() {
+        return mToRecipients;
+    }
+
+    public List<String> getCcRecipients() {
+        return mCcRecipients;
+    }
+
+    public List<String> getBccRecipients() {
+        return mBccRecipients;
+    }
+
+    /**
+     * @return The number of distinct addresses the message is sent to.
+     */
+    public int getRecipientCount() {
+        return mToRecipients.size() + mCcRecipients.size() + mBccRecipients.size();
+    }
+
+    public String getSubject() {
+        return mSubject;
+    }
+
+    public String getBody() {
+        return mBody;
+    }
+
+    /**
+     * Splits the message into the fewest messages that each have at most the provided number of
+     * recipients. The recipients are taken in order, To, then Cc, then Bcc, so each recipient
+     * keeps their list and only the last message has fewer recipients than the maximum.
+     * @param maxRecipients The maximum number of recipients of each message.
+     * @return This message if it's small enough, the smaller messages otherwise.
+     */
+    public List<MailMessage> split(final int maxRecipients) {
+        if (maxRecipients < 1) {
+            throw new IllegalArgumentException("maxRecipients must be positive");
+        }
+        int recipientCount = getRecipientCount();
+        if (recipientCount <= maxRecipients) {
+            return Collections.singletonList(this);
+        }
+
+        List<MailMessage> messages = new ArrayList<>((recipientCount + maxRecipients - 1) / maxRecipients);
+        for (int start = 0; start < recipientCount; start += maxRecipients) {
+            int end = Math.min(start + maxRecipients, recipientCount);
+            messages.add(new MailMessage(
+                    slice(mToRecipients, 0, start, end),
+                    slice(mCcRecipients, mToRecipients.size(), start, end),
+                    slice(mBccRecipients, mToRecipients.size() + mCcRecipients.size(), start, end),
+                    mSubject,
+                    mBody));
+        }
+        return messages;
+    }
+
+    /**
+     * Gets the part of a recipient list that falls between start and end, counting the
+     * recipients of all the lists in order.
+     */
+    private static List<String> slice(final List<String> recipients, final int offset, final int start, final int end) {
+        int from = Math.max(start - offset, 0);
+        int to = Math.min(end - offset, recipients.size());
+        return from < to ? recipients.subList(from, to) : Collections.<String>emptyList();
+    }
+
+    private static List<String> normalize(final Collection<String> addresses, final Set<String> seenAddresses) {
+        if (addresses == null || addresses.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> normalizedAddresses = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            if (address == null) {
+                continue;
+            }
+            String trimmedAddress = address.trim();
+            if (!trimmedAddress.isEmpty() && seenAddresses.add(trimmedAddress.toLowerCase(Locale.US))) {
+                normalizedAddresses.add(trimmedAddress);
+            }
+        }
+        return Collections.unmodifiableList(normalizedAddresses);
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Durable queue of email messages waiting to be sent.
+ * Accepted messages are appended to a journal file in the app's private storage before they're
+ * reported as queued, so they're not lost if the process dies or the network drops.
+ * The journal is read back on a worker thread when the outbox is created.
+ * A drainer sends the queued messages with the {@link MailManager} once the journal is read,
+ * when a message is queued and when the device gets connected to a network. Sent messages are
+ * acknowledged in the journal, which is compacted once enough of them pile up. Messages the
+ * service rejects for good are dropped, so they don't hold up the ones behind them.
+ * The journal is flushed to the operating system on every write, which survives a process
+ * crash but not a sudden power loss.
+ */
+public class MailOutbox {
+
+    private static final String TAG = "MailOutbox";
+    private static final String JOURNAL_FILENAME = "mail_outbox.journal";
+    private static final String COMPACTION_FILENAME = "mail_outbox.journal.tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private static final String OPERATION_KEY = "op";
+    private static final String ADD_OPERATION = "add";
+    private static final String ACK_OPERATION = "ack";
+    private static final String ID_KEY = "id";
+    private static final String EMAIL_ADDRESS_KEY = "emailAddress";
+    private static final String TO_RECIPIENTS_KEY = "to";
+    private static final String CC_RECIPIENTS_KEY = "cc";
+    private static final String BCC_RECIPIENTS_KEY = "bcc";
+    private static final String SUBJECT_KEY = "subject";
+    private static final String BODY_KEY = "body";
+
+    private final Context mContext;
+    private final File mJournalFile;
+    private final Map<Long, MailMessage> mPendingMessages = new LinkedHashMap<>();
+    private final Map<Long, SettableFuture<Integer>> mDeliveries = new HashMap<>();
+    private final AtomicBoolean mDraining = new AtomicBoolean();
+    private final ListenableFutureTask<Void> mLoading;
+    private Writer mJournalWriter;
+    private long mNextId;
+    private int mAcknowledgedCount;
+
+    public static synchronized MailOutbox getInstance(final Context context) {
+        if (INSTANCE == null) {
+            INSTANCE = new MailOutbox(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    private static MailOutbox INSTANCE;
+
+    private MailOutbox(final Context context) {
+        mContext = context;
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_FILENAME);
+
+        // Reading the journal is disk I/O, keep it off the calling thread, which is usually the
+        // main one. The messages left from the last run go out once it's read
+        mLoading = ListenableFutureTask.create(new Callable<Void>() {
+            @Override
+            public Void call() {
+                replayJournal();
+                return null;
+            }
+        });
+        mLoading.addListener(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, MoreExecutors.directExecutor());
+        try {
+            WorkerPool.getInstance().execute(mLoading);
+        } catch (RejectedExecutionException e) {
+            // The pool is saturated, read the journal here rather than never sending its messages
+            mLoading.run();
+        }
+
+        // Messages queued while offline go out as soon as we're back online
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isNetworkConnected()) {
+                    drain();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Queues a message to be sent in the background. The message is stored on disk on a worker
+     * thread, then delivered by the drainer. A message with more recipients than the service
+     * accepts is queued as several messages, each sent and acknowledged on its own, so a
+     * failure doesn't send the other ones twice.
+     * The returned future only follows the delivery, cancelling it or letting it time out
+     * leaves the message in the outbox. When an attempt fails without the service rejecting the
+     * message, the future fails but the message stays queued and is sent on a later drain, use
+     * {@link MailOutbox#isRejected(Throwable)} to tell the two apart. The same goes when the
+     * message can't be sent right away, because the device is offline or the {@link MailManager}
+     * doesn't know the mail service yet: the future fails with an IllegalStateException.
+     * @param message The message to send.
+     * @return A future with the id returned by the service, of the first message if it was
+     * split, or that fails with an IOException if the message couldn't be stored.
+     */
+    public ListenableFuture<Integer> enqueueAsync(final MailMessage message) {
+        ListenableFuture<Integer> delivery = Futures.transform(mLoading, new AsyncFunction<Void, Integer>() {
+            @Override
+            public ListenableFuture<Integer> apply(Void loaded) throws IOException {
+                List<ListenableFuture<Integer>> partDeliveries = new ArrayList<>();
+                synchronized (MailOutbox.this) {
+                    for (MailMessage part : message.split(MailManager.MAX_RECIPIENTS_PER_MESSAGE)) {
+                        long partId = mNextId++;
+                        appendToJournal(createAddRecord(partId, part));
+                        mPendingMessages.put(partId, part);
+                        SettableFuture<Integer> partDelivery = SettableFuture.create();
+                        mDeliveries.put(partId, partDelivery);
+                        partDeliveries.add(partDelivery);
+                    }
+                }
+                drain();
+                return Futures.transform(Futures.allAsList(partDeliveries), new Function<List<Integer>, Integer>() {
+                    @Override
+                    public Integer apply(List<Integer> mailIds) {
+                        return mailIds.get(0);
+                    }
+                });
+            }
+        }, WorkerPool.getInstance());
+        return delivery;
+    }
+
+    /**
+     * @return The number of messages waiting to be sent.
+     */
+    public synchronized int getPendingCount() {
+        return mPendingMessages.size();
+    }
+
+    /**
+     * Sends the queued messages without blocking, one after the other. Does nothing if a drain
+     * is already running, the device is offline or the {@link MailManager} hasn't been
+     * initialized with the mail service endpoints yet, in which case the deliveries being
+     * followed fail and the messages wait for the next trigger. Stops at the first transient
+     * failure and tries again on the next trigger. Messages queued while it runs are sent by
+     * another drain right after it.
+     */
+    public void drain() {
+        if (!mLoading.isDone() || getPendingCount() == 0 || mDraining.get()) {
+            return;
+        }
+        if (!MailManager.getInstance().isReady()) {
+            failDeliveries(new IllegalStateException("The mail service isn't discovered yet, the message stays in the outbox"));
+            return;
+        }
+        if (!isNetworkConnected()) {
+            failDeliveries(new IllegalStateException("The device is offline, the message stays in the outbox"));
+            return;
+        }
+        if (!mDraining.compareAndSet(false, true)) {
+            return;
+        }
+
+        sendPendingMessages(getPendingMessages().iterator());
+    }
+
+    /**
+     * Forgets the queued messages and deletes the journal, so the mail of a user isn't sent
+     * from the account of the next one. The deliveries being followed are cancelled.
+     */
+    public synchronized void clear() {
+        for (SettableFuture<Integer> delivery : mDeliveries.values()) {
+            delivery.cancel(false);
+        }
+        mDeliveries.clear();
+        mPendingMessages.clear();
+        mAcknowledgedCount = 0;
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            DiagnosticLog.e(TAG, "clear - Couldn't delete the outbox journal");
+        }
+    }
+
+    /**
+     * Checks if a failure means the service rejected the message for good, such as a malformed
+     * address, rather than that it couldn't be reached or the user couldn't be authenticated.
+     * @param e The reason of failure.
+     * @return True if sending the message again would fail the same way.
+     */
+    public static boolean isRejected(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            int statusCode = RetryPolicy.getStatusCode(cause);
+            if (statusCode > 0) {
+                return statusCode / 100 == 4
+                        && statusCode != HttpURLConnection.HTTP_UNAUTHORIZED
+                        && !RetryPolicy.isTransient(cause);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the messages that were pending when the drain started, oldest first. The next message
+     * is sent from the callback of the previous one, no thread waits for the service.
+     */
+    private void sendPendingMessages(final Iterator<Map.Entry<Long, MailMessage>> pendingMessages) {
+        if (!pendingMessages.hasNext()) {
+            finishDrain(true);
+            return;
+        }
+        Map.Entry<Long, MailMessage> pendingMessage = pendingMessages.next();
+        final long id = pendingMessage.getKey();
+        if (!isPending(id)) {
+            // Cleared while we were sending the ones before it
+            finishDrain(false);
+            return;
+        }
+
+        ListenableFuture<RetryPolicy.Result<Integer>> result = Deadline.withTimeout(
+                MailManager.getInstance().sendMessageAsync(pendingMessage.getValue()),
+                MailManager.OUTBOX_SEND_TIMEOUT_MILLIS);
+        // Not on the worker pool, a saturated queue would drop the callback and leave the drain
+        // running forever. Acknowledging is a short append to the journal
+        Futures.addCallback(result, new FutureCallback<RetryPolicy.Result<Integer>>() {
+            @Override
+            public void onSuccess(RetryPolicy.Result<Integer> result) {
+                Integer mailId = result.getValue();
+                DiagnosticLog.i(TAG, "drain - Email with ID: {} sent from the outbox", mailId);
+                try {
+                    acknowledge(id);
+                } catch (IOException e) {
+                    // The message was sent but we couldn't record it, it may go out twice
+                    DiagnosticLog.e(TAG, "drain - {}", e.getMessage());
+                    finishDrain(false);
+                    return;
+                }
+                completeDelivery(id, mailId, null);
+                sendPendingMessages(pendingMessages);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Exception e = t instanceof Exception ? (Exception) t : new ExecutionException(t.getMessage(), t);
+                if (isRejected(e)) {
+                    // Sending it again would fail the same way and hold up the messages behind it
+                    DiagnosticLog.e(TAG, "drain - Dropping the email rejected by the service: {}", e.getMessage());
+                    try {
+                        acknowledge(id);
+                    } catch (IOException ioe) {
+                        DiagnosticLog.e(TAG, "drain - {}", ioe.getMessage());
+                        finishDrain(false);
+                        return;
+                    }
+                    completeDelivery(id, null, e);
+                    sendPendingMessages(pendingMessages);
+                    return;
+                }
+                // Keep the message, we'll try again on the next trigger
+                DiagnosticLog.e(TAG, "drain - {}", e.getMessage());
+                completeDelivery(id, null, e);
+                finishDrain(false);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Lets the next trigger start a drain. A message queued in the meantime found the drain
+     * running and was left to us, it's sent right away. Not after a failure, the next trigger
+     * takes care of it.
+     * @param completed False if the drain stopped at a failure.
+     */
+    private void finishDrain(final boolean completed) {
+        mDraining.set(false);
+        if (completed) {
+            drain();
+        }
+    }
+
+    /**
+     * Fails the deliveries being followed, for messages that can't be sent for now. The messages
+     * stay queued.
+     */
+    private void failDeliveries(final Exception e) {
+        List<SettableFuture<Integer>> deliveries;
+        synchronized (this) {
+            deliveries = new ArrayList<>(mDeliveries.values());
+            mDeliveries.clear();
+        }
+        for (SettableFuture<Integer> delivery : deliveries) {
+            delivery.setException(e);
+        }
+    }
+
+    private synchronized List<Map.Entry<Long, MailMessage>> getPendingMessages() {
+        return new ArrayList<>(mPendingMessages.entrySet());
+    }
+
+    private synchronized boolean isPending(final long id) {
+        return mPendingMessages.containsKey(id);
+    }
+
+    /**
+     * Reports the outcome of a send to whoever follows the delivery of the message. A failed
+     * delivery is only followed once, the message itself may stay queued.
+     */
+    private void completeDelivery(final long id, final Integer mailId, final Exception e) {
+        SettableFuture<Integer> delivery;
+        synchronized (this) {
+            delivery = mDeliveries.remove(id);
+        }
+        if (delivery == null) {
+            return;
+        }
+        if (e == null) {
+            delivery.set(mailId);
+        } else {
+            delivery.setException(e);
+        }
+    }
+
+    private synchronized void acknowledge(final long id) throws IOException {
+        if (!mPendingMessages.containsKey(id)) {
+            // Cleared while it was being sent, it's not in the journal anymore
+            return;
+        }
+        appendToJournal(createAckRecord(id));
+        mPendingMessages.remove(id);
+        mAcknowledgedCount++;
+
+        if (mAcknowledgedCount >= COMPACTION_THRESHOLD && mAcknowledgedCount > mPendingMessages.size()) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Rebuilds the pending messages from the journal. A record cut short by a crash
+     * in the middle of a write is skipped.
+     */
+    private synchronized void replayJournal() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject record = new JSONObject(line);
+                    long id = record.getLong(ID_KEY);
+                    if (ADD_OPERATION.equals(record.getString(OPERATION_KEY))) {
+                        mPendingMessages.put(id, readMessage(record));
+                    } else {
+                        mPendingMessages.remove(id);
+                        mAcknowledgedCount++;
+                    }
+                    mNextId = Math.max(mNextId, id + 1);
+                } catch (JSONException e) {
+                    DiagnosticLog.e(TAG, "replayJournal - Skipping corrupted record: {}", e.getMessage());
+                }
+            }
+            DiagnosticLog.i(TAG, "replayJournal - {} messages pending in the outbox", mPendingMessages.size());
+        } catch (IOException e) {
+            DiagnosticLog.e(TAG, "replayJournal - {}", e.getMessage());
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Rewrites the journal with the pending messages only, then swaps it with the current one.
+     */
+    private void compactJournal() throws IOException {
+        File compactionFile = new File(mContext.getFilesDir(), COMPACTION_FILENAME);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compactionFile), UTF_8));
+        try {
+            for (Map.Entry<Long, MailMessage> pendingMessage : mPendingMessages.entrySet()) {
+                writer.write(createAddRecord(pendingMessage.getKey(), pendingMessage.getValue()));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+        if (!compactionFile.renameTo(mJournalFile)) {
+            throw new IOException("Couldn't replace the outbox journal with the compacted one");
+        }
+        mAcknowledgedCount = 0;
+        DiagnosticLog.i(TAG, "compactJournal - Journal compacted to {} messages", mPendingMessages.size());
+    }
+
+    private void appendToJournal(final String record) throws IOException {
+        if (mJournalWriter == null) {
+            mJournalWriter = openJournalWriter();
+        }
+        mJournalWriter.write(record);
+        mJournalWriter.write('\n');
+        mJournalWriter.flush();
+    }
+
+    private Writer openJournalWriter() throws FileNotFoundException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), UTF_8));
+    }
+
+    private static String createAddRecord(final long id, final MailMessage message) throws IOException {
+        try {
+            JSONObject record = new JSONObject();
+            record.put(OPERATION_KEY, ADD_OPERATION);
+            record.put(ID_KEY, id);
+            record.put(TO_RECIPIENTS_KEY, new JSONArray(message.getToRecipients()));
+            record.put(CC_RECIPIENTS_KEY, new JSONArray(message.getCcRecipients()));
+            record.put(BCC_RECIPIENTS_KEY, new JSONArray(message.getBccRecipients()));
+            record.put(SUBJECT_KEY, message.getSubject());
+            record.put(BODY_KEY, message.getBody());
+            return record.toString();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static MailMessage readMessage(final JSONObject record) throws JSONException {
+        if (!record.has(TO_RECIPIENTS_KEY)) {
+            // Written before messages had several recipients
+            return new MailMessage(
+                    record.getString(EMAIL_ADDRESS_KEY),
+                    record.getString(SUBJECT_KEY),
+                    record.getString(BODY_KEY));
+        }
+        return new MailMessage(
+                readAddresses(record.getJSONArray(TO_RECIPIENTS_KEY)),
+                readAddresses(record.optJSONArray(CC_RECIPIENTS_KEY)),
+                readAddresses(record.optJSONArray(BCC_RECIPIENTS_KEY)),
+                record.getString(SUBJECT_KEY),
+                record.getString(BODY_KEY));
+    }
+
+    private static List<String> readAddresses(final JSONArray jsonAddresses) throws JSONException {
+        List<String> addresses = new ArrayList<>();
+        if (jsonAddresses != null) {
+            for (int i = 0; i < jsonAddresses.length(); i++) {
+                addresses.add(jsonAddresses.getString(i));
+            }
+        }
+        return addresses;
+    }
+
+    private static String createAckRecord(final long id) throws IOException {
+        try {
+            JSONObject record = new JSONObject();
+            record.put(OPERATION_KEY, ACK_OPERATION);
+            record.put(ID_KEY, id);
+            return record.toString();
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            DiagnosticLog.e(TAG, "closeQuietly - {}", e.getMessage());
+        }
+    }
+}
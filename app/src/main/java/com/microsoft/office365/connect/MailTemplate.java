@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+/**
+ * The compiled subject and body of an email sent to many recipients, each with their own
+ * values for the template arguments. Get one from the {@link TemplateCache} and send it with
+ * {@link MailManager#sendMailAsync(MailTemplate, Recipient)} or
+ * {@link MailManager#sendMailBatch(MailTemplate, java.util.List, int, BatchOperationCallback)}.
+ */
+public class MailTemplate {
+
+    private final MessageTemplate mSubject;
+    private final MessageTemplate mBody;
+
+    /**
+     * @param subject The compiled subject.
+     * @param body The compiled HTML body.
+     */
+    public MailTemplate(final MessageTemplate subject, final MessageTemplate body) {
+        mSubject = subject;
+        mBody = body;
+    }
+
+    /**
+     * Renders the message for a recipient.
+     * @param recipient The recipient and the values of the template arguments.
+     * @return The message to send.
+     */
+    public MailMessage render(final Recipient recipient) {
+        return new MailMessage(
+                recipient.getEmailAddress(),
+                mSubject.render(recipient.getArguments()),
+                mBody.render(recipient.getArguments()));
+    }
+
+    /**
+     * A recipient of a {@link MailTemplate} and the values of the template arguments for them.
+     */
+    public static class Recipient {
+        private final String mEmailAddress;
+        private final Object[] mArguments;
+
+        /**
+         * @param emailAddress The recipient email address.
+         * @param arguments The values of the template arguments, {0} is the first one.
+         */
+        public Recipient(final String emailAddress, final Object... arguments) {
+            mEmailAddress = emailAddress;
+            mArguments = arguments;
+        }
+
+        public String getEmailAddress() {
+            return mEmailAddress;
+        }
+
+        public Object[] getArguments() {
+            return mArguments;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A message pattern compiled once and rendered many times, such as the body of an email sent
+ * to a list of recipients. Patterns use the MessageFormat syntax and render to the same text as
+ * MessageFormat.format, including its quoting rules, but the pattern is parsed only once and
+ * rendering appends to a buffer that's reused by each thread.
+ * Simple arguments like {0} are rendered by the template itself. Patterns with format types,
+ * like {0,number,#.##}, are delegated to a MessageFormat built once.
+ * Instances are immutable and can be shared between threads.
+ */
+public class MessageTemplate {
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
+    // The pattern alternates literal text and arguments: mLiterals[0] {mArguments[0]} mLiterals[1]...
+    private final String[] mLiterals;
+    private final int[] mArguments;
+    private final int mLiteralLength;
+    private final MessageFormat mFallbackFormat;
+
+    private MessageTemplate(final String[] literals, final int[] arguments, final MessageFormat fallbackFormat) {
+        mLiterals = literals;
+        mArguments = arguments;
+        mFallbackFormat = fallbackFormat;
+        int literalLength = 0;
+        for (String literal : literals) {
+            literalLength += literal.length();
+        }
+        mLiteralLength = literalLength;
+    }
+
+    /**
+     * Parses the pattern.
+     * @param pattern A pattern in the MessageFormat syntax.
+     * @return The compiled template.
+     * @throws IllegalArgumentException If the pattern is invalid.
+     */
+    public static MessageTemplate compile(final String pattern) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> arguments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder(pattern.length());
+        boolean quoted = false;
+
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    // Two quotes are a literal quote, inside or outside of a quoted section
+                    literal.append('\'');
+                    i += 2;
+                } else {
+                    quoted = !quoted;
+                    i++;
+                }
+            } else if (c == '{' && !quoted) {
+                int end = pattern.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unmatched braces in the pattern");
+                }
+                String argument = pattern.substring(i + 1, end);
+                if (!isSimpleArgument(argument)) {
+                    // Format types and styles are rare, let MessageFormat deal with them. It also
+                    // decides about anything else, such as spaces around the number
+                    return new MessageTemplate(new String[0], new int[0], new MessageFormat(pattern));
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                arguments.add(Integer.parseInt(argument));
+                i = end + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        literals.add(literal.toString());
+
+        int[] argumentArray = new int[arguments.size()];
+        for (int j = 0; j < argumentArray.length; j++) {
+            argumentArray[j] = arguments.get(j);
+        }
+        return new MessageTemplate(literals.toArray(new String[literals.size()]), argumentArray, null);
+    }
+
+    /**
+     * Creates a template that renders the text as is, without parsing quotes or braces, such as
+     * a subject that isn't a pattern.
+     * @param text The text to render.
+     * @return The template.
+     */
+    public static MessageTemplate literal(final String text) {
+        return new MessageTemplate(new String[] { text }, new int[0], null);
+    }
+
+    /**
+     * Renders the template with the provided arguments.
+     * @param arguments The values of the arguments, {0} is the first one.
+     * @return The rendered text.
+     */
+    public String render(final Object... arguments) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        renderTo(buffer, arguments);
+        String result = buffer.toString();
+
+        // Don't keep a huge buffer around for the rest of the thread's life
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Renders the template with the provided arguments at the end of a buffer.
+     * @param buffer The buffer to append the text to.
+     * @param arguments The values of the arguments, {0} is the first one.
+     */
+    public void renderTo(final StringBuilder buffer, final Object... arguments) {
+        if (mFallbackFormat != null) {
+            // MessageFormat instances aren't thread safe
+            synchronized (mFallbackFormat) {
+                buffer.append(mFallbackFormat.format(arguments));
+            }
+            return;
+        }
+
+        buffer.ensureCapacity(buffer.length() + mLiteralLength);
+        buffer.append(mLiterals[0]);
+        for (int i = 0; i < mArguments.length; i++) {
+            int argument = mArguments[i];
+            if (arguments == null || argument >= arguments.length) {
+                // Same as MessageFormat, a missing argument is rendered as is
+                buffer.append('{').append(argument).append('}');
+            } else {
+                appendArgument(buffer, arguments[argument]);
+            }
+            buffer.append(mLiterals[i + 1]);
+        }
+    }
+
+    private static void appendArgument(final StringBuilder buffer, final Object value) {
+        if (value == null) {
+            buffer.append("null");
+        } else if (value instanceof String) {
+            buffer.append((String) value);
+        } else if (value instanceof Number) {
+            buffer.append(NumberFormat.getInstance().format(value));
+        } else if (value instanceof Date) {
+            buffer.append(DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(value));
+        } else {
+            buffer.append(value.toString());
+        }
+    }
+
+    private static boolean isSimpleArgument(final String argument) {
+        if (argument.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < argument.length(); i++) {
+            if (!Character.isDigit(argument.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
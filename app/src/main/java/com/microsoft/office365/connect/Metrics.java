@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process registry of latency histograms and error counters for the Office 365 operations.
+ * The managers record how long token acquisition, discovery, client construction and sending
+ * take, and the activities how long they take to start, so the percentiles and error rates can
+ * be read on production devices with {@link Metrics#getSnapshots()} or forwarded with a
+ * {@link MetricsListener}.
+ */
+public class Metrics {
+
+    public static final String AUTH_SILENT = "auth.silent";
+    public static final String AUTH_PROMPT = "auth.prompt";
+    public static final String AUTH_INITIALIZATION = "auth.init";
+    public static final String DISCOVERY_CACHE_HIT = "discovery.cache";
+    public static final String DISCOVERY_NETWORK = "discovery.network";
+    public static final String DISCOVERY_NOT_MODIFIED = "discovery.notmodified";
+    public static final String MAIL_CLIENT_CONSTRUCTION = "mail.client";
+    public static final String MAIL_SEND_NETWORK = "mail.send";
+    public static final String WARM_UP = "warmup";
+    public static final String CONNECT_FIRST_FRAME = "startup.connect.frame";
+    public static final String CONNECT_INTERACTIVE = "startup.connect.interactive";
+    public static final String SEND_MAIL_FIRST_FRAME = "startup.sendmail.frame";
+    public static final String SEND_MAIL_INTERACTIVE = "startup.sendmail.interactive";
+
+    private final ConcurrentHashMap<String, Timer> mTimers = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<MetricsListener> mListeners = new CopyOnWriteArrayList<>();
+
+    public static synchronized Metrics getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new Metrics();
+        }
+        return INSTANCE;
+    }
+
+    private static Metrics INSTANCE;
+
+    /**
+     * Records how long an operation took.
+     * @param name The name of the operation.
+     * @param startNanos The value of {@link System#nanoTime()} when the operation started.
+     * @param success True if the operation succeeded, false otherwise.
+     */
+    public void recordTiming(final String name, final long startNanos, final boolean success) {
+        long durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        getTimer(name).record(durationMicros, success);
+
+        for (MetricsListener listener : mListeners) {
+            listener.onTiming(name, durationMicros, success);
+        }
+    }
+
+    public void addListener(final MetricsListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(final MetricsListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Gets the statistics of the operations recorded so far.
+     * @return The statistics of each operation, sorted by name.
+     */
+    public Map<String, Snapshot> getSnapshots() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, Timer> timer : mTimers.entrySet()) {
+            snapshots.put(timer.getKey(), timer.getValue().getSnapshot());
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    /**
+     * Forgets all the recorded measurements.
+     */
+    public void reset() {
+        for (Timer timer : mTimers.values()) {
+            timer.reset();
+        }
+    }
+
+    private Timer getTimer(final String name) {
+        Timer timer = mTimers.get(name);
+        if (timer == null) {
+            Timer newTimer = new Timer();
+            timer = mTimers.putIfAbsent(name, newTimer);
+            if (timer == null) {
+                timer = newTimer;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Latency histogram and error counter of one operation.
+     */
+    private static class Timer {
+        private final Histogram mHistogram = new Histogram();
+        private final AtomicLong mErrorCount = new AtomicLong();
+
+        void record(final long durationMicros, final boolean success) {
+            mHistogram.record(durationMicros);
+            if (!success) {
+                mErrorCount.incrementAndGet();
+            }
+        }
+
+        Snapshot getSnapshot() {
+            return new Snapshot(
+                    mHistogram.getCount(),
+                    mErrorCount.get(),
+                    mHistogram.getPercentile(50),
+                    mHistogram.getPercentile(99),
+                    mHistogram.getMax(),
+                    mHistogram.getMean());
+        }
+
+        void reset() {
+            mHistogram.reset();
+            mErrorCount.set(0);
+        }
+    }
+
+    /**
+     * Point in time statistics of one operation. Durations are in microseconds.
+     */
+    public static class Snapshot {
+        private final long mCount;
+        private final long mErrorCount;
+        private final long mP50;
+        private final long mP99;
+        private final long mMax;
+        private final double mMean;
+
+        Snapshot(long count, long errorCount, long p50, long p99, long max, double mean) {
+            mCount = count;
+            mErrorCount = errorCount;
+            mP50 = p50;
+            mP99 = p99;
+            mMax = max;
+            mMean = mean;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        public double getErrorRate() {
+            return mCount == 0 ? 0 : (double) mErrorCount / mCount;
+        }
+
+        public long getP50() {
+            return mP50;
+        }
+
+        public long getP99() {
+            return mP99;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mMean;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + ", errors=" + mErrorCount
+                    + ", p50=" + mP50 + "us"
+                    + ", p99=" + mP99 + "us"
+                    + ", max=" + mMax + "us";
+        }
+    }
+}
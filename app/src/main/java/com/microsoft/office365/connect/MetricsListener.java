@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+/**
+ * Listener interface to receive the measurements recorded by {@link Metrics},
+ * for example to forward them to a telemetry service.
+ * The methods are called from the thread that did the work, so they must return quickly.
+ */
+public interface MetricsListener {
+    /**
+     * The method to call when an operation finishes.
+     * @param name The name of the measured operation, see the constants in {@link Metrics}.
+     * @param durationMicros How long the operation took, in microseconds.
+     * @param success True if the operation succeeded, false otherwise.
+     */
+    void onTiming(String name, long durationMicros, boolean success);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.FutureCallback;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Adapts an {@link OperationCallback} to the future returned by the asynchronous variants of
+ * the manager operations, so the callback entry points are thin wrappers around them.
+ * @param <T> The result of the operation in case of success.
+ */
+class OperationFutureCallback<T> implements FutureCallback<T> {
+
+    private final OperationCallback<T> mOperationCallback;
+
+    OperationFutureCallback(final OperationCallback<T> operationCallback) {
+        mOperationCallback = operationCallback;
+    }
+
+    @Override
+    public void onSuccess(T result) {
+        mOperationCallback.onSuccess(result);
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+        // OperationCallback only takes exceptions, errors are reported as the cause of one
+        mOperationCallback.onError(t instanceof Exception ? (Exception) t : new ExecutionException(t.getMessage(), t));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.concurrent.Future;
+
+/**
+ * Returned by the callback variants of the manager operations, such as
+ * {@link MailManager#sendMail(String, String, String, OperationCallback)}, to stop the operation
+ * once it has started. Cancelling aborts the pending request and frees the worker thread, the
+ * callback then gets a single {@link java.util.concurrent.CancellationException}. An operation
+ * that runs past its deadline ends the same way with a
+ * {@link java.util.concurrent.TimeoutException}.
+ */
+public class OperationHandle {
+
+    private final Future<?> mFuture;
+
+    OperationHandle(final Future<?> future) {
+        mFuture = future;
+    }
+
+    /**
+     * Stops the operation, unless it's already done.
+     * @return False if the operation was already done, true otherwise.
+     */
+    public boolean cancel() {
+        return mFuture.cancel(true);
+    }
+
+    /**
+     * @return True if the operation succeeded, failed, timed out or was cancelled.
+     */
+    public boolean isDone() {
+        return mFuture.isDone();
+    }
+
+    /**
+     * @return True if the operation was cancelled before it was done.
+     */
+    public boolean isCancelled() {
+        return mFuture.isCancelled();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+/**
+ * Reports a send that was turned down by the {@link SendRateLimiter} before it reached the
+ * network, because the account already has as many sends queued as its rate allows within the
+ * maximum wait. The caller should slow down and try again after the suggested delay.
+ */
+public class RateLimitExceededException extends Exception {
+
+    private final long mRetryAfterMillis;
+
+    /**
+     * @param retryAfterMillis How long until the send would fit within the maximum wait.
+     * @param message A description of the failure.
+     */
+    RateLimitExceededException(final long retryAfterMillis, final String message) {
+        super(message);
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return How long until the send would fit within the maximum wait, in milliseconds.
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+}
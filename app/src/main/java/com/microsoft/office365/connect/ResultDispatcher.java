@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.microsoft.aad.adal.AuthenticationCallback;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the results of the manager operations to activities on the main thread, without
+ * letting the operations keep the activities alive.
+ * An activity binds its callback to a key. The operation gets a callback that only knows the
+ * key, so a send that outlives the activity doesn't hold on to it or its views. When the
+ * activity is destroyed its callbacks are released: results for an activity that's finishing
+ * are dropped, results for an activity that's being recreated, such as on a rotation, are kept
+ * and replayed to the new instance when it binds the same key. A kept result that no instance
+ * binds within {@link ResultDispatcher#RETAIN_MILLIS} is dropped.
+ * Keys must be unique to an activity instance, so two instances of the same activity don't get
+ * each other's results: prefix them with the scope from
+ * {@link ResultDispatcher#getScope(Bundle)}, which the recreated instance gets back.
+ * Results are delivered at most once per frame. When several results for the same key arrive
+ * within a frame, only the latest one is delivered, so a burst of sends doesn't flood the UI.
+ */
+public class ResultDispatcher {
+
+    private static final String TAG = "ResultDispatcher";
+    private static final long FRAME_MILLIS = 16;
+    private static final String SCOPE_STATE_KEY = "ResultDispatcher.scope";
+    static final long RETAIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Binding> mBindings = new HashMap<>();
+    private final Map<String, Delivery> mPendingDeliveries = new LinkedHashMap<>();
+    private final Map<String, Delivery> mRetainedDeliveries = new HashMap<>();
+    // When the activity of each key was destroyed to be recreated
+    private final Map<String, Long> mRetainedKeys = new HashMap<>();
+    private boolean mFlushScheduled;
+    private boolean mExpiryScheduled;
+    private long mLastFlushMillis;
+    private boolean mLifecycleRegistered;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            expireRetainedKeys();
+        }
+    };
+
+    public static synchronized ResultDispatcher getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new ResultDispatcher();
+        }
+        return INSTANCE;
+    }
+
+    private static ResultDispatcher INSTANCE;
+
+    /**
+     * Gets the scope of the keys an activity instance binds, a new one for a new instance and
+     * the saved one for an instance that replaces a destroyed one.
+     * @param savedInstanceState The state passed to onCreate, null for a new instance.
+     * @return The scope to prefix the keys with.
+     */
+    public static String getScope(final Bundle savedInstanceState) {
+        String scope = savedInstanceState == null ? null : savedInstanceState.getString(SCOPE_STATE_KEY);
+        return scope != null ? scope : UUID.randomUUID().toString();
+    }
+
+    /**
+     * Saves the scope of an activity instance, so the instance that replaces it gets its results.
+     * Call it from onSaveInstanceState.
+     * @param outState The state of the activity.
+     * @param scope The scope returned by {@link ResultDispatcher#getScope(Bundle)}.
+     */
+    public static void saveScope(final Bundle outState, final String scope) {
+        outState.putString(SCOPE_STATE_KEY, scope);
+    }
+
+    /**
+     * Binds a callback to an activity. Binding a key again, from the same activity or from the
+     * one that replaced it, replaces the previous callback, and delivers the result that arrived
+     * while the activity was being recreated, if any.
+     * Call it from the main thread.
+     * @param owner The activity the callback updates.
+     * @param key Identifies the operation of the activity instance, such as the scope followed
+     *            by "sendMail".
+     * @param callback The callback to call on the main thread while the activity is alive.
+     * @param <T> The result of the operation in case of success.
+     * @return The callback to pass to the operation. It doesn't reference the activity.
+     */
+    public <T> OperationCallback<T> bind(final Activity owner, final String key, final OperationCallback<T> callback) {
+        bindOwner(owner, key, callback);
+        return new BoundCallback<>(key);
+    }
+
+    /**
+     * Binds an ADAL callback to an activity, like {@link ResultDispatcher#bind(Activity, String, OperationCallback)}.
+     * @param owner The activity the callback updates.
+     * @param key Identifies the operation of the activity instance, such as the scope followed
+     *            by "connect".
+     * @param callback The callback to call on the main thread while the activity is alive.
+     * @param <T> The result of the operation in case of success.
+     * @return The callback to pass to the operation. It doesn't reference the activity.
+     */
+    public <T> AuthenticationCallback<T> bind(final Activity owner, final String key, final AuthenticationCallback<T> callback) {
+        bindOwner(owner, key, new OperationCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                callback.onSuccess(result);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                callback.onError(e);
+            }
+        });
+        final BoundCallback<T> boundCallback = new BoundCallback<>(key);
+        return new AuthenticationCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                boundCallback.onSuccess(result);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                boundCallback.onError(e);
+            }
+        };
+    }
+
+    private synchronized void bindOwner(final Activity owner, final String key, final OperationCallback<?> callback) {
+        if (!mLifecycleRegistered) {
+            owner.getApplication().registerActivityLifecycleCallbacks(new LifecycleCallbacks());
+            mLifecycleRegistered = true;
+        }
+        mBindings.put(key, new Binding(owner, callback));
+        mRetainedKeys.remove(key);
+
+        // The result arrived while the previous instance was being replaced
+        Delivery retainedDelivery = mRetainedDeliveries.remove(key);
+        if (retainedDelivery != null) {
+            DiagnosticLog.i(TAG, "bind - Replaying the result of {}", key);
+            dispatch(key, retainedDelivery);
+        }
+    }
+
+    private synchronized void dispatch(final String key, final Delivery delivery) {
+        // The latest result of a key replaces the one still waiting for the next frame
+        mPendingDeliveries.put(key, delivery);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            long delay = Math.max(0, mLastFlushMillis + FRAME_MILLIS - SystemClock.uptimeMillis());
+            mMainHandler.postDelayed(mFlush, delay);
+        }
+    }
+
+    /**
+     * Delivers the pending results on the main thread, outside of the lock so the callbacks can
+     * start new operations.
+     */
+    private void flush() {
+        List<OperationCallback<?>> callbacks = new ArrayList<>();
+        List<Delivery> deliveries = new ArrayList<>();
+        synchronized (this) {
+            mFlushScheduled = false;
+            mLastFlushMillis = SystemClock.uptimeMillis();
+            for (Map.Entry<String, Delivery> pendingDelivery : mPendingDeliveries.entrySet()) {
+                String key = pendingDelivery.getKey();
+                Binding binding = mBindings.get(key);
+                if (binding != null) {
+                    callbacks.add(binding.mCallback);
+                    deliveries.add(pendingDelivery.getValue());
+                } else if (mRetainedKeys.containsKey(key)) {
+                    mRetainedDeliveries.put(key, pendingDelivery.getValue());
+                } else {
+                    DiagnosticLog.i(TAG, "flush - Dropping the result of {}, its activity is gone", key);
+                }
+            }
+            mPendingDeliveries.clear();
+        }
+
+        for (int i = 0; i < deliveries.size(); i++) {
+            deliveries.get(i).deliverTo(callbacks.get(i));
+        }
+    }
+
+    private synchronized void onOwnerDestroyed(final Activity owner) {
+        boolean recreating = owner.isChangingConfigurations();
+        Iterator<Map.Entry<String, Binding>> bindings = mBindings.entrySet().iterator();
+        while (bindings.hasNext()) {
+            Map.Entry<String, Binding> binding = bindings.next();
+            if (binding.getValue().mOwner == owner) {
+                // Release the callback, and the activity it captured
+                bindings.remove();
+                if (recreating) {
+                    mRetainedKeys.put(binding.getKey(), SystemClock.uptimeMillis());
+                    scheduleExpiry(RETAIN_MILLIS);
+                } else {
+                    mRetainedKeys.remove(binding.getKey());
+                    mRetainedDeliveries.remove(binding.getKey());
+                }
+            }
+        }
+    }
+
+    private void scheduleExpiry(final long delayMillis) {
+        if (!mExpiryScheduled) {
+            mExpiryScheduled = true;
+            mMainHandler.postDelayed(mExpire, delayMillis);
+        }
+    }
+
+    /**
+     * Drops the results kept for the activities that weren't recreated in time, such as an
+     * activity whose task was closed before it came back.
+     */
+    private synchronized void expireRetainedKeys() {
+        mExpiryScheduled = false;
+        long now = SystemClock.uptimeMillis();
+        long nextExpiry = Long.MAX_VALUE;
+        Iterator<Map.Entry<String, Long>> retainedKeys = mRetainedKeys.entrySet().iterator();
+        while (retainedKeys.hasNext()) {
+            Map.Entry<String, Long> retainedKey = retainedKeys.next();
+            long expiry = retainedKey.getValue() + RETAIN_MILLIS;
+            if (expiry <= now) {
+                retainedKeys.remove();
+                if (mRetainedDeliveries.remove(retainedKey.getKey()) != null) {
+                    DiagnosticLog.i(TAG, "expireRetainedKeys - Dropping the result of {}, its activity wasn't recreated", retainedKey.getKey());
+                }
+            } else {
+                nextExpiry = Math.min(nextExpiry, expiry);
+            }
+        }
+        if (nextExpiry != Long.MAX_VALUE) {
+            scheduleExpiry(nextExpiry - now);
+        }
+    }
+
+    /**
+     * The callback given to the operation, which only knows the key it was bound to.
+     */
+    private class BoundCallback<T> implements OperationCallback<T> {
+        private final String mKey;
+
+        BoundCallback(final String key) {
+            mKey = key;
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            dispatch(mKey, new Delivery(result, null));
+        }
+
+        @Override
+        public void onError(Exception e) {
+            dispatch(mKey, new Delivery(null, e));
+        }
+    }
+
+    private static class Binding {
+        private final Activity mOwner;
+        private final OperationCallback<?> mCallback;
+
+        Binding(final Activity owner, final OperationCallback<?> callback) {
+            mOwner = owner;
+            mCallback = callback;
+        }
+    }
+
+    private static class Delivery {
+        private final Object mResult;
+        private final Exception mError;
+
+        Delivery(final Object result, final Exception error) {
+            mResult = result;
+            mError = error;
+        }
+
+        @SuppressWarnings("unchecked")
+        void deliverTo(final OperationCallback<?> callback) {
+            if (mError != null) {
+                callback.onError(mError);
+            } else {
+                ((OperationCallback<Object>) callback).onSuccess(mResult);
+            }
+        }
+    }
+
+    private class LifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            onOwnerDestroyed(activity);
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides if and when a failed Office 365 operation is attempted again.
+ * Network errors and the 408, 429, 500, 502, 503 and 504 HTTP status codes are considered
+ * transient, anything else fails right away. The delay between attempts grows exponentially
+ * with random jitter, unless the service asks for a specific delay in a Retry-After header.
+ * The number of attempts and the total time spent retrying are capped.
+ * Operations that aren't idempotent, such as sending mail, are only attempted again when the
+ * request provably didn't reach the service: when the connection couldn't be made, or when the
+ * service answered 429 or 503 with a Retry-After header. A timeout or a server error after the
+ * request went out may mean the service acted on it, attempting it again could act twice.
+ * Operations that return a future can be retried without blocking with
+ * {@link RetryPolicy#executeAsync(AsyncOperation)}. Every attempt then starts on the
+ * {@link WorkerPool}, never on the calling thread, and the waits between attempts are timers on
+ * a single shared thread.
+ */
+public class RetryPolicy {
+
+    private static final String TAG = "RetryPolicy";
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+    private static final String THREAD_NAME_PREFIX = "o365-retry-";
+    private static final Set<Integer> TRANSIENT_STATUS_CODES =
+            new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+
+    static final int DEFAULT_MAX_ATTEMPTS = 4;
+    static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+    static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long DEFAULT_MAX_ELAPSED_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mMaxElapsedMillis;
+    private final boolean mIdempotent;
+    private final Random mRandom = new Random();
+
+    /**
+     * An operation that can be attempted several times.
+     * @param <T> The result of the operation in case of success.
+     */
+    public interface Operation<T> {
+        T run() throws InterruptedException, ExecutionException;
+    }
+
+    /**
+     * An operation that can be attempted several times without blocking the calling thread.
+     * @param <T> The result of the operation in case of success.
+     */
+    public interface AsyncOperation<T> {
+        ListenableFuture<T> run();
+    }
+
+    /**
+     * @param maxAttempts The maximum number of attempts, including the first one.
+     * @param initialDelayMillis The delay before the second attempt, it doubles on every attempt.
+     * @param maxDelayMillis The maximum delay between two attempts.
+     * @param maxElapsedMillis The maximum time since the first attempt after which no
+     *                         more attempts are made.
+     */
+    public RetryPolicy(final int maxAttempts, final long initialDelayMillis, final long maxDelayMillis, final long maxElapsedMillis) {
+        this(maxAttempts, initialDelayMillis, maxDelayMillis, maxElapsedMillis, true);
+    }
+
+    /**
+     * @param maxAttempts The maximum number of attempts, including the first one.
+     * @param initialDelayMillis The delay before the second attempt, it doubles on every attempt.
+     * @param maxDelayMillis The maximum delay between two attempts.
+     * @param maxElapsedMillis The maximum time since the first attempt after which no
+     *                         more attempts are made.
+     * @param idempotent False if running the operation twice has a different effect than
+     *                   running it once, it's then only attempted again when the request didn't
+     *                   reach the service.
+     */
+    public RetryPolicy(final int maxAttempts, final long initialDelayMillis, final long maxDelayMillis, final long maxElapsedMillis, final boolean idempotent) {
+        if (maxAttempts < 1 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis || maxElapsedMillis < 0) {
+            throw new IllegalArgumentException("Invalid retry policy settings");
+        }
+        mMaxAttempts = maxAttempts;
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxElapsedMillis = maxElapsedMillis;
+        mIdempotent = idempotent;
+    }
+
+    /**
+     * @return A policy with the default settings used by the managers.
+     */
+    public static RetryPolicy createDefault() {
+        return new RetryPolicy(
+                DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_INITIAL_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_MAX_ELAPSED_MILLIS);
+    }
+
+    /**
+     * @return A policy with the default settings, for operations that aren't idempotent such as
+     * sending mail.
+     */
+    public static RetryPolicy createNonIdempotent() {
+        return new RetryPolicy(
+                DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_INITIAL_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_MAX_ELAPSED_MILLIS,
+                false);
+    }
+
+    /**
+     * @return A policy that never retries.
+     */
+    public static RetryPolicy createNoRetry() {
+        return new RetryPolicy(1, 0, 0, 0);
+    }
+
+    /**
+     * Runs the operation, attempting it again after transient failures.
+     * Blocks the calling thread while waiting between attempts.
+     * @param operation The operation to run.
+     * @param <T> The result of the operation in case of success.
+     * @return The result of the operation and the number of attempts it took.
+     * @throws RetryException If the operation failed permanently or ran out of attempts.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public <T> Result<T> execute(final Operation<T> operation) throws RetryException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            try {
+                return new Result<>(operation.run(), attempts);
+            } catch (ExecutionException e) {
+                long delay = getDelayMillis(attempts, e, System.currentTimeMillis() - startTime);
+                if (delay < 0) {
+                    throw new RetryException(e, attempts);
+                }
+                DiagnosticLog.i(TAG, "execute - Attempt {} failed, retrying in {} ms: {}", attempts, delay, e.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Runs the operation on the {@link WorkerPool}, attempting it again after transient failures.
+     * Doesn't block, the next attempt is started by a timer once the delay is over.
+     * @param operation The operation to run.
+     * @param <T> The result of the operation in case of success.
+     * @return A future with the result of the operation and the number of attempts it took, or
+     * that fails with a {@link RetryException} if the operation failed permanently or ran out
+     * of attempts.
+     */
+    public <T> ListenableFuture<Result<T>> executeAsync(final AsyncOperation<T> operation) {
+        return executeAsync(operation, WorkerPool.getInstance());
+    }
+
+    /**
+     * Runs the operation, attempting it again after transient failures. Doesn't block, every
+     * attempt is started on the executor, the next one once the delay is over.
+     * @param operation The operation to run.
+     * @param executor Starts the attempts. An attempt it rejects fails the operation.
+     * @param <T> The result of the operation in case of success.
+     * @return A future with the result of the operation and the number of attempts it took, or
+     * that fails with a {@link RetryException} if the operation failed permanently or ran out
+     * of attempts.
+     */
+    public <T> ListenableFuture<Result<T>> executeAsync(final AsyncOperation<T> operation, final Executor executor) {
+        SettableFuture<Result<T>> future = SettableFuture.create();
+        startAttempt(operation, executor, future, System.currentTimeMillis(), 1);
+        return future;
+    }
+
+    private <T> void startAttempt(final AsyncOperation<T> operation, final Executor executor,
+                                  final SettableFuture<Result<T>> future, final long startTime, final int attempts) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attemptAsync(operation, executor, future, startTime, attempts);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.setException(new RetryException(new ExecutionException(e.getMessage(), e), attempts));
+        }
+    }
+
+    private <T> void attemptAsync(final AsyncOperation<T> operation, final Executor executor,
+                                  final SettableFuture<Result<T>> future, final long startTime, final int attempts) {
+        if (future.isCancelled()) {
+            return;
+        }
+
+        ListenableFuture<T> attempt;
+        try {
+            attempt = operation.run();
+        } catch (RuntimeException e) {
+            attempt = Futures.immediateFailedFuture(e);
+        }
+
+        // Cancelling the operation aborts the attempt in flight, not just the next ones
+        final ListenableFuture<T> currentAttempt = attempt;
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    currentAttempt.cancel(true);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+
+        Futures.addCallback(attempt, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.set(new Result<>(result, attempts));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (future.isCancelled()) {
+                    return;
+                }
+                ExecutionException e = t instanceof ExecutionException
+                        ? (ExecutionException) t
+                        : new ExecutionException(t.getMessage(), t);
+                long delay = getDelayMillis(attempts, e, System.currentTimeMillis() - startTime);
+                if (delay < 0) {
+                    future.setException(new RetryException(e, attempts));
+                    return;
+                }
+                DiagnosticLog.i(TAG, "executeAsync - Attempt {} failed, retrying in {} ms: {}", attempts, delay, e.getMessage());
+                getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startAttempt(operation, executor, future, startTime, attempts + 1);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (SCHEDULER == null) {
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, new WorkerPool.NamedThreadFactory(THREAD_NAME_PREFIX));
+        }
+        return SCHEDULER;
+    }
+
+    private static ScheduledExecutorService SCHEDULER;
+
+    /**
+     * Computes how long to wait before attempting the operation again.
+     * @param attempts The number of attempts made so far.
+     * @param e The reason of the last failure.
+     * @param elapsedMillis The time since the first attempt.
+     * @return The delay in milliseconds, or a negative number if the operation
+     * shouldn't be attempted again.
+     */
+    long getDelayMillis(final int attempts, final Exception e, final long elapsedMillis) {
+        if (attempts >= mMaxAttempts || !(mIdempotent ? isTransient(e) : isUnprocessed(e))) {
+            return -1;
+        }
+
+        long delay = getRetryAfterMillis(e);
+        if (delay < 0) {
+            // Exponential backoff with jitter, between half and all of the computed delay
+            long backoff = Math.min(mMaxDelayMillis, mInitialDelayMillis << Math.min(attempts - 1, 30));
+            delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        }
+
+        if (elapsedMillis + delay > mMaxElapsedMillis) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * Checks if the failure is likely to go away if the operation is attempted again.
+     * @param e The reason of failure.
+     * @return True for network errors and transient HTTP status codes, false otherwise.
+     */
+    static boolean isTransient(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+            int statusCode = getStatusCode(cause);
+            if (statusCode > 0) {
+                return TRANSIENT_STATUS_CODES.contains(statusCode);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the failure proves the service didn't act on the request, so an operation that
+     * isn't idempotent can be attempted again.
+     * @param e The reason of failure.
+     * @return True if the connection couldn't be made, or if the service answered 429 or 503
+     * with a Retry-After header, false otherwise.
+     */
+    static boolean isUnprocessed(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+            int statusCode = getStatusCode(cause);
+            if (statusCode > 0) {
+                return (statusCode == 429 || statusCode == HttpURLConnection.HTTP_UNAVAILABLE)
+                        && getRetryAfterMillis(cause) >= 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the HTTP status code that caused the failure. The Office 365 SDK reports HTTP errors
+     * with exceptions that carry the response, we look it up by name so we don't depend on
+     * the internal classes of the SDK. Calls made without the SDK report a
+     * {@link HttpStatusException}.
+     * @param e The reason of failure.
+     * @return The status code, or -1 if the failure doesn't carry an HTTP response.
+     */
+    static int getStatusCode(final Throwable e) {
+        if (e instanceof HttpStatusException) {
+            return ((HttpStatusException) e).getStatusCode();
+        }
+        Object response = invoke(e, "getResponse");
+        Object statusCode = invoke(response, "getStatus");
+        if (statusCode == null) {
+            statusCode = invoke(response, "getStatusCode");
+        }
+        return statusCode instanceof Integer ? (Integer) statusCode : -1;
+    }
+
+    /**
+     * Gets the delay requested by the service with the Retry-After header.
+     * @param e The reason of failure.
+     * @return The delay in milliseconds, or -1 if the service didn't request one.
+     */
+    static long getRetryAfterMillis(final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpStatusException) {
+                String retryAfter = ((HttpStatusException) cause).getRetryAfter();
+                return retryAfter == null ? -1 : parseRetryAfter(retryAfter);
+            }
+            Object headers = invoke(invoke(cause, "getResponse"), "getHeaders");
+            if (headers instanceof Map) {
+                for (Map.Entry<?, ?> header : ((Map<?, ?>) headers).entrySet()) {
+                    if (RETRY_AFTER_HEADER.equalsIgnoreCase(String.valueOf(header.getKey()))) {
+                        Object value = header.getValue();
+                        if (value instanceof Collection && !((Collection<?>) value).isEmpty()) {
+                            value = ((Collection<?>) value).iterator().next();
+                        }
+                        return parseRetryAfter(String.valueOf(value));
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a Retry-After value, which is either a number of seconds or an HTTP date.
+     * @param value The header value.
+     * @return The delay in milliseconds, or -1 if the value can't be parsed.
+     */
+    static long parseRetryAfter(final String value) {
+        String trimmed = value.trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(trimmed)));
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, try with a date
+        }
+        try {
+            SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, httpDateFormat.parse(trimmed).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            DiagnosticLog.e(TAG, "parseRetryAfter - Invalid Retry-After value: {}", trimmed);
+            return -1;
+        }
+    }
+
+    private static Object invoke(final Object target, final String methodName) {
+        if (target == null) {
+            return null;
+        }
+        try {
+            Method method = target.getClass().getMethod(methodName);
+            return method.invoke(target);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * The result of an operation and the number of attempts it took.
+     * @param <T> The result of the operation.
+     */
+    public static class Result<T> {
+        private final T mValue;
+        private final int mAttempts;
+
+        Result(final T value, final int attempts) {
+            mValue = value;
+            mAttempts = attempts;
+        }
+
+        public T getValue() {
+            return mValue;
+        }
+
+        /**
+         * @return The number of attempts, including the successful one.
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+    }
+
+    /**
+     * Reports an operation that failed permanently or ran out of attempts.
+     * The cause is the failure of the last attempt.
+     */
+    public static class RetryException extends ExecutionException {
+        private final int mAttempts;
+
+        RetryException(final ExecutionException lastFailure, final int attempts) {
+            super(lastFailure.getMessage(), lastFailure.getCause() != null ? lastFailure.getCause() : lastFailure);
+            mAttempts = attempts;
+        }
+
+        /**
+         * @return The number of attempts made before giving up.
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+    }
+}
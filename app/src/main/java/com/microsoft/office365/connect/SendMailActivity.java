@@ -7,7 +7,6 @@ package com.microsoft.office365.connect;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -17,19 +16,28 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.aad.adal.AuthenticationCallback;
+import com.microsoft.aad.adal.AuthenticationResult;
 import com.microsoft.services.discovery.ServiceInfo;
 
-import java.text.MessageFormat;
+import java.util.concurrent.CancellationException;
 
 /**
  * This activity handles the send mail operation of the app.
  * The app must be connected to Office 365 before this activity can send an email.
- * The activity uses the DiscoveryManager class to get the service endpoint. It also
- * uses the MailManager to send the message.
+ * The activity uses the WarmUpManager class to get the service endpoint, which has usually
+ * been discovered by the time the activity opens. It also uses the MailManager to send the
+ * message.
  */
 public class SendMailActivity extends AppCompatActivity {
 
     private static final String TAG = "SendMailActivity";
+    private static final long SEND_MAIL_TIMEOUT_MILLIS = 60 * 1000;
+    private static final String DISCOVER_MAIL_SERVICE_KEY = "/SendMailActivity.discoverMailService";
+    private static final String SEND_MAIL_KEY = "/SendMailActivity.sendMail";
+    private static final String SIGN_IN_KEY = "/SendMailActivity.signIn";
 
     private TextView mTitleTextView;
     private TextView mDescriptionTextView;
@@ -37,63 +45,141 @@ public class SendMailActivity extends AppCompatActivity {
     private Button mSendMailButton;
     private ProgressBar mSendMailProgressBar;
     private TextView mConclusionTextView;
+    private OperationHandle mSendMailHandle;
+    private OperationCallback<ServiceInfo> mDiscoverMailServiceCallback;
+    private OperationCallback<Integer> mSendMailCallback;
+    private AuthenticationCallback<AuthenticationResult> mSignInCallback;
+    private StartupTrace mStartupTrace;
+    private String mDispatchScope;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_send_mail);
+        mDispatchScope = ResultDispatcher.getScope(savedInstanceState);
+        mStartupTrace = new StartupTrace(this, Metrics.SEND_MAIL_FIRST_FRAME, Metrics.SEND_MAIL_INTERACTIVE);
+        StartupTrace.beginSection("SendMailActivity.onCreate");
+        try {
+            setContentView(R.layout.activity_send_mail);
+
+            initializeViews();
 
-        initializeViews();
+            // The operations only get callbacks that don't hold this activity. A result that comes
+            // back while the activity is recreated is delivered to the new instance, which
+            // restores the scope of the keys.
+            bindCallbacks();
 
-        // Extract the givenName and displayableId and use it in the UI.
-        mTitleTextView.append(getIntent()
-                .getStringExtra("givenName") + "!");
-        mEmailEditText.setText(getIntent()
-                .getStringExtra("displayableId"));
+            // Extract the givenName and displayableId and use it in the UI.
+            mTitleTextView.append(getIntent()
+                    .getStringExtra("givenName") + "!");
+            mEmailEditText.setText(getIntent()
+                    .getStringExtra("displayableId"));
 
-        // We don't need to wait for user input to discover the mail service,
-        // so we just do it
-        discoverMailService();
+            // We don't need to wait for user input to discover the mail service,
+            // so we just do it
+            discoverMailService();
+        } finally {
+            StartupTrace.endSection();
+        }
     }
 
     /**
-     * Locates the service endpoints for the mail service using the DiscoveryManager class.
+     * Locates the service endpoints for the mail service using the WarmUpManager class, which
+     * usually got them while the ConnectActivity was connecting.
      */
     public void discoverMailService(){
+        // The warm-up is done already, the send button is usable right away
+        if (WarmUpManager.getInstance().isReady()) {
+            DiagnosticLog.i(TAG, "discoverMailService - Mail service discovered during warm-up");
+            onMailServiceDiscovered();
+            return;
+        }
+
         resetUIForDiscoverMailService();
 
-        // DiscoveryManager does its job in a worker thread
-        // we can just call getServiceInfo
-        DiscoveryManager
-                .getInstance()
-                .getServiceInfo(Constants.MAIL_CAPABILITY,
-                        new OperationCallback<ServiceInfo>() {
-                            @Override
-                            public void onSuccess(final ServiceInfo serviceInfo) {
-                                Log.i(TAG, "discoverMailService - Mail service discovered");
-
-                                // Initialize MailManager with ResourceID and ServiceEndpointURI
-                                MailManager
-                                        .getInstance()
-                                        .setServiceResourceId(
-                                                serviceInfo.getServiceResourceId()
-                                        );
-                                MailManager
-                                        .getInstance()
-                                        .setServiceEndpointUri(
-                                                serviceInfo.getServiceEndpointUri()
-                                        );
-
-                                showDiscoverSuccessUI();
-                            }
+        // WarmUpManager does its job in worker threads
+        // we can just wait for it
+        Futures.addCallback(
+                WarmUpManager.getInstance().start(),
+                new OperationFutureCallback<>(mDiscoverMailServiceCallback)
+        );
+    }
 
+    private void bindCallbacks() {
+        mDiscoverMailServiceCallback = ResultDispatcher.getInstance().bind(
+                this,
+                mDispatchScope + DISCOVER_MAIL_SERVICE_KEY,
+                new OperationCallback<ServiceInfo>() {
+                    @Override
+                    public void onSuccess(final ServiceInfo serviceInfo) {
+                        DiagnosticLog.i(TAG, "discoverMailService - Mail service discovered");
+                        onMailServiceDiscovered();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        DiagnosticLog.e(TAG, "discoverMailService - {}", e.getMessage());
+                        showDiscoverErrorUI();
+                    }
+                });
+
+        mSendMailCallback = ResultDispatcher.getInstance().bind(
+                this,
+                mDispatchScope + SEND_MAIL_KEY,
+                new OperationCallback<Integer>() {
+                    @Override
+                    public void onSuccess(Integer result) {
+                        DiagnosticLog.i(TAG, "onSendMailButtonClick - Mail sent");
+                        showSendMailSuccessUI();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        DiagnosticLog.e(TAG, "onSendMailButtonClick - {}", e.getMessage());
+                        // Cancelled because the activity is going away, there's no UI to update
+                        if (e instanceof CancellationException) {
+                            return;
+                        }
+                        if (MailOutbox.isRejected(e)) {
+                            showSendMailErrorUI();
+                        } else {
+                            // Still in the outbox, it's sent once the service can be reached
+                            showSendMailQueuedUI();
+                        }
+                    }
+                });
+
+        mSignInCallback = ResultDispatcher.getInstance().bind(
+                this,
+                mDispatchScope + SIGN_IN_KEY,
+                new AuthenticationCallback<AuthenticationResult>() {
+                    @Override
+                    public void onSuccess(AuthenticationResult result) {
+                        DiagnosticLog.i(TAG, "onSendMailButtonClick - Signed in again");
+                        runOnUiThread(new Runnable() {
                             @Override
-                            public void onError(Exception e) {
-                                Log.e(TAG, "discoverMailService - " + e.getMessage());
-                                showDiscoverErrorUI();
+                            public void run() {
+                                sendMail();
                             }
-                        }
-                );
+                        });
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        DiagnosticLog.e(TAG, "onSendMailButtonClick - {}", e.getMessage());
+                        showSendMailErrorUI();
+                    }
+                });
+    }
+
+    private void onMailServiceDiscovered() {
+        // Now that the mail service is known, deliver the messages
+        // that were queued in the outbox while we couldn't send them
+        MailOutbox.getInstance(SendMailActivity.this).drain();
+
+        showDiscoverSuccessUI();
+
+        // The send button is enabled, the activity is usable
+        mStartupTrace.reportReady();
     }
 
     /**
@@ -105,29 +191,50 @@ public class SendMailActivity extends AppCompatActivity {
     public void onSendMailButtonClick(View v){
         resetUIForSendMail();
 
-        // MailManager does its job in a worker thread
-        // we can just call sendMail
-        MailManager.getInstance().sendMail(
+        // The tokens couldn't be refreshed in the background, the user signs in again before
+        // the message is sent. The activity is in the foreground, it can show the prompt
+        if (AuthenticationManager.getInstance().isInteractiveSignInNeeded()) {
+            AuthenticationManager.getInstance().setContextActivity(this);
+            AuthenticationManager.getInstance().connect(mSignInCallback);
+            return;
+        }
+
+        sendMail();
+    }
+
+    private void sendMail() {
+        // The body template is compiled once and reused for every send. The subject isn't a
+        // pattern, it's sent as is
+        MailTemplate mailTemplate = new MailTemplate(
+                MessageTemplate.literal(getString(R.string.mail_subject_text)),
+                TemplateCache.getInstance().get(getResources(), R.string.mail_body_text));
+        MailMessage message = mailTemplate.render(new MailTemplate.Recipient(
                 mEmailEditText.getText().toString(),
-                getResources().getString(R.string.mail_subject_text),
-                MessageFormat.format(
-                        getResources().getString(R.string.mail_body_text),
-                        getIntent().getStringExtra("givenName")
-                ),
-                new OperationCallback<Integer>() {
-                    @Override
-                    public void onSuccess(Integer result) {
-                        Log.i(TAG, "onSendMailButtonClick - Mail sent");
-                        showSendMailSuccessUI();
-                    }
+                getIntent().getStringExtra("givenName")));
 
-                    @Override
-                    public void onError(Exception e) {
-                        Log.e(TAG, "onSendMailButtonClick - " + e.getMessage());
-                        showSendMailErrorUI();
-                    }
-                }
-        );
+        // The message goes through the outbox, which stores it before sending it with the
+        // MailManager in a worker thread, so it's not lost if the send can't be completed now
+        ListenableFuture<Integer> mailId = Deadline.withTimeout(
+                MailOutbox.getInstance(SendMailActivity.this).enqueueAsync(message),
+                SEND_MAIL_TIMEOUT_MILLIS);
+        Futures.addCallback(mailId, new OperationFutureCallback<>(mSendMailCallback));
+        mSendMailHandle = new OperationHandle(mailId);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        ResultDispatcher.saveScope(outState, mDispatchScope);
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Nobody is going to see the outcome of the send, stop following it. The message
+        // stays in the outbox. On a rotation the new instance gets the outcome instead.
+        if (mSendMailHandle != null && !isChangingConfigurations()) {
+            mSendMailHandle.cancel();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -153,9 +260,9 @@ public class SendMailActivity extends AppCompatActivity {
 
         } catch (Throwable t) {
             if (t.getMessage() == null)
-                Log.e(TAG, " ");
+                DiagnosticLog.e(TAG, " ");
             else
-                Log.e(TAG, t.getMessage());
+                DiagnosticLog.e(TAG, t.getMessage());
         }
         return true;
     }
@@ -245,6 +352,22 @@ public class SendMailActivity extends AppCompatActivity {
         });
     }
 
+    private void showSendMailQueuedUI(){
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run(){
+                mSendMailProgressBar.setVisibility(View.GONE);
+                mSendMailButton.setVisibility(View.VISIBLE);
+                mConclusionTextView.setText(R.string.send_mail_queued_text);
+                mConclusionTextView.setVisibility(View.VISIBLE);
+                Toast.makeText(
+                        SendMailActivity.this,
+                        R.string.send_mail_queued_toast_text,
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     private void showDisconnectSuccessUI(){
         mTitleTextView.setVisibility(View.GONE);
         mDescriptionTextView.setVisibility(View.GONE);
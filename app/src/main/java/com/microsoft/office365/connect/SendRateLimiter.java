@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests sent to the mail service, so a burst of sends is spread out instead of
+ * running into the service throttling. Each account and endpoint has its own token bucket:
+ * it holds up to a burst of tokens, refills at a steady rate, and every request takes one.
+ * A request that finds the bucket empty reserves the next token and waits for it without
+ * holding a thread. A request that would have to wait longer than the maximum wait is turned
+ * down right away with a {@link RateLimitExceededException}, so callers get backpressure
+ * instead of an ever growing queue.
+ * When the service throttles a request anyway, answering 429 or 503 with a Retry-After header,
+ * the bucket is paused for that long, so the waiting requests don't run into it again.
+ * The {@link MailManager} uses the paced limiter by default, which stays just under the Exchange
+ * Online limit of 30 messages per minute per mailbox. The adaptive limiter, which only waits when
+ * the service asks for it, is opt-in: it lets batch sends go faster at the risk of being throttled.
+ */
+public class SendRateLimiter {
+
+    private static final String THREAD_NAME_PREFIX = "o365-rate-limiter-";
+
+    static final double DEFAULT_PERMITS_PER_MINUTE = 27;
+    static final int DEFAULT_BURST = 3;
+    static final long DEFAULT_MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final double mPermitsPerNano;
+    private final int mBurst;
+    private final long mMaxWaitNanos;
+    private final Map<String, Bucket> mBuckets = new HashMap<>();
+
+    /**
+     * @param permitsPerMinute The sustained number of requests per minute for each account and
+     *                         endpoint.
+     * @param burst The number of requests that can go out back to back after a quiet period.
+     * @param maxWaitMillis The longest a request is queued before it's turned down.
+     */
+    public SendRateLimiter(final double permitsPerMinute, final int burst, final long maxWaitMillis) {
+        if (permitsPerMinute <= 0 || burst < 1 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Invalid rate limiter settings");
+        }
+        mPermitsPerNano = permitsPerMinute / TimeUnit.MINUTES.toNanos(1);
+        mBurst = burst;
+        mMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * @return A limiter that doesn't pace the requests, and only holds them back for as long as
+     * the service asks when it throttles them.
+     */
+    public static SendRateLimiter createAdaptive() {
+        return new SendRateLimiter(Double.MAX_VALUE, Integer.MAX_VALUE, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * @return A limiter that keeps every account and endpoint under the Exchange Online limit
+     * of 30 messages per minute. The default of the {@link MailManager}.
+     */
+    public static SendRateLimiter createPaced() {
+        return createPaced(DEFAULT_PERMITS_PER_MINUTE, DEFAULT_BURST);
+    }
+
+    /**
+     * @param permitsPerMinute The sustained number of requests per minute for each account and
+     *                         endpoint, such as a lower rate for a tenant with stricter limits.
+     * @param burst The number of requests that can go out back to back after a quiet period.
+     * @return A limiter that paces every account and endpoint at the given rate.
+     */
+    public static SendRateLimiter createPaced(final double permitsPerMinute, final int burst) {
+        return new SendRateLimiter(permitsPerMinute, burst, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * @return A limiter that never delays a request.
+     */
+    public static SendRateLimiter createUnlimited() {
+        return new SendRateLimiter(Double.MAX_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Takes a token from the bucket of the account and endpoint.
+     * @param userId The id of the account sending the request, or null if it's unknown.
+     * @param serviceEndpointUri The endpoint the request is sent to.
+     * @return A future that completes when the request can go out. It fails right away with a
+     * RateLimitExceededException if the wait would be longer than the maximum. Cancelling it
+     * gives the token back.
+     */
+    ListenableFuture<Void> acquire(final String userId, final String serviceEndpointUri) {
+        final String key = userId + " " + serviceEndpointUri;
+        long now = System.nanoTime();
+        long waitNanos;
+        synchronized (this) {
+            Bucket bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(mBurst, now);
+                mBuckets.put(key, bucket);
+            }
+            bucket.refill(now);
+
+            // Tokens below zero are reservations of the requests already waiting
+            waitNanos = bucket.mTokens >= 1 ? 0 : (long) Math.ceil((1 - bucket.mTokens) / mPermitsPerNano);
+            waitNanos = Math.max(waitNanos, bucket.mPausedUntilNanos - now);
+            if (waitNanos > mMaxWaitNanos) {
+                long retryAfterMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos - mMaxWaitNanos);
+                return Futures.immediateFailedFuture(new RateLimitExceededException(
+                        retryAfterMillis,
+                        "Too many sends queued for the account, try again in " + retryAfterMillis + " ms"));
+            }
+            bucket.mTokens -= 1;
+        }
+
+        if (waitNanos == 0) {
+            return Futures.immediateFuture(null);
+        }
+
+        final SettableFuture<Void> permit = SettableFuture.create();
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                permit.set(null);
+            }
+        }, waitNanos, TimeUnit.NANOSECONDS);
+        permit.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (permit.isCancelled()) {
+                    release(key);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return permit;
+    }
+
+    /**
+     * Pauses the bucket of the account and endpoint for as long as the service asks, if the
+     * request failed because the service throttled it.
+     * @param userId The id of the account that sent the request, or null if it's unknown.
+     * @param serviceEndpointUri The endpoint the request was sent to.
+     * @param e The reason of failure.
+     */
+    void onRequestFailed(final String userId, final String serviceEndpointUri, final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            int statusCode = RetryPolicy.getStatusCode(cause);
+            if (statusCode > 0) {
+                if (statusCode == 429 || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    long retryAfterMillis = RetryPolicy.getRetryAfterMillis(cause);
+                    if (retryAfterMillis >= 0) {
+                        pause(userId + " " + serviceEndpointUri, retryAfterMillis);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private synchronized void pause(final String key, final long pauseMillis) {
+        long now = System.nanoTime();
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(mBurst, now);
+            mBuckets.put(key, bucket);
+        }
+        bucket.mPausedUntilNanos = Math.max(bucket.mPausedUntilNanos, now + TimeUnit.MILLISECONDS.toNanos(pauseMillis));
+    }
+
+    private synchronized void release(final String key) {
+        Bucket bucket = mBuckets.get(key);
+        if (bucket != null) {
+            bucket.mTokens = Math.min(mBurst, bucket.mTokens + 1);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (SCHEDULER == null) {
+            SCHEDULER = new ScheduledThreadPoolExecutor(1, new WorkerPool.NamedThreadFactory(THREAD_NAME_PREFIX));
+        }
+        return SCHEDULER;
+    }
+
+    private static ScheduledExecutorService SCHEDULER;
+
+    /**
+     * The tokens of an account and endpoint. Guarded by the limiter.
+     */
+    private class Bucket {
+        private double mTokens;
+        private long mLastRefillNanos;
+        private long mPausedUntilNanos;
+
+        Bucket(final double tokens, final long nowNanos) {
+            mTokens = tokens;
+            mLastRefillNanos = nowNanos;
+            mPausedUntilNanos = nowNanos;
+        }
+
+        void refill(final long nowNanos) {
+            mTokens = Math.min(mBurst, mTokens + (nowNanos - mLastRefillNanos) * mPermitsPerNano);
+            mLastRefillNanos = nowNanos;
+        }
+    }
+}
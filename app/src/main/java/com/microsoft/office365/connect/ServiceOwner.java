@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.content.Context;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.aad.adal.AuthenticationResult;
+import com.microsoft.services.orc.resolvers.ADALDependencyResolver;
+
+/**
+ * The account on whose behalf the {@link DiscoveryManager} discovers and caches services.
+ * Either the user connected with the {@link AuthenticationManager} or one of the accounts of
+ * the {@link SessionStore}.
+ */
+interface ServiceOwner {
+    /**
+     * @return The id of the user, or null if it isn't known yet.
+     */
+    String getUserId();
+
+    /**
+     * @return The application context, or null if it isn't available yet.
+     */
+    Context getApplicationContext();
+
+    /**
+     * @param resourceId URL of resource ID to be accessed on behalf of user.
+     * @return The dependency resolver that gets the tokens of the user for the resource.
+     */
+    ADALDependencyResolver getDependencyResolver(String resourceId);
+
+    /**
+     * Gets a token of the user for the resource without prompting, for the requests made
+     * without the clients of the SDK.
+     * @param resourceId URL of resource ID to be accessed on behalf of user.
+     * @return A future with the authentication result, or that fails with an
+     * AuthenticationException if the token couldn't be acquired silently.
+     */
+    ListenableFuture<AuthenticationResult> acquireTokenAsync(String resourceId);
+
+    /**
+     * @return The services of the user kept in memory, or null.
+     */
+    DiscoveryCache.Entry getCachedServices();
+
+    /**
+     * @param cacheEntry The services of the user to keep in memory.
+     */
+    void setCachedServices(DiscoveryCache.Entry cacheEntry);
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import com.microsoft.aad.adal.AuthenticationContext;
+import com.microsoft.aad.adal.ITokenCacheStore;
+import com.microsoft.aad.adal.ITokenStoreQuery;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the accounts signed in on the device, so several mailboxes can be used side by side.
+ * Every account gets its own {@link AccountSession}, with its own tokens, discovered services
+ * and clients, so operations for different accounts don't wait for each other.
+ * The sessions of the most recently used accounts are kept in memory, the least recently used
+ * ones are evicted once there are more than the maximum and rebuilt on their next use.
+ * The list of accounts is persisted in shared preferences. Changes are written behind, a short
+ * while after the last one, so a burst of changes costs a single write. The pending changes are
+ * written right away when the app goes to the background, where it may be killed before the
+ * delay runs out.
+ */
+public class SessionStore {
+
+    private static final String TAG = "SessionStore";
+    private static final String PREFERENCES_FILENAME = "SessionStoreFile";
+    private static final String ACCOUNTS_KEY = "accounts";
+    private static final String USER_ID_KEY = "userId";
+    private static final String DISPLAYABLE_ID_KEY = "displayableId";
+    private static final String LAST_USED_KEY = "lastUsed";
+    private static final String THREAD_NAME_PREFIX = "o365-session-store-";
+    static final int DEFAULT_MAX_SESSIONS = 8;
+    static final long WRITE_BEHIND_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final Map<String, Account> mAccounts = new LinkedHashMap<>();
+    private final LinkedHashMap<String, AccountSession> mSessions;
+    private final ScheduledThreadPoolExecutor mWriter;
+    private AuthenticationContext mAuthenticationContext;
+    private ScheduledFuture<?> mPendingWrite;
+    private int mMaxSessions = DEFAULT_MAX_SESSIONS;
+
+    public static synchronized SessionStore getInstance(final Context context) {
+        if (INSTANCE == null) {
+            INSTANCE = new SessionStore(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    private static SessionStore INSTANCE;
+
+    private SessionStore(final Context context) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCES_FILENAME, Context.MODE_PRIVATE);
+        mWriter = new ScheduledThreadPoolExecutor(1, new WorkerPool.NamedThreadFactory(THREAD_NAME_PREFIX));
+
+        // Access order, so the eldest entry is the least recently used session
+        mSessions = new LinkedHashMap<String, AccountSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AccountSession> eldest) {
+                if (size() > mMaxSessions) {
+                    DiagnosticLog.i(TAG, "removeEldestEntry - Evicting the session of {}", eldest.getValue().getDisplayableId());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        readAccounts();
+        context.registerComponentCallbacks(new TrimMemoryCallbacks());
+    }
+
+    /**
+     * Adds an account that just signed in, or updates it if it's already known.
+     * @param userId The id of the user, from the user info of the authentication result.
+     * @param displayableId The sign in name of the user.
+     * @return The session of the account.
+     */
+    public synchronized AccountSession addAccount(final String userId, final String displayableId) {
+        Account account = mAccounts.get(userId);
+        if (account == null || !TextUtils.equals(account.mDisplayableId, displayableId)) {
+            mAccounts.put(userId, new Account(userId, displayableId, System.currentTimeMillis()));
+            mSessions.remove(userId);
+        }
+        return getSession(userId);
+    }
+
+    /**
+     * Gets the session of an account, creating it if it was evicted or this is its first use
+     * since the app started.
+     * @param userId The id of the user.
+     * @return The session, or null if the account isn't known.
+     */
+    public synchronized AccountSession getSession(final String userId) {
+        Account account = mAccounts.get(userId);
+        if (account == null) {
+            return null;
+        }
+        account.mLastUsedMillis = System.currentTimeMillis();
+        scheduleWrite();
+
+        AccountSession session = mSessions.get(userId);
+        if (session == null) {
+            session = new AccountSession(userId, account.mDisplayableId, mContext, getAuthenticationContext());
+            mSessions.put(userId, session);
+        }
+        return session;
+    }
+
+    /**
+     * @return The ids of the known accounts, the most recently used first.
+     */
+    public synchronized List<String> getUserIds() {
+        List<Account> accounts = new ArrayList<>(mAccounts.values());
+        Collections.sort(accounts, new Comparator<Account>() {
+            @Override
+            public int compare(Account lhs, Account rhs) {
+                return lhs.mLastUsedMillis < rhs.mLastUsedMillis ? 1 : (lhs.mLastUsedMillis == rhs.mLastUsedMillis ? 0 : -1);
+            }
+        });
+        List<String> userIds = new ArrayList<>(accounts.size());
+        for (Account account : accounts) {
+            userIds.add(account.mUserId);
+        }
+        return userIds;
+    }
+
+    /**
+     * Signs an account out of the app: forgets its session, its discovered services and its
+     * tokens. The other accounts are not affected.
+     * @param userId The id of the user.
+     */
+    public void removeAccount(final String userId) {
+        AccountSession session;
+        synchronized (this) {
+            if (mAccounts.remove(userId) == null) {
+                return;
+            }
+            session = mSessions.remove(userId);
+            scheduleWrite();
+        }
+
+        if (session != null) {
+            DiscoveryManager.getInstance().clearCache(session);
+        } else {
+            DiscoveryCache.getInstance(mContext).remove(userId);
+        }
+
+        ITokenCacheStore tokenCache = getAuthenticationContext().getCache();
+        if (tokenCache instanceof ITokenStoreQuery) {
+            ((ITokenStoreQuery) tokenCache).clearTokensForUser(userId);
+        }
+    }
+
+    /**
+     * Signs all the accounts out of the app, such as when the token cache can't tell the tokens
+     * of the accounts apart and all of them are removed.
+     */
+    public synchronized void clear() {
+        mAccounts.clear();
+        mSessions.clear();
+        scheduleWrite();
+    }
+
+    /**
+     * Changes how many sessions are kept in memory. The accounts themselves are all kept.
+     * @param maxSessions The maximum number of sessions in memory.
+     */
+    public synchronized void setMaxSessions(final int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        mMaxSessions = maxSessions;
+
+        // Trim right away rather than on the next insertion
+        List<String> userIds = new ArrayList<>(mSessions.keySet());
+        for (int i = 0; i < userIds.size() - maxSessions; i++) {
+            mSessions.remove(userIds.get(i));
+        }
+    }
+
+    /**
+     * Writes the pending changes right away, such as when the app goes to the background.
+     */
+    public synchronized void flush() {
+        if (mPendingWrite == null) {
+            return;
+        }
+        mPendingWrite.cancel(false);
+        mPendingWrite = null;
+        writeAccounts();
+    }
+
+    private synchronized AuthenticationContext getAuthenticationContext() {
+        if (mAuthenticationContext == null) {
+            // Silent token requests don't need an activity, the token cache is shared with the
+            // AuthenticationManager, which must have set up ADAL the same way
+            AuthenticationManager.initializeAuthenticationSettings();
+            mAuthenticationContext = new AuthenticationContext(mContext, Constants.AUTHORITY_URL, false);
+        }
+        return mAuthenticationContext;
+    }
+
+    private void scheduleWrite() {
+        if (mPendingWrite != null) {
+            return;
+        }
+        mPendingWrite = mWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SessionStore.this) {
+                    mPendingWrite = null;
+                    writeAccounts();
+                }
+            }
+        }, WRITE_BEHIND_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void readAccounts() {
+        String json = mPreferences.getString(ACCOUNTS_KEY, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONArray jsonAccounts = new JSONArray(json);
+            for (int i = 0; i < jsonAccounts.length(); i++) {
+                JSONObject jsonAccount = jsonAccounts.getJSONObject(i);
+                // optString turns a null into "null", so check for it first
+                Account account = new Account(
+                        jsonAccount.getString(USER_ID_KEY),
+                        jsonAccount.isNull(DISPLAYABLE_ID_KEY) ? null : jsonAccount.optString(DISPLAYABLE_ID_KEY),
+                        jsonAccount.getLong(LAST_USED_KEY));
+                mAccounts.put(account.mUserId, account);
+            }
+            DiagnosticLog.i(TAG, "readAccounts - {} accounts signed in", mAccounts.size());
+        } catch (JSONException e) {
+            DiagnosticLog.e(TAG, "readAccounts - Ignoring the corrupted account list: {}", e.getMessage());
+        }
+    }
+
+    private void writeAccounts() {
+        try {
+            JSONArray jsonAccounts = new JSONArray();
+            for (Account account : mAccounts.values()) {
+                JSONObject jsonAccount = new JSONObject();
+                jsonAccount.put(USER_ID_KEY, account.mUserId);
+                // Putting a null would remove the key, the sign in name isn't always known
+                jsonAccount.put(DISPLAYABLE_ID_KEY, account.mDisplayableId == null ? JSONObject.NULL : account.mDisplayableId);
+                jsonAccount.put(LAST_USED_KEY, account.mLastUsedMillis);
+                jsonAccounts.put(jsonAccount);
+            }
+            mPreferences.edit().putString(ACCOUNTS_KEY, jsonAccounts.toString()).apply();
+        } catch (JSONException e) {
+            DiagnosticLog.e(TAG, "writeAccounts - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Flushes the pending changes once none of the activities of the app is visible anymore.
+     */
+    private class TrimMemoryCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            flush();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
+    /**
+     * What's persisted about an account, kept even when its session is evicted.
+     */
+    private static class Account {
+        private final String mUserId;
+        private final String mDisplayableId;
+        private long mLastUsedMillis;
+
+        Account(final String userId, final String displayableId, final long lastUsedMillis) {
+            mUserId = userId;
+            mDisplayableId = displayableId;
+            mLastUsedMillis = lastUsedMillis;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client behind the calls to Office 365 the app makes itself, the streaming uploads and
+ * the conditional discovery requests, instead of through the clients of the SDK. Sharing it
+ * means the connections to a host are pooled and kept alive across those calls.
+ * Responses are compressed with gzip and decompressed transparently, and HTTP/2 is negotiated
+ * where the device and the server support it, so concurrent requests to a host share a single
+ * connection.
+ * Call {@link SharedHttpClient#configure(int, long, int, boolean)} before the first use of
+ * {@link SharedHttpClient#getInstance()} to change the pool settings.
+ */
+public class SharedHttpClient {
+
+    static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final int DEFAULT_MAX_REQUESTS_PER_HOST = 5;
+    static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    static final long READ_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static int sMaxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private static long sKeepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private static int sMaxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+    private static boolean sHttp2Enabled = true;
+
+    private final OkHttpClient mClient;
+
+    public static synchronized SharedHttpClient getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new SharedHttpClient(sMaxIdleConnections, sKeepAliveMillis, sMaxRequestsPerHost, sHttp2Enabled);
+        }
+        return INSTANCE;
+    }
+
+    private static SharedHttpClient INSTANCE;
+
+    /**
+     * Changes the connection pool settings. The values take effect when the client is created,
+     * so this method must be called before the first call to {@link SharedHttpClient#getInstance()}.
+     * @param maxIdleConnections The maximum number of idle connections kept open.
+     * @param keepAliveMillis How long an idle connection is kept open.
+     * @param maxRequestsPerHost The maximum number of requests in flight to a single host, the
+     *                           others wait for one of them to complete.
+     * @param http2Enabled False to stick to HTTP/1.1, such as for a proxy that can't handle HTTP/2.
+     */
+    public static synchronized void configure(final int maxIdleConnections, final long keepAliveMillis, final int maxRequestsPerHost, final boolean http2Enabled) {
+        if (maxIdleConnections < 0 || keepAliveMillis < 0 || maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("Invalid connection pool settings");
+        }
+        if (INSTANCE != null) {
+            throw new IllegalStateException("The HTTP client has already been created");
+        }
+        sMaxIdleConnections = maxIdleConnections;
+        sKeepAliveMillis = keepAliveMillis;
+        sMaxRequestsPerHost = maxRequestsPerHost;
+        sHttp2Enabled = http2Enabled;
+    }
+
+    private SharedHttpClient(final int maxIdleConnections, final long keepAliveMillis, final int maxRequestsPerHost, final boolean http2Enabled) {
+        mClient = new OkHttpClient();
+        mClient.setConnectionPool(new ConnectionPool(maxIdleConnections, keepAliveMillis));
+        mClient.setConnectTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        mClient.setReadTimeout(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        mClient.setProtocols(http2Enabled
+                ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                : Collections.singletonList(Protocol.HTTP_1_1));
+
+        // Requests go through the dispatcher, which holds back the ones over the per host limit
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        mClient.setDispatcher(dispatcher);
+    }
+
+    /**
+     * @return The shared client. Don't change its settings, they apply to every service.
+     */
+    OkHttpClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Gets a snapshot of the connection pool and the requests.
+     * @return The current number of connections and requests.
+     */
+    public Stats getStats() {
+        ConnectionPool connectionPool = mClient.getConnectionPool();
+        Dispatcher dispatcher = mClient.getDispatcher();
+        return new Stats(
+                connectionPool.getConnectionCount(),
+                connectionPool.getIdleConnectionCount(),
+                connectionPool.getMultiplexedConnectionCount(),
+                dispatcher.getRunningCallCount(),
+                dispatcher.getQueuedCallCount());
+    }
+
+    /**
+     * Point in time view of the connection pool and the requests.
+     */
+    public static class Stats {
+        private final int mConnectionCount;
+        private final int mIdleConnectionCount;
+        private final int mMultiplexedConnectionCount;
+        private final int mRunningRequestCount;
+        private final int mQueuedRequestCount;
+
+        Stats(int connectionCount, int idleConnectionCount, int multiplexedConnectionCount, int runningRequestCount, int queuedRequestCount) {
+            mConnectionCount = connectionCount;
+            mIdleConnectionCount = idleConnectionCount;
+            mMultiplexedConnectionCount = multiplexedConnectionCount;
+            mRunningRequestCount = runningRequestCount;
+            mQueuedRequestCount = queuedRequestCount;
+        }
+
+        /** @return The number of connections open in the pool, busy or idle. */
+        public int getConnectionCount() {
+            return mConnectionCount;
+        }
+
+        /** @return The number of open connections that no request is using. */
+        public int getIdleConnectionCount() {
+            return mIdleConnectionCount;
+        }
+
+        /** @return The number of HTTP/2 connections, which carry several requests at once. */
+        public int getMultiplexedConnectionCount() {
+            return mMultiplexedConnectionCount;
+        }
+
+        /** @return The number of requests in flight. */
+        public int getRunningRequestCount() {
+            return mRunningRequestCount;
+        }
+
+        /** @return The number of requests waiting because their host is at its limit. */
+        public int getQueuedRequestCount() {
+            return mQueuedRequestCount;
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + mConnectionCount
+                    + ", idle=" + mIdleConnectionCount
+                    + ", multiplexed=" + mMultiplexedConnectionCount
+                    + ", running=" + mRunningRequestCount
+                    + ", queued=" + mQueuedRequestCount;
+        }
+    }
+}
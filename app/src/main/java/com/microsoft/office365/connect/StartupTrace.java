@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Trace;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Measures how long an activity takes to start, from the beginning of its onCreate.
+ * Two milestones are recorded in the {@link Metrics}: the first frame, when the activity is
+ * drawn, and interactive, when it's drawn and the activity reported it's ready to be used.
+ * Once interactive the activity reports itself fully drawn, so on API 19 and later the system
+ * log has a "Fully drawn" line next to its own "Displayed" one.
+ * The synchronous parts of the startup can be wrapped in sections with
+ * {@link StartupTrace#beginSection(String)}, they show up in systrace on API 18 and later.
+ */
+public class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    private final Activity mActivity;
+    private final String mFirstFrameMetric;
+    private final String mInteractiveMetric;
+    private final long mStartNanos = System.nanoTime();
+    private boolean mFirstFrameDrawn;
+    private boolean mReady;
+    private boolean mInteractive;
+
+    /**
+     * Starts measuring. Call it at the beginning of onCreate, before setContentView.
+     * @param activity The activity being started.
+     * @param firstFrameMetric The name under which the time to the first frame is recorded.
+     * @param interactiveMetric The name under which the time to interactive is recorded.
+     */
+    public StartupTrace(final Activity activity, final String firstFrameMetric, final String interactiveMetric) {
+        mActivity = activity;
+        mFirstFrameMetric = firstFrameMetric;
+        mInteractiveMetric = interactiveMetric;
+
+        final View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                onFirstFrame();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Reports that the activity is ready to be used, such as when the data it shows is loaded.
+     * The activity becomes interactive when this is called and its first frame is drawn,
+     * whichever happens last. Can be called from any thread, only the first call counts.
+     */
+    public void reportReady() {
+        mActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mReady = true;
+                reportInteractiveIfReady();
+            }
+        });
+    }
+
+    private void onFirstFrame() {
+        mFirstFrameDrawn = true;
+        Metrics.getInstance().recordTiming(mFirstFrameMetric, mStartNanos, true);
+        DiagnosticLog.i(TAG, "onFirstFrame - {} drawn", mActivity.getClass().getSimpleName());
+        reportInteractiveIfReady();
+    }
+
+    private void reportInteractiveIfReady() {
+        if (mInteractive || !mFirstFrameDrawn || !mReady) {
+            return;
+        }
+        mInteractive = true;
+        Metrics.getInstance().recordTiming(mInteractiveMetric, mStartNanos, true);
+        DiagnosticLog.i(TAG, "reportInteractiveIfReady - {} is interactive", mActivity.getClass().getSimpleName());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mActivity.reportFullyDrawn();
+        }
+    }
+
+    /**
+     * Begins a systrace section on the current thread. Sections must be ended on the thread
+     * that began them, in the reverse order, so don't keep one open across messages.
+     * @param sectionName The name of the section, shown in systrace.
+     */
+    static void beginSection(final String sectionName) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(sectionName);
+        }
+    }
+
+    /**
+     * Ends the last section begun on the current thread.
+     */
+    static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An email message whose body and attachments are read from streams while the message is
+ * uploaded, so they never sit fully in memory. Send it with
+ * {@link MailManager#sendMailStreamingAsync(StreamingMailMessage)}.
+ * The content is opened again for each attempt, so a send can be retried after a failure.
+ */
+public class StreamingMailMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Opens the content of a body or an attachment. Called once per send attempt.
+     */
+    public interface ContentSource {
+        /**
+         * @return A new stream positioned at the start of the content. The caller closes it.
+         * @throws IOException If the content can't be opened.
+         */
+        InputStream openStream() throws IOException;
+    }
+
+    private final String mEmailAddress;
+    private final String mSubject;
+    private final ContentSource mBody;
+    private final List<Attachment> mAttachments;
+
+    /**
+     * @param emailAddress The recipient email address.
+     * @param subject The subject to use in the mail message.
+     * @param body The HTML body of the message, encoded in UTF-8.
+     * @param attachments The files to attach to the message.
+     */
+    public StreamingMailMessage(final String emailAddress, final String subject, final ContentSource body, final List<Attachment> attachments) {
+        mEmailAddress = emailAddress;
+        mSubject = subject;
+        mBody = body;
+        mAttachments = Collections.unmodifiableList(new ArrayList<>(attachments));
+    }
+
+    /**
+     * @param file The file to read the content from.
+     * @return A source that reads the file.
+     */
+    public static ContentSource fromFile(final File file) {
+        return new ContentSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    /**
+     * @param content A small content already in memory, such as a short body.
+     * @return A source that reads the content encoded in UTF-8.
+     */
+    public static ContentSource fromString(final String content) {
+        final byte[] bytes = content.getBytes(UTF_8);
+        return new ContentSource() {
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    public String getEmailAddress() {
+        return mEmailAddress;
+    }
+
+    public String getSubject() {
+        return mSubject;
+    }
+
+    public ContentSource getBody() {
+        return mBody;
+    }
+
+    public List<Attachment> getAttachments() {
+        return mAttachments;
+    }
+
+    /**
+     * A file attached to a {@link StreamingMailMessage}.
+     */
+    public static class Attachment {
+        private final String mName;
+        private final String mContentType;
+        private final ContentSource mContent;
+
+        /**
+         * @param name The file name shown to the recipient.
+         * @param contentType The MIME type of the file.
+         * @param content The content of the file.
+         */
+        public Attachment(final String name, final String contentType, final ContentSource content) {
+            mName = name;
+            mContentType = contentType;
+            mContent = content;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getContentType() {
+            return mContentType;
+        }
+
+        public ContentSource getContent() {
+            return mContent;
+        }
+    }
+}
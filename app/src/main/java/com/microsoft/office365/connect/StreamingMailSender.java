@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import okio.BufferedSink;
+
+/**
+ * Sends a {@link StreamingMailMessage} by writing the sendmail request of the Outlook REST API
+ * straight to a pooled connection of the {@link SharedHttpClient}, in chunks. The body is
+ * escaped into the JSON and the attachments are Base64 encoded on the fly, so the memory used
+ * by a send stays the same no matter how large the message is.
+ * The upload is queued on the dispatcher of the client, like the other requests, so it counts
+ * against the limit of requests in flight to the host.
+ */
+class StreamingMailSender {
+
+    private static final String TAG = "StreamingMailSender";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEND_MAIL_PATH = "/me/sendmail";
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private StreamingMailSender() {
+    }
+
+    /**
+     * Uploads the message to the Outlook service, without blocking.
+     * @param serviceEndpointUri The service endpoint uri obtained from the discovery service.
+     * @param accessToken A token for the Outlook service.
+     * @param message The message to send.
+     * @return A future with the HTTP status code of the response, or that fails with an
+     * IOException if the upload failed or the content couldn't be read, or with a
+     * {@link HttpStatusException} if the service rejected the message. Cancelling it cancels
+     * the upload.
+     */
+    static ListenableFuture<Integer> sendAsync(final String serviceEndpointUri, final String accessToken, final StreamingMailMessage message) {
+        // Without a content length, the body is sent in chunks as it's written
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                OutputStream outputStream = sink.outputStream();
+                writeMessage(outputStream, message);
+                outputStream.flush();
+            }
+        };
+        Request request = new Request.Builder()
+                .url(serviceEndpointUri + SEND_MAIL_PATH)
+                .header("Authorization", "Bearer " + accessToken)
+                .header("Accept", "application/json")
+                .post(body)
+                .build();
+
+        final SettableFuture<Integer> future = SettableFuture.create();
+        final Call call = SharedHttpClient.getInstance().getClient().newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Request failedRequest, IOException e) {
+                future.setException(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                try {
+                    future.set(readResponse(response));
+                } catch (Exception e) {
+                    future.setException(e);
+                } finally {
+                    // Returns the connection to the pool
+                    closeQuietly(response.body());
+                }
+            }
+        });
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    call.cancel();
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private static int readResponse(final Response response) throws HttpStatusException {
+        int statusCode = response.code();
+        if (statusCode / 100 != 2) {
+            throw new HttpStatusException(
+                    statusCode,
+                    response.header("Retry-After"),
+                    "sendmail failed with HTTP " + statusCode + " " + response.message());
+        }
+        DiagnosticLog.i(TAG, "sendAsync - Message sent with HTTP {} over {}", statusCode, response.protocol());
+        return statusCode;
+    }
+
+    private static void writeMessage(final OutputStream outputStream, final StreamingMailMessage message) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8), BUFFER_SIZE);
+
+        writer.write("{\"Message\":{\"Subject\":");
+        writeJsonString(writer, message.getSubject());
+        writer.write(",\"Body\":{\"ContentType\":\"HTML\",\"Content\":\"");
+        InputStream body = message.getBody().openStream();
+        try {
+            writeJsonEscaped(writer, new InputStreamReader(body, UTF_8));
+        } finally {
+            closeQuietly(body);
+        }
+        writer.write("\"},\"ToRecipients\":[{\"EmailAddress\":{\"Address\":");
+        writeJsonString(writer, message.getEmailAddress());
+        writer.write("}}],\"Attachments\":[");
+
+        boolean first = true;
+        for (StreamingMailMessage.Attachment attachment : message.getAttachments()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"@odata.type\":\"#Microsoft.OutlookServices.FileAttachment\",\"Name\":");
+            writeJsonString(writer, attachment.getName());
+            writer.write(",\"ContentType\":");
+            writeJsonString(writer, attachment.getContentType());
+            writer.write(",\"ContentBytes\":\"");
+            // The Base64 alphabet doesn't need escaping, encode the bytes under the writer
+            writer.flush();
+            writeBase64(outputStream, attachment.getContent());
+            writer.write("\"}");
+        }
+
+        writer.write("]},\"SaveToSentItems\":true}");
+        writer.flush();
+    }
+
+    private static void writeBase64(final OutputStream outputStream, final StreamingMailMessage.ContentSource content) throws IOException {
+        InputStream inputStream = content.openStream();
+        // NO_CLOSE leaves the connection open when the encoder is closed to write the padding
+        OutputStream base64OutputStream = new Base64OutputStream(outputStream, Base64.NO_WRAP | Base64.NO_CLOSE);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                base64OutputStream.write(buffer, 0, count);
+            }
+        } finally {
+            base64OutputStream.close();
+            closeQuietly(inputStream);
+        }
+    }
+
+    private static void writeJsonString(final Writer writer, final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            writeJsonEscaped(writer, value.charAt(i));
+        }
+        writer.write('"');
+    }
+
+    private static void writeJsonEscaped(final Writer writer, final Reader reader) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                writeJsonEscaped(writer, buffer[i]);
+            }
+        }
+    }
+
+    private static void writeJsonEscaped(final Writer writer, final char c) throws IOException {
+        switch (c) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    writer.write(String.format("\\u%04x", (int) c));
+                } else {
+                    writer.write(c);
+                }
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            DiagnosticLog.e(TAG, "closeQuietly - {}", e.getMessage());
+        }
+    }
+}
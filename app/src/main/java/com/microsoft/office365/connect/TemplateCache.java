@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import android.content.res.Resources;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the compiled message templates, so each pattern is parsed once per process.
+ * Templates from string resources are cached by resource id and locale, so a configuration
+ * change picks up the translated pattern. Other templates are cached by an id chosen by
+ * the caller.
+ */
+public class TemplateCache {
+
+    private static final String RESOURCE_KEY_PREFIX = "res:";
+    private static final String ID_KEY_PREFIX = "id:";
+
+    private final ConcurrentHashMap<String, MessageTemplate> mTemplates = new ConcurrentHashMap<>();
+
+    public static synchronized TemplateCache getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new TemplateCache();
+        }
+        return INSTANCE;
+    }
+
+    private static TemplateCache INSTANCE;
+
+    /**
+     * Gets the template of a string resource, compiling it on first use.
+     * @param resources The resources of the app.
+     * @param resourceId The id of the string resource with the pattern.
+     * @return The compiled template.
+     */
+    public MessageTemplate get(final Resources resources, final int resourceId) {
+        String key = RESOURCE_KEY_PREFIX + resourceId + "@" + resources.getConfiguration().locale;
+        MessageTemplate template = mTemplates.get(key);
+        if (template == null) {
+            template = putIfAbsent(key, MessageTemplate.compile(resources.getString(resourceId)));
+        }
+        return template;
+    }
+
+    /**
+     * Gets the mail template made of two string resources, compiling them on first use.
+     * @param resources The resources of the app.
+     * @param subjectResourceId The id of the string resource with the subject pattern.
+     * @param bodyResourceId The id of the string resource with the body pattern.
+     * @return The mail template.
+     */
+    public MailTemplate getMailTemplate(final Resources resources, final int subjectResourceId, final int bodyResourceId) {
+        return new MailTemplate(get(resources, subjectResourceId), get(resources, bodyResourceId));
+    }
+
+    /**
+     * Gets a template by id, compiling the pattern the first time the id is seen.
+     * @param id An id for the template, chosen by the caller.
+     * @param pattern The pattern, only used the first time.
+     * @return The compiled template.
+     */
+    public MessageTemplate get(final String id, final String pattern) {
+        String key = ID_KEY_PREFIX + id;
+        MessageTemplate template = mTemplates.get(key);
+        if (template == null) {
+            template = putIfAbsent(key, MessageTemplate.compile(pattern));
+        }
+        return template;
+    }
+
+    /**
+     * Forgets all the compiled templates.
+     */
+    public void clear() {
+        mTemplates.clear();
+    }
+
+    private MessageTemplate putIfAbsent(final String key, final MessageTemplate template) {
+        MessageTemplate existingTemplate = mTemplates.putIfAbsent(key, template);
+        return existingTemplate == null ? template : existingTemplate;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of when the token of each resource expires and refreshes it in the background
+ * ahead of time, so operations almost never wait for a token refresh.
+ * A random jitter is added to each refresh, so the refreshes of different resources don't all
+ * happen at the same time. Failed refreshes are retried with a growing delay, after the last
+ * attempt the {@link AuthenticationManager} falls back to prompting the user.
+ */
+class TokenRefreshScheduler {
+
+    private static final String TAG = "TokenRefreshScheduler";
+    private static final String THREAD_NAME_PREFIX = "o365-token-refresh-";
+    // ADAL serves a cached token until it's this close to expiring, and only then uses the
+    // refresh token. A refresh earlier than that gets the same token back
+    static final long ADAL_EXPIRATION_BUFFER_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long MAX_JITTER_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // The lead plus the jitter stays a minute within the buffer of ADAL, so a refresh always
+    // gets a new token
+    static final long REFRESH_LEAD_MILLIS = ADAL_EXPIRATION_BUFFER_MILLIS - MAX_JITTER_MILLIS - TimeUnit.MINUTES.toMillis(1);
+    static final long MIN_REFRESH_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Does the actual token refresh for a resource.
+     */
+    interface Refresher {
+        /**
+         * Gets a new token for the resource. Must report the outcome by calling
+         * {@link TokenRefreshScheduler#onRefreshSucceeded(String, Date)} or
+         * {@link TokenRefreshScheduler#onRefreshFailed(String, Exception)}.
+         * @param resourceId URL of the resource to refresh the token for.
+         */
+        void refresh(String resourceId);
+
+        /**
+         * Called once all the refresh attempts for a resource have failed.
+         * @param resourceId URL of the resource whose token couldn't be refreshed.
+         */
+        void onRefreshExhausted(String resourceId);
+    }
+
+    private final Refresher mRefresher;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Random mRandom = new Random();
+    private final Map<String, ScheduledFuture<?>> mScheduledRefreshes = new HashMap<>();
+    private final Map<String, Integer> mFailedAttempts = new HashMap<>();
+    private final Map<String, Date> mExpirations = new HashMap<>();
+
+    TokenRefreshScheduler(final Refresher refresher) {
+        mRefresher = refresher;
+        mExecutor = new ScheduledThreadPoolExecutor(1, new WorkerPool.NamedThreadFactory(THREAD_NAME_PREFIX));
+    }
+
+    /**
+     * Starts tracking a resource, refreshing its token right away in the background if we don't
+     * know yet when it expires.
+     * @param resourceId URL of the resource.
+     */
+    synchronized void track(final String resourceId) {
+        if (!mScheduledRefreshes.containsKey(resourceId)) {
+            schedule(resourceId, 0);
+        }
+    }
+
+    /**
+     * Records the expiration of a new token and schedules its refresh, at least
+     * {@link TokenRefreshScheduler#MIN_REFRESH_DELAY_MILLIS} later. A token that is due for a
+     * refresh and still has the same expiration wasn't renewed, it counts as a failed refresh.
+     * @param resourceId URL of the resource the token is for.
+     * @param expiresOn When the token expires.
+     */
+    void onRefreshSucceeded(final String resourceId, final Date expiresOn) {
+        synchronized (this) {
+            Date previousExpiration = mExpirations.put(resourceId, expiresOn);
+            long delay = MIN_REFRESH_DELAY_MILLIS;
+            if (expiresOn != null) {
+                delay = expiresOn.getTime()
+                        - System.currentTimeMillis()
+                        - REFRESH_LEAD_MILLIS
+                        - (long) (mRandom.nextDouble() * MAX_JITTER_MILLIS);
+            }
+            boolean renewed = expiresOn == null || !expiresOn.equals(previousExpiration);
+            if (renewed || delay >= MIN_REFRESH_DELAY_MILLIS) {
+                mFailedAttempts.remove(resourceId);
+                delay = Math.max(MIN_REFRESH_DELAY_MILLIS, delay);
+                DiagnosticLog.i(TAG, "onRefreshSucceeded - Next refresh of {} in {} ms", resourceId, delay);
+                schedule(resourceId, delay);
+                return;
+            }
+        }
+
+        onRefreshFailed(resourceId, new IllegalStateException("The token expiring on " + expiresOn + " wasn't renewed"));
+    }
+
+    /**
+     * Records a failed refresh and schedules another attempt, or gives up after
+     * {@link TokenRefreshScheduler#MAX_ATTEMPTS} attempts.
+     * @param resourceId URL of the resource the token is for.
+     * @param e The reason of failure.
+     */
+    void onRefreshFailed(final String resourceId, final Exception e) {
+        int attempts;
+        synchronized (this) {
+            Integer failedAttempts = mFailedAttempts.get(resourceId);
+            attempts = failedAttempts == null ? 1 : failedAttempts + 1;
+            if (attempts < MAX_ATTEMPTS) {
+                mFailedAttempts.put(resourceId, attempts);
+                long delay = RETRY_DELAY_MILLIS * (1L << (attempts - 1))
+                        + (long) (mRandom.nextDouble() * RETRY_DELAY_MILLIS);
+                DiagnosticLog.e(TAG, "onRefreshFailed - Attempt {} for {} failed, retrying in {} ms: {}", attempts, resourceId, delay, e == null ? "" : e.getMessage());
+                schedule(resourceId, delay);
+                return;
+            }
+            mFailedAttempts.remove(resourceId);
+            mScheduledRefreshes.remove(resourceId);
+        }
+
+        DiagnosticLog.e(TAG, "onRefreshFailed - Giving up on refreshing {} after {} attempts", resourceId, attempts);
+        mRefresher.onRefreshExhausted(resourceId);
+    }
+
+    /**
+     * Cancels all the scheduled refreshes and stops the scheduler thread.
+     */
+    synchronized void shutdown() {
+        mScheduledRefreshes.clear();
+        mFailedAttempts.clear();
+        mExpirations.clear();
+        mExecutor.shutdownNow();
+    }
+
+    private void schedule(final String resourceId, final long delayMillis) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        ScheduledFuture<?> previousRefresh = mScheduledRefreshes.get(resourceId);
+        if (previousRefresh != null) {
+            previousRefresh.cancel(false);
+        }
+
+        mScheduledRefreshes.put(resourceId, mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mRefresher.refresh(resourceId);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.aad.adal.AuthenticationResult;
+import com.microsoft.services.discovery.ServiceInfo;
+
+import java.util.List;
+
+/**
+ * Gets everything the first send needs ready while the user is still on the connect screen.
+ * As soon as the id of a signed in user is known, the discovery of the mail service, the
+ * acquisition of the Outlook token and the construction of the Outlook client start in parallel,
+ * instead of one after another once the {@link SendMailActivity} opens.
+ * The warm-up is ready when the mail service is discovered and the {@link MailManager} is
+ * initialized with it. The token is best effort, if it can't be acquired silently the first
+ * send gets it the usual way.
+ */
+public class WarmUpManager {
+
+    private static final String TAG = "WarmUpManager";
+
+    private ListenableFuture<ServiceInfo> mWarmUp;
+
+    public static synchronized WarmUpManager getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new WarmUpManager();
+        }
+        return INSTANCE;
+    }
+
+    private static WarmUpManager INSTANCE;
+
+    /**
+     * Starts the warm-up, unless it's already running or done. A warm-up that failed is started
+     * again. Needs the context activity of the {@link AuthenticationManager} to be set.
+     * @return A future with the discovered mail service, which completes once the app is ready
+     * to send.
+     */
+    public synchronized ListenableFuture<ServiceInfo> start() {
+        if (mWarmUp != null && (!mWarmUp.isDone() || isReady())) {
+            return mWarmUp;
+        }
+
+        DiagnosticLog.i(TAG, "start - Warming up for the first send");
+        final long startNanos = System.nanoTime();
+
+        // Discovery, then the client for the discovered endpoint
+        ListenableFuture<ServiceInfo> mailService = Futures.transform(
+                DiscoveryManager.getInstance().getServiceInfoAsync(Constants.MAIL_CAPABILITY),
+                new Function<ServiceInfo, ServiceInfo>() {
+                    @Override
+                    public ServiceInfo apply(ServiceInfo serviceInfo) {
+                        // Initialize MailManager with ResourceID and ServiceEndpointURI
+                        MailManager.getInstance().setServiceResourceId(serviceInfo.getServiceResourceId());
+                        MailManager.getInstance().setServiceEndpointUri(serviceInfo.getServiceEndpointUri());
+                        MailManager.getInstance().prepareClient();
+                        return serviceInfo;
+                    }
+                },
+                WorkerPool.getInstance());
+
+        // The Outlook token, at the same time as discovery
+        ListenableFuture<AuthenticationResult> outlookToken = Futures.withFallback(
+                AuthenticationManager.getInstance().acquireTokenAsync(Constants.OUTLOOK_RESOURCE_ID),
+                new FutureFallback<AuthenticationResult>() {
+                    @Override
+                    public ListenableFuture<AuthenticationResult> create(Throwable t) {
+                        DiagnosticLog.e(TAG, "start - Couldn't get the Outlook token ahead of time: {}", t.getMessage());
+                        return Futures.immediateFuture(null);
+                    }
+                });
+
+        ListenableFuture<List<Object>> steps = Futures.<Object>allAsList(mailService, outlookToken);
+        mWarmUp = Futures.transform(steps, new Function<List<Object>, ServiceInfo>() {
+            @Override
+            public ServiceInfo apply(List<Object> results) {
+                return (ServiceInfo) results.get(0);
+            }
+        });
+
+        Futures.addCallback(mWarmUp, new FutureCallback<ServiceInfo>() {
+            @Override
+            public void onSuccess(ServiceInfo result) {
+                Metrics.getInstance().recordTiming(Metrics.WARM_UP, startNanos, true);
+                DiagnosticLog.i(TAG, "start - Ready to send");
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                Metrics.getInstance().recordTiming(Metrics.WARM_UP, startNanos, false);
+                DiagnosticLog.e(TAG, "start - {}", t.getMessage());
+            }
+        });
+        return mWarmUp;
+    }
+
+    /**
+     * Check to see if the warm-up is done and the app is ready to send.
+     * @return True if the mail service was discovered and the MailManager initialized with it.
+     */
+    public synchronized boolean isReady() {
+        if (mWarmUp == null || !mWarmUp.isDone()) {
+            return false;
+        }
+        try {
+            mWarmUp.get();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the warm-up of the signed in user, so the next user starts from scratch.
+     */
+    synchronized void reset() {
+        if (mWarmUp != null) {
+            mWarmUp.cancel(false);
+            mWarmUp = null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared, bounded pool of worker threads used by the managers to get their work off the
+ * main thread. Instead of creating a new thread for each operation, the
+ * {@link AuthenticationManager}, {@link DiscoveryManager} and {@link MailManager} submit their
+ * work here, so the number of threads stays bounded and threads are reused.
+ * Call {@link WorkerPool#configure(int, int, RejectionPolicy)} before the first use of
+ * {@link WorkerPool#getInstance()} to change the default size and rejection policy.
+ * The pool is also an Executor, so the asynchronous pipelines can run their heavier steps here.
+ */
+public class WorkerPool implements Executor {
+
+    private static final String TAG = "WorkerPool";
+    private static final String THREAD_NAME_PREFIX = "o365-worker-";
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    static final int DEFAULT_POOL_SIZE = 4;
+    static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    /**
+     * What the pool does with new work when all the threads are busy and the queue is full.
+     */
+    public enum RejectionPolicy {
+        /** Throw a {@link java.util.concurrent.RejectedExecutionException} to the caller. */
+        ABORT,
+        /** Run the work in the thread that submitted it. */
+        CALLER_RUNS,
+        /**
+         * Drop the oldest queued work to make room for the new one. Dropped work that is a
+         * {@link Future}, such as a ListenableFutureTask, is cancelled so its callers find out.
+         */
+        DISCARD_OLDEST
+    }
+
+    private static int sPoolSize = DEFAULT_POOL_SIZE;
+    private static int sQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private static RejectionPolicy sRejectionPolicy = RejectionPolicy.ABORT;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mRejectedCount = new AtomicInteger();
+
+    public static synchronized WorkerPool getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new WorkerPool(sPoolSize, sQueueCapacity, sRejectionPolicy);
+        }
+        return INSTANCE;
+    }
+
+    private static WorkerPool INSTANCE;
+
+    /**
+     * Changes the size, queue depth and rejection policy of the pool. The values take effect
+     * when the pool is created, so this method must be called before the first call to
+     * {@link WorkerPool#getInstance()}.
+     * @param poolSize The maximum number of threads doing work at the same time.
+     * @param queueCapacity The maximum number of operations waiting for a free thread.
+     * @param rejectionPolicy What to do with new work when the queue is full.
+     */
+    public static synchronized void configure(final int poolSize, final int queueCapacity, final RejectionPolicy rejectionPolicy) {
+        if (poolSize < 1 || queueCapacity < 1 || rejectionPolicy == null) {
+            throw new IllegalArgumentException("poolSize and queueCapacity must be positive and rejectionPolicy can't be null");
+        }
+        if (INSTANCE != null) {
+            throw new IllegalStateException("The worker pool has already been created");
+        }
+        sPoolSize = poolSize;
+        sQueueCapacity = queueCapacity;
+        sRejectionPolicy = rejectionPolicy;
+    }
+
+    private WorkerPool(final int poolSize, final int queueCapacity, final RejectionPolicy rejectionPolicy) {
+        mExecutor = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new NamedThreadFactory(THREAD_NAME_PREFIX),
+                createRejectionHandler(rejectionPolicy));
+        // Let idle threads go away so the pool doesn't hold threads while the app does nothing
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the provided work in one of the pool threads.
+     * @param runnable The work to run.
+     */
+    @Override
+    public void execute(final Runnable runnable) {
+        mExecutor.execute(runnable);
+    }
+
+    /**
+     * Runs the provided work in one of the pool threads.
+     * @param runnable The work to run.
+     * @return A future that completes when the work is done.
+     */
+    public Future<?> submit(final Runnable runnable) {
+        return mExecutor.submit(runnable);
+    }
+
+    /**
+     * Gets a snapshot of the pool activity.
+     * @return The current number of active, queued, completed and rejected operations.
+     */
+    public Stats getStats() {
+        return new Stats(
+                mExecutor.getActiveCount(),
+                mExecutor.getQueue().size(),
+                mExecutor.getCompletedTaskCount(),
+                mRejectedCount.get(),
+                mExecutor.getPoolSize());
+    }
+
+    private RejectedExecutionHandler createRejectionHandler(final RejectionPolicy rejectionPolicy) {
+        final RejectedExecutionHandler handler;
+        switch (rejectionPolicy) {
+            case CALLER_RUNS:
+                handler = new ThreadPoolExecutor.CallerRunsPolicy();
+                break;
+            case DISCARD_OLDEST:
+                handler = new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            return;
+                        }
+                        // The dropped work never runs, complete its future so nobody waits forever
+                        Runnable evicted = executor.getQueue().poll();
+                        if (evicted instanceof Future) {
+                            ((Future<?>) evicted).cancel(false);
+                        }
+                        executor.execute(runnable);
+                    }
+                };
+                break;
+            default:
+                handler = new ThreadPoolExecutor.AbortPolicy();
+                break;
+        }
+
+        return new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                mRejectedCount.incrementAndGet();
+                DiagnosticLog.e(TAG, "rejectedExecution - The worker pool is saturated, applying the {} policy", rejectionPolicy);
+                handler.rejectedExecution(runnable, executor);
+            }
+        };
+    }
+
+    /**
+     * Point in time view of the pool activity.
+     */
+    public static class Stats {
+        private final int mActiveCount;
+        private final int mQueuedCount;
+        private final long mCompletedCount;
+        private final int mRejectedCount;
+        private final int mThreadCount;
+
+        Stats(int activeCount, int queuedCount, long completedCount, int rejectedCount, int threadCount) {
+            mActiveCount = activeCount;
+            mQueuedCount = queuedCount;
+            mCompletedCount = completedCount;
+            mRejectedCount = rejectedCount;
+            mThreadCount = threadCount;
+        }
+
+        /** @return The number of operations running right now. */
+        public int getActiveCount() {
+            return mActiveCount;
+        }
+
+        /** @return The number of operations waiting for a free thread. */
+        public int getQueuedCount() {
+            return mQueuedCount;
+        }
+
+        /** @return The number of operations that finished since the pool was created. */
+        public long getCompletedCount() {
+            return mCompletedCount;
+        }
+
+        /** @return The number of operations the pool refused because it was saturated. */
+        public int getRejectedCount() {
+            return mRejectedCount;
+        }
+
+        /** @return The number of threads currently alive in the pool. */
+        public int getThreadCount() {
+            return mThreadCount;
+        }
+
+        @Override
+        public String toString() {
+            return "active=" + mActiveCount
+                    + ", queued=" + mQueuedCount
+                    + ", completed=" + mCompletedCount
+                    + ", rejected=" + mRejectedCount
+                    + ", threads=" + mThreadCount;
+        }
+    }
+
+    /**
+     * Creates background threads with a recognizable name, so they're easy to spot in traces.
+     */
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+
+        NamedThreadFactory(final String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mPrefix + mThreadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
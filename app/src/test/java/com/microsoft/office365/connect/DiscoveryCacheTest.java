@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.microsoft.services.discovery.ServiceInfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryCacheTest {
+
+    private static final String USER_ID = "user";
+    private static final long TIME_TO_LIVE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long STALE_PERIOD_MILLIS = TimeUnit.HOURS.toMillis(2);
+
+    @Test
+    public void entryIsFreshDuringTheTimeToLive() {
+        DiscoveryManager discoveryManager = createDiscoveryManager();
+        DiscoveryCache.Entry entry = entryDiscoveredAgo(TIME_TO_LIVE_MILLIS - TimeUnit.MINUTES.toMillis(1));
+
+        assertTrue(discoveryManager.isFresh(entry));
+        assertTrue(discoveryManager.isUsable(entry));
+    }
+
+    @Test
+    public void entryIsStaleButUsableAfterTheTimeToLive() {
+        DiscoveryManager discoveryManager = createDiscoveryManager();
+        DiscoveryCache.Entry entry = entryDiscoveredAgo(TIME_TO_LIVE_MILLIS + TimeUnit.MINUTES.toMillis(1));
+
+        assertFalse(discoveryManager.isFresh(entry));
+        assertTrue(discoveryManager.isUsable(entry));
+    }
+
+    @Test
+    public void entryIsUnusableAfterTheStalePeriod() {
+        DiscoveryManager discoveryManager = createDiscoveryManager();
+        DiscoveryCache.Entry entry = entryDiscoveredAgo(TIME_TO_LIVE_MILLIS + STALE_PERIOD_MILLIS + TimeUnit.MINUTES.toMillis(1));
+
+        assertFalse(discoveryManager.isFresh(entry));
+        assertFalse(discoveryManager.isUsable(entry));
+    }
+
+    @Test
+    public void zeroTimeToLiveMakesEveryOldEntryStale() {
+        DiscoveryManager discoveryManager = new DiscoveryManager();
+        discoveryManager.setCacheTimeToLive(0, 0);
+        DiscoveryCache.Entry entry = entryDiscoveredAgo(TimeUnit.SECONDS.toMillis(1));
+
+        assertFalse(discoveryManager.isFresh(entry));
+        assertFalse(discoveryManager.isUsable(entry));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTimeToLiveIsRejected() {
+        new DiscoveryManager().setCacheTimeToLive(-1, 0);
+    }
+
+    @Test
+    public void revalidatedEntryRestartsItsTimeToLive() {
+        DiscoveryManager discoveryManager = createDiscoveryManager();
+        DiscoveryCache.Entry entry = new DiscoveryCache.Entry(
+                USER_ID,
+                Collections.singletonList(service("Mail", "https://outlook.office.com")),
+                System.currentTimeMillis() - TIME_TO_LIVE_MILLIS * 2,
+                "\"etag\"",
+                null);
+        assertFalse(discoveryManager.isFresh(entry));
+
+        DiscoveryCache.Entry revalidatedEntry = entry.revalidate();
+
+        assertTrue(discoveryManager.isFresh(revalidatedEntry));
+        assertSame(entry.getServices(), revalidatedEntry.getServices());
+        assertEquals("\"etag\"", revalidatedEntry.getETag());
+        assertTrue(revalidatedEntry.hasValidators());
+    }
+
+    @Test
+    public void entryKeepsTheFirstServiceOfEachCapability() {
+        ServiceInfo first = service("Mail", "https://first.endpoint");
+        DiscoveryCache.Entry entry = new DiscoveryCache.Entry(
+                USER_ID,
+                Arrays.asList(first, service("Mail", "https://second.endpoint"), service(null, "https://no.capability")),
+                System.currentTimeMillis(),
+                null,
+                null);
+
+        assertSame(first, entry.getService("Mail"));
+        assertNull(entry.getService("Calendar"));
+        assertEquals(3, entry.getServices().size());
+        assertFalse(entry.hasValidators());
+    }
+
+    private static DiscoveryManager createDiscoveryManager() {
+        DiscoveryManager discoveryManager = new DiscoveryManager();
+        discoveryManager.setCacheTimeToLive(TIME_TO_LIVE_MILLIS, STALE_PERIOD_MILLIS);
+        return discoveryManager;
+    }
+
+    private static DiscoveryCache.Entry entryDiscoveredAgo(final long ageMillis) {
+        return new DiscoveryCache.Entry(
+                USER_ID,
+                Collections.<ServiceInfo>emptyList(),
+                System.currentTimeMillis() - ageMillis,
+                null,
+                null);
+    }
+
+    private static ServiceInfo service(final String capability, final String serviceEndpointUri) {
+        ServiceInfo serviceInfo = new ServiceInfo();
+        serviceInfo.setCapability(capability);
+        serviceInfo.setServiceEndpointUri(serviceEndpointUri);
+        return serviceInfo;
+    }
+}
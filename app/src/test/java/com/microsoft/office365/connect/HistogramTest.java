@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void everyValueFallsWithinTheBoundsOfItsBucket() {
+        long[] values = { 0, 1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 1000, 1023, 1024, 1025, 999999,
+                60000000L, 1L << 40, (1L << 40) + 1, Long.MAX_VALUE / 2, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = Histogram.getBucketIndex(value);
+            assertTrue(value + " above its bucket", value <= Histogram.getBucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(value + " within the previous bucket", value > Histogram.getBucketUpperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguousAndWithinAQuarterOfTheirValues() {
+        for (long value = 0; value < 1 << 16; value++) {
+            int index = Histogram.getBucketIndex(value);
+            long upperBound = Histogram.getBucketUpperBound(index);
+            assertTrue(value <= upperBound);
+            assertTrue(value > (index == 0 ? -1 : Histogram.getBucketUpperBound(index - 1)));
+            assertTrue(value + " in a bucket up to " + upperBound, upperBound - value <= value / 4);
+        }
+    }
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 4; value++) {
+            assertEquals(value, Histogram.getBucketIndex(value));
+            assertEquals(value, Histogram.getBucketUpperBound(value));
+        }
+    }
+
+    @Test
+    public void percentilesAreTheUpperBoundOfTheirBucket() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value * 1000);
+        }
+
+        long median = histogram.getPercentile(50);
+        assertTrue(String.valueOf(median), median >= 50000 && median <= 50000 * 5 / 4);
+        long p99 = histogram.getPercentile(99);
+        assertTrue(String.valueOf(p99), p99 >= 99000 && p99 <= 100000);
+        assertEquals(100000, histogram.getPercentile(100));
+        assertEquals(100000, histogram.getMax());
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void negativeValuesAreRecordedAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void resetForgetsTheValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(42);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+}
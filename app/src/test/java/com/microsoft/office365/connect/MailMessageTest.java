@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MailMessageTest {
+
+    @Test
+    public void trimsAndDropsEmptyAddresses() {
+        MailMessage message = new MailMessage(
+                Arrays.asList(" ana@contoso.com ", "", null, "   "),
+                null,
+                null,
+                "subject",
+                "body");
+
+        assertEquals(Collections.singletonList("ana@contoso.com"), message.getToRecipients());
+        assertEquals(1, message.getRecipientCount());
+    }
+
+    @Test
+    public void dedupesIgnoringCaseAndKeepsTheMostVisibleList() {
+        MailMessage message = new MailMessage(
+                Arrays.asList("ana@contoso.com", "ANA@contoso.com"),
+                Arrays.asList("Ana@Contoso.com", "ben@contoso.com"),
+                Arrays.asList("ben@contoso.com", "cy@contoso.com"),
+                "subject",
+                "body");
+
+        assertEquals(Collections.singletonList("ana@contoso.com"), message.getToRecipients());
+        assertEquals(Collections.singletonList("ben@contoso.com"), message.getCcRecipients());
+        assertEquals(Collections.singletonList("cy@contoso.com"), message.getBccRecipients());
+        assertEquals(3, message.getRecipientCount());
+    }
+
+    @Test
+    public void smallMessageIsNotSplit() {
+        MailMessage message = new MailMessage("ana@contoso.com", "subject", "body");
+
+        List<MailMessage> messages = message.split(1);
+
+        assertEquals(1, messages.size());
+        assertSame(message, messages.get(0));
+    }
+
+    @Test
+    public void splitKeepsEachRecipientInTheirList() {
+        MailMessage message = new MailMessage(
+                addresses("to", 3),
+                addresses("cc", 2),
+                addresses("bcc", 2),
+                "subject",
+                "body");
+
+        List<MailMessage> messages = message.split(3);
+
+        assertEquals(3, messages.size());
+        assertEquals(addresses("to", 3), messages.get(0).getToRecipients());
+        assertTrue(messages.get(0).getCcRecipients().isEmpty());
+        assertEquals(addresses("cc", 2), messages.get(1).getCcRecipients());
+        assertEquals(Collections.singletonList("bcc0@contoso.com"), messages.get(1).getBccRecipients());
+        assertEquals(Collections.singletonList("bcc1@contoso.com"), messages.get(2).getBccRecipients());
+        for (MailMessage part : messages) {
+            assertEquals("subject", part.getSubject());
+            assertEquals("body", part.getBody());
+        }
+    }
+
+    @Test
+    public void splitOnlyLeavesTheLastMessageShort() {
+        MailMessage message = new MailMessage(addresses("to", MailManager.MAX_RECIPIENTS_PER_MESSAGE * 2 + 1), null, null, "subject", "body");
+
+        List<MailMessage> messages = message.split(MailManager.MAX_RECIPIENTS_PER_MESSAGE);
+
+        assertEquals(3, messages.size());
+        assertEquals(MailManager.MAX_RECIPIENTS_PER_MESSAGE, messages.get(0).getRecipientCount());
+        assertEquals(MailManager.MAX_RECIPIENTS_PER_MESSAGE, messages.get(1).getRecipientCount());
+        assertEquals(1, messages.get(2).getRecipientCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void splitRejectsZeroRecipients() {
+        new MailMessage("ana@contoso.com", "subject", "body").split(0);
+    }
+
+    private static List<String> addresses(final String prefix, final int count) {
+        List<String> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            addresses.add(prefix + i + "@contoso.com");
+        }
+        return addresses;
+    }
+}
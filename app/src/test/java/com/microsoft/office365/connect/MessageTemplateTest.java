@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.junit.Test;
+
+import java.text.MessageFormat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MessageTemplateTest {
+
+    private static void assertSameAsMessageFormat(final String pattern, final Object... arguments) {
+        String expected;
+        try {
+            expected = MessageFormat.format(pattern, arguments);
+        } catch (IllegalArgumentException e) {
+            try {
+                MessageTemplate.compile(pattern).render(arguments);
+                fail("MessageFormat rejects " + pattern + ", the template must too");
+            } catch (IllegalArgumentException expectedException) {
+                // Both reject the pattern
+            }
+            return;
+        }
+        assertEquals(pattern, expected, MessageTemplate.compile(pattern).render(arguments));
+    }
+
+    @Test
+    public void rendersSimpleArguments() {
+        assertEquals("Hi Ana, welcome to Contoso", MessageTemplate.compile("Hi {0}, welcome to {1}").render("Ana", "Contoso"));
+    }
+
+    @Test
+    public void rendersLikeMessageFormat() {
+        assertSameAsMessageFormat("{0}{1}{0}", "a", "b");
+        assertSameAsMessageFormat("It''s {0}", "late");
+        assertSameAsMessageFormat("'{0}' is quoted, {0} isn't", "x");
+        assertSameAsMessageFormat("<meta content='text/html'> {0}", "x");
+        assertSameAsMessageFormat("{0} of {1}", 1234567, null);
+        assertSameAsMessageFormat("{0,number,#.##}", 3.14159);
+    }
+
+    @Test
+    public void rendersMissingArgumentsAsIs() {
+        assertSameAsMessageFormat("{0} and {2}", "only one");
+        assertEquals("{0}", MessageTemplate.compile("{0}").render((Object[]) null));
+    }
+
+    @Test
+    public void treatsSpacesAroundTheArgumentLikeMessageFormat() {
+        assertSameAsMessageFormat("{ 0 }", "x");
+        assertSameAsMessageFormat("{0 }", "x");
+        assertSameAsMessageFormat("{ 0}", "x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnmatchedBraces() {
+        MessageTemplate.compile("Hi {0");
+    }
+
+    @Test
+    public void appendsToTheBuffer() {
+        StringBuilder buffer = new StringBuilder("> ");
+        MessageTemplate.compile("{0}!").renderTo(buffer, "Hi");
+        assertEquals("> Hi!", buffer.toString());
+    }
+
+    @Test
+    public void literalRendersQuotesAndBracesAsIs() {
+        String subject = "Don't miss {this}";
+        assertEquals(subject, MessageTemplate.literal(subject).render("ignored"));
+    }
+
+    @Test
+    public void mailTemplateSendsALiteralSubjectUnchanged() {
+        // A subject compiled as a pattern loses its quotes, the activity sends it as a literal
+        MailTemplate mailTemplate = new MailTemplate(
+                MessageTemplate.literal("Don't reply"),
+                MessageTemplate.compile("Hi {0}"));
+
+        MailMessage message = mailTemplate.render(new MailTemplate.Recipient("ana@contoso.com", "Ana"));
+
+        assertEquals("Don't reply", message.getSubject());
+        assertEquals("Hi Ana", message.getBody());
+        assertEquals("ana@contoso.com", message.getEmailAddress());
+        assertEquals("Dont reply", MessageTemplate.compile("Don't reply").render());
+    }
+}
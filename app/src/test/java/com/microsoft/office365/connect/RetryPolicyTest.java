@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void backoffDoublesWithJitterUpToTheMaximum() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000, TimeUnit.HOURS.toMillis(1));
+        Exception e = failure(new SocketTimeoutException());
+
+        for (int attempts = 1; attempts < 10; attempts++) {
+            long backoff = Math.min(1000, 100L << (attempts - 1));
+            for (int i = 0; i < 20; i++) {
+                long delay = retryPolicy.getDelayMillis(attempts, e, 0);
+                assertTrue("attempt " + attempts + ": " + delay, delay >= backoff / 2 && delay <= backoff);
+            }
+        }
+    }
+
+    @Test
+    public void stopsAfterTheMaximumAttempts() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000, TimeUnit.HOURS.toMillis(1));
+        Exception e = failure(new SocketTimeoutException());
+
+        assertTrue(retryPolicy.getDelayMillis(2, e, 0) >= 0);
+        assertEquals(-1, retryPolicy.getDelayMillis(3, e, 0));
+    }
+
+    @Test
+    public void stopsWhenTheDelayGoesPastTheMaximumElapsedTime() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100, 100, 1000);
+        Exception e = failure(new SocketTimeoutException());
+
+        assertTrue(retryPolicy.getDelayMillis(1, e, 800) >= 0);
+        assertEquals(-1, retryPolicy.getDelayMillis(1, e, 960));
+    }
+
+    @Test
+    public void retryAfterHeaderReplacesTheBackoff() {
+        RetryPolicy retryPolicy = RetryPolicy.createDefault();
+
+        assertEquals(2000, retryPolicy.getDelayMillis(1, failure(new HttpStatusException(503, "2", "Unavailable")), 0));
+        assertEquals(7000, retryPolicy.getDelayMillis(1, failure(new SdkException(429, "7")), 0));
+    }
+
+    @Test
+    public void parsesRetryAfterSecondsAndDates() {
+        assertEquals(3000, RetryPolicy.parseRetryAfter(" 3 "));
+        assertEquals(0, RetryPolicy.parseRetryAfter("-5"));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+
+        SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long delay = RetryPolicy.parseRetryAfter(httpDateFormat.format(new Date(System.currentTimeMillis() + 60000)));
+        assertTrue(String.valueOf(delay), delay > 55000 && delay <= 60000);
+        assertEquals(0, RetryPolicy.parseRetryAfter(httpDateFormat.format(new Date(0))));
+    }
+
+    @Test
+    public void transientFailures() {
+        assertTrue(RetryPolicy.isTransient(failure(new SocketTimeoutException())));
+        assertTrue(RetryPolicy.isTransient(failure(new ConnectException())));
+        for (int statusCode : new int[] { 408, 429, 500, 502, 503, 504 }) {
+            assertTrue(String.valueOf(statusCode), RetryPolicy.isTransient(failure(new HttpStatusException(statusCode, null, ""))));
+        }
+        assertTrue(RetryPolicy.isTransient(failure(new SdkException(502, null))));
+    }
+
+    @Test
+    public void permanentFailures() {
+        for (int statusCode : new int[] { 400, 401, 403, 404, 413, 501 }) {
+            assertFalse(String.valueOf(statusCode), RetryPolicy.isTransient(failure(new HttpStatusException(statusCode, null, ""))));
+        }
+        assertFalse(RetryPolicy.isTransient(failure(new SdkException(400, null))));
+        assertFalse(RetryPolicy.isTransient(failure(new IllegalStateException())));
+    }
+
+    @Test
+    public void nonIdempotentOperationsOnlyRetryUnprocessedRequests() {
+        RetryPolicy retryPolicy = RetryPolicy.createNonIdempotent();
+
+        assertTrue(retryPolicy.getDelayMillis(1, failure(new ConnectException()), 0) >= 0);
+        assertTrue(retryPolicy.getDelayMillis(1, failure(new UnknownHostException()), 0) >= 0);
+        assertEquals(2000, retryPolicy.getDelayMillis(1, failure(new HttpStatusException(429, "2", "")), 0));
+        assertEquals(2000, retryPolicy.getDelayMillis(1, failure(new HttpStatusException(503, "2", "")), 0));
+
+        // The request may have been acted on
+        assertEquals(-1, retryPolicy.getDelayMillis(1, failure(new SocketTimeoutException()), 0));
+        assertEquals(-1, retryPolicy.getDelayMillis(1, failure(new HttpStatusException(503, null, "")), 0));
+        assertEquals(-1, retryPolicy.getDelayMillis(1, failure(new HttpStatusException(500, "2", "")), 0));
+        assertEquals(-1, retryPolicy.getDelayMillis(1, failure(new HttpStatusException(504, null, "")), 0));
+    }
+
+    @Test
+    public void executeAsyncRetriesUntilTheOperationSucceeds() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy(4, 1, 1, TimeUnit.SECONDS.toMillis(10));
+        final AtomicInteger attempts = new AtomicInteger();
+
+        RetryPolicy.Result<String> result = retryPolicy.executeAsync(new RetryPolicy.AsyncOperation<String>() {
+            @Override
+            public ListenableFuture<String> run() {
+                if (attempts.incrementAndGet() < 3) {
+                    return Futures.immediateFailedFuture(new SocketTimeoutException());
+                }
+                return Futures.immediateFuture("sent");
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals("sent", result.getValue());
+        assertEquals(3, result.getAttempts());
+    }
+
+    @Test
+    public void executeAsyncFailsRightAwayOnPermanentFailures() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        ListenableFuture<RetryPolicy.Result<String>> result = RetryPolicy.createDefault().executeAsync(new RetryPolicy.AsyncOperation<String>() {
+            @Override
+            public ListenableFuture<String> run() {
+                attempts.incrementAndGet();
+                return Futures.immediateFailedFuture(new HttpStatusException(400, null, "Bad request"));
+            }
+        });
+
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("The operation should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RetryPolicy.RetryException);
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void executeAsyncStartsEveryAttemptOnTheExecutor() throws Exception {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 1, 1, TimeUnit.SECONDS.toMillis(10));
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger executions = new AtomicInteger();
+        final AtomicInteger attemptsOnTheCaller = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                executions.incrementAndGet();
+                new Thread(runnable).start();
+            }
+        };
+
+        RetryPolicy.Result<String> result = retryPolicy.executeAsync(new RetryPolicy.AsyncOperation<String>() {
+            @Override
+            public ListenableFuture<String> run() {
+                if (Thread.currentThread() == caller) {
+                    attemptsOnTheCaller.incrementAndGet();
+                }
+                if (executions.get() < 2) {
+                    return Futures.immediateFailedFuture(new ConnectException());
+                }
+                return Futures.immediateFuture("sent");
+            }
+        }, executor).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, result.getAttempts());
+        assertEquals(2, executions.get());
+        assertEquals(0, attemptsOnTheCaller.get());
+    }
+
+    @Test
+    public void executeAsyncFailsWhenTheExecutorRejectsTheAttempt() throws Exception {
+        ListenableFuture<RetryPolicy.Result<String>> result = RetryPolicy.createDefault().executeAsync(new RetryPolicy.AsyncOperation<String>() {
+            @Override
+            public ListenableFuture<String> run() {
+                return Futures.immediateFuture("sent");
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                throw new RejectedExecutionException();
+            }
+        });
+
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("The operation should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RetryPolicy.RetryException);
+            assertTrue(e.getCause().getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    private static ExecutionException failure(final Throwable cause) {
+        return new ExecutionException(cause);
+    }
+
+    /**
+     * Looks like the HTTP errors of the Office 365 SDK, which RetryPolicy reads by reflection.
+     */
+    public static class SdkException extends Exception {
+        private final Response mResponse;
+
+        SdkException(final int status, final String retryAfter) {
+            mResponse = new Response(status, retryAfter);
+        }
+
+        public Response getResponse() {
+            return mResponse;
+        }
+    }
+
+    public static class Response {
+        private final int mStatus;
+        private final String mRetryAfter;
+
+        Response(final int status, final String retryAfter) {
+            mStatus = status;
+            mRetryAfter = retryAfter;
+        }
+
+        public Integer getStatus() {
+            return mStatus;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            if (mRetryAfter == null) {
+                return Collections.emptyMap();
+            }
+            return Collections.singletonMap("retry-after", Collections.singletonList(mRetryAfter));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SendRateLimiterTest {
+
+    private static final String USER_ID = "user";
+    private static final String ENDPOINT = "https://outlook.office.com/api/v1.0";
+
+    @Test
+    public void burstGoesOutRightAwayThenWaitsForTheRefill() throws Exception {
+        SendRateLimiter rateLimiter = new SendRateLimiter(60, 2, TimeUnit.SECONDS.toMillis(5));
+
+        assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        ListenableFuture<Void> third = rateLimiter.acquire(USER_ID, ENDPOINT);
+
+        assertFalse(third.isDone());
+        // One permit per second
+        third.get(3, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void eachAccountAndEndpointHasItsOwnBucket() {
+        SendRateLimiter rateLimiter = new SendRateLimiter(1, 1, TimeUnit.MINUTES.toMillis(5));
+
+        assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        assertFalse(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        assertTrue(rateLimiter.acquire("other user", ENDPOINT).isDone());
+        assertTrue(rateLimiter.acquire(USER_ID, "https://other.endpoint").isDone());
+    }
+
+    @Test
+    public void waitLongerThanTheMaximumIsTurnedDown() throws Exception {
+        SendRateLimiter rateLimiter = new SendRateLimiter(1, 1, 0);
+        rateLimiter.acquire(USER_ID, ENDPOINT);
+
+        assertRateLimitExceeded(rateLimiter.acquire(USER_ID, ENDPOINT));
+    }
+
+    @Test
+    public void cancelledWaitGivesItsTokenBack() throws Exception {
+        // The second request waits a minute, a third one would wait two, past the maximum
+        SendRateLimiter rateLimiter = new SendRateLimiter(1, 1, TimeUnit.SECONDS.toMillis(90));
+        rateLimiter.acquire(USER_ID, ENDPOINT);
+        ListenableFuture<Void> second = rateLimiter.acquire(USER_ID, ENDPOINT);
+        assertFalse(second.isDone());
+
+        second.cancel(false);
+        ListenableFuture<Void> third = rateLimiter.acquire(USER_ID, ENDPOINT);
+
+        assertFalse(third.isDone());
+        third.cancel(false);
+    }
+
+    @Test
+    public void pacedLimiterLetsTheBurstOutThenPaces() {
+        SendRateLimiter rateLimiter = SendRateLimiter.createPaced();
+
+        for (int i = 0; i < SendRateLimiter.DEFAULT_BURST; i++) {
+            assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        }
+        ListenableFuture<Void> paced = rateLimiter.acquire(USER_ID, ENDPOINT);
+
+        assertFalse(paced.isDone());
+        paced.cancel(false);
+    }
+
+    @Test
+    public void pacedLimiterTakesTheRateAndBurst() throws Exception {
+        SendRateLimiter rateLimiter = SendRateLimiter.createPaced(120, 1);
+
+        assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        ListenableFuture<Void> second = rateLimiter.acquire(USER_ID, ENDPOINT);
+
+        assertFalse(second.isDone());
+        // Two permits per second
+        second.get(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void adaptiveLimiterDoesntPace() {
+        SendRateLimiter rateLimiter = SendRateLimiter.createAdaptive();
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+        }
+    }
+
+    @Test
+    public void throttledRequestPausesTheBucketForTheRetryAfter() throws Exception {
+        SendRateLimiter rateLimiter = SendRateLimiter.createAdaptive();
+
+        rateLimiter.onRequestFailed(USER_ID, ENDPOINT, new ExecutionException(new HttpStatusException(429, "1", "Too many requests")));
+        ListenableFuture<Void> paused = rateLimiter.acquire(USER_ID, ENDPOINT);
+
+        assertFalse(paused.isDone());
+        assertTrue(rateLimiter.acquire("other user", ENDPOINT).isDone());
+        paused.get(3, TimeUnit.SECONDS);
+        assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+    }
+
+    @Test
+    public void otherFailuresDontPauseTheBucket() {
+        SendRateLimiter rateLimiter = SendRateLimiter.createAdaptive();
+
+        rateLimiter.onRequestFailed(USER_ID, ENDPOINT, new HttpStatusException(503, null, "Unavailable"));
+        rateLimiter.onRequestFailed(USER_ID, ENDPOINT, new HttpStatusException(500, "60", "Server error"));
+        rateLimiter.onRequestFailed(USER_ID, ENDPOINT, new SocketTimeoutException());
+
+        assertTrue(rateLimiter.acquire(USER_ID, ENDPOINT).isDone());
+    }
+
+    @Test
+    public void pauseLongerThanTheMaximumWaitIsTurnedDown() throws Exception {
+        SendRateLimiter rateLimiter = SendRateLimiter.createAdaptive();
+
+        rateLimiter.onRequestFailed(USER_ID, ENDPOINT, new HttpStatusException(503, "3600", "Unavailable"));
+
+        assertRateLimitExceeded(rateLimiter.acquire(USER_ID, ENDPOINT));
+    }
+
+    private static void assertRateLimitExceeded(final ListenableFuture<Void> permit) throws InterruptedException {
+        assertTrue(permit.isDone());
+        try {
+            permit.get();
+            fail("The request should have been turned down");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RateLimitExceededException);
+            assertTrue(((RateLimitExceededException) e.getCause()).getRetryAfterMillis() > 0);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import com.microsoft.services.discovery.ServiceInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of looking up the service of a capability in a cached discovery entry, which every send
+ * does, compared to scanning the discovered services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryCacheBenchmark {
+
+    private static final String[] CAPABILITIES = { "RootSite", "MyFiles", "Calendar", "Contacts", "Directory", "Mail" };
+
+    private DiscoveryCache.Entry mEntry;
+    private List<ServiceInfo> mServices;
+
+    @Setup
+    public void setUp() {
+        mServices = new ArrayList<>();
+        for (String capability : CAPABILITIES) {
+            ServiceInfo serviceInfo = new ServiceInfo();
+            serviceInfo.setCapability(capability);
+            serviceInfo.setServiceEndpointUri("https://outlook.office365.com/api/v1.0/" + capability);
+            serviceInfo.setServiceResourceId("https://outlook.office365.com/");
+            mServices.add(serviceInfo);
+        }
+        mEntry = new DiscoveryCache.Entry("user", mServices, System.currentTimeMillis(), null, null);
+    }
+
+    @Benchmark
+    public ServiceInfo indexLookup() {
+        return mEntry.getService(Constants.MAIL_CAPABILITY);
+    }
+
+    @Benchmark
+    public ServiceInfo linearScan() {
+        for (ServiceInfo serviceInfo : mServices) {
+            if (Constants.MAIL_CAPABILITY.equals(serviceInfo.getCapability())) {
+                return serviceInfo;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention on the synchronized getInstance() accessors the managers call on every operation.
+ * AuthenticationManager.getInstance() can't be loaded without the ADAL and Android classes, so
+ * the benchmark uses WorkerPool.getInstance(), the same accessor, which every connect, discovery
+ * and send goes through.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetInstanceBenchmark {
+
+    @Benchmark
+    public WorkerPool uncontended() {
+        return WorkerPool.getInstance();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public WorkerPool contended() {
+        return WorkerPool.getInstance();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of normalizing and deduplicating the recipients of a message, and of splitting a
+ * message with more recipients than the service accepts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailMessageBenchmark {
+
+    private static final int MAX_RECIPIENTS_PER_MESSAGE = 500;
+
+    private List<String> mToRecipients;
+    private List<String> mCcRecipients;
+    private List<String> mBccRecipients;
+    private MailMessage mLargeMessage;
+
+    @Setup
+    public void setUp() {
+        // A quarter of the Cc and Bcc recipients are already in the lists before them
+        mToRecipients = addresses("to", 0, 100);
+        mCcRecipients = addresses("to", 75, 100);
+        mBccRecipients = addresses("cc", 75, 100);
+        mLargeMessage = new MailMessage(addresses("to", 0, 1200), addresses("cc", 0, 200), null, "Subject", "Body");
+    }
+
+    @Benchmark
+    public MailMessage dedupe() {
+        return new MailMessage(mToRecipients, mCcRecipients, mBccRecipients, "Subject", "Body");
+    }
+
+    @Benchmark
+    public List<MailMessage> split() {
+        return mLargeMessage.split(MAX_RECIPIENTS_PER_MESSAGE);
+    }
+
+    private static List<String> addresses(final String prefix, final int start, final int count) {
+        List<String> addresses = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            addresses.add(prefix + i + "@contoso.com");
+        }
+        return addresses;
+    }
+}
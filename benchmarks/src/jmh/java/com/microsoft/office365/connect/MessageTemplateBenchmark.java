@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering the mail body from its compiled template, compared to formatting it with a
+ * MessageFormat parsed for every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTemplateBenchmark {
+
+    private static final String PATTERN = "<html><head><meta http-equiv=''Content-Type'' content=''text/html; charset=us-ascii''>"
+            + "</head><body><p>Hi {0},</p><p>Congratulations! You just sent this email from {1}, "
+            + "with the Office 365 Connect sample.</p></body></html>";
+    private static final String NAME = "Ana";
+    private static final String APP = "the Connect sample for Android";
+
+    private MessageTemplate mTemplate;
+
+    @Setup
+    public void setUp() {
+        mTemplate = MessageTemplate.compile(PATTERN);
+    }
+
+    @Benchmark
+    public String render() {
+        return mTemplate.render(NAME, APP);
+    }
+
+    @Benchmark
+    public String messageFormat() {
+        return MessageFormat.format(PATTERN, NAME, APP);
+    }
+}
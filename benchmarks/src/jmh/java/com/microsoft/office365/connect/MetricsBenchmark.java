@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording a measurement on the discovery, auth and send paths, with and without
+ * contention, and of reading the percentiles back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private Metrics mMetrics;
+    private Histogram mHistogram;
+
+    @Setup
+    public void setUp() {
+        mMetrics = Metrics.getInstance();
+        mHistogram = new Histogram();
+        for (int i = 0; i < 100000; i++) {
+            mHistogram.record(i);
+        }
+    }
+
+    @Benchmark
+    public void recordTiming() {
+        mMetrics.recordTiming(Metrics.MAIL_SEND_NETWORK, System.nanoTime() - 1000, true);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordTimingContended() {
+        mMetrics.recordTiming(Metrics.MAIL_SEND_NETWORK, System.nanoTime() - 1000, true);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return mHistogram.getPercentile(99);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deciding whether a failed discovery or send is retried.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryPolicyBenchmark {
+
+    private final RetryPolicy mRetryPolicy = RetryPolicy.createDefault();
+    private final ExecutionException mTransientFailure = new ExecutionException(new SocketTimeoutException("timeout"));
+    private final ExecutionException mPermanentFailure = new ExecutionException(new IllegalStateException("bad request"));
+
+    @Benchmark
+    public long transientFailure() {
+        return mRetryPolicy.getDelayMillis(1, mTransientFailure, 0);
+    }
+
+    @Benchmark
+    public long permanentFailure() {
+        return mRetryPolicy.getDelayMillis(1, mPermanentFailure, 0);
+    }
+
+    @Benchmark
+    public long parseRetryAfter() {
+        return RetryPolicy.parseRetryAfter("120");
+    }
+}
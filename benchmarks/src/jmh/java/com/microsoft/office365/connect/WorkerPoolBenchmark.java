@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of an operation handed to the shared worker pool, compared to starting a new
+ * thread per operation like the managers used to do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkerPoolBenchmark {
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Benchmark
+    public Object workerPool() throws ExecutionException, InterruptedException {
+        Future<?> future = WorkerPool.getInstance().submit(NO_OP);
+        return future.get();
+    }
+
+    @Benchmark
+    public Thread threadPerOperation() throws InterruptedException {
+        Thread thread = new Thread(NO_OP);
+        thread.start();
+        thread.join();
+        return thread;
+    }
+}
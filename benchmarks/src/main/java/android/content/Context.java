@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package android.content;
+
+/**
+ * Stand-in for the Android Context, so the app classes that take one can be loaded on a
+ * desktop JVM. The benchmarks don't call it.
+ */
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract Context getApplicationContext();
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package android.content;
+
+/**
+ * Stand-in for the Android SharedPreferences, with the methods the app classes use.
+ */
+public interface SharedPreferences {
+
+    String getString(String key, String defValue);
+
+    Editor edit();
+
+    interface Editor {
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        void apply();
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect;
+
+/**
+ * Stand-in for the BuildConfig that the Android build generates, so {@link DiagnosticLog} can
+ * run on a desktop JVM. Benchmarks measure release builds.
+ */
+public final class BuildConfig {
+
+    public static final boolean DEBUG = false;
+
+    private BuildConfig() {
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.services.discovery;
+
+/**
+ * Stand-in for the ServiceInfo of the Office 365 SDK, with the properties the discovery cache
+ * reads and writes.
+ */
+public class ServiceInfo {
+
+    private String mCapability;
+    private String mServiceEndpointUri;
+    private String mServiceName;
+    private String mServiceResourceId;
+
+    public String getCapability() {
+        return mCapability;
+    }
+
+    public void setCapability(String capability) {
+        mCapability = capability;
+    }
+
+    public String getServiceEndpointUri() {
+        return mServiceEndpointUri;
+    }
+
+    public void setServiceEndpointUri(String serviceEndpointUri) {
+        mServiceEndpointUri = serviceEndpointUri;
+    }
+
+    public String getServiceName() {
+        return mServiceName;
+    }
+
+    public void setServiceName(String serviceName) {
+        mServiceName = serviceName;
+    }
+
+    public String getServiceResourceId() {
+        return mServiceResourceId;
+    }
+
+    public void setServiceResourceId(String serviceResourceId) {
+        mServiceResourceId = serviceResourceId;
+    }
+}
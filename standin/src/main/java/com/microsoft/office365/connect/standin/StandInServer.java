@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) Microsoft. All rights reserved. Licensed under the MIT license.
+ * See LICENSE in the project root for license information.
+ */
+package com.microsoft.office365.connect.standin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Office 365 services the app talks to, for load tests that can't run
+ * against the real services. It serves the discovery getServices contract and the Outlook
+ * me/sendmail contract, with configurable latency, error rate and throttling.
+ *
+ * Usage: StandInServer [port] [latencyMillis] [latencyJitterMillis] [errorRate] [requestsPerSecond]
+ *
+ * The discovery service is at http://host:port/discovery/v1.0/me/ and returns a Mail service
+ * whose endpoint is http://host:port/api/v1.0 and whose resource id is the real Outlook one.
+ * Requests above requestsPerSecond get a 429 response with a Retry-After header. A random
+ * errorRate fraction of the requests, between 0 and 1, gets a 503 response. Authorization
+ * headers are accepted but not validated.
+ * The services come with an ETag, and a discovery request whose If-None-Match matches it gets
+ * a 304 response without a body, like a refresh when the services haven't changed.
+ */
+public class StandInServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String DISCOVERY_PATH = "/discovery/v1.0/me/";
+    private static final String OUTLOOK_PATH = "/api/v1.0/";
+    private static final String SEND_MAIL_PATH = OUTLOOK_PATH + "me/sendmail";
+    // Same resource as the real service, so the app can use the tokens it already has
+    private static final String OUTLOOK_RESOURCE_ID = "https://outlook.office365.com/";
+
+    private final int mPort;
+    private final long mLatencyMillis;
+    private final long mLatencyJitterMillis;
+    private final double mErrorRate;
+    private final RateLimiter mRateLimiter;
+    private final Random mRandom = new Random();
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mThrottledCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mSentMailCount = new AtomicLong();
+    private final AtomicLong mNotModifiedCount = new AtomicLong();
+
+    public StandInServer(int port, long latencyMillis, long latencyJitterMillis, double errorRate, int requestsPerSecond) {
+        mPort = port;
+        mLatencyMillis = latencyMillis;
+        mLatencyJitterMillis = latencyJitterMillis;
+        mErrorRate = errorRate;
+        mRateLimiter = requestsPerSecond > 0 ? new RateLimiter(requestsPerSecond) : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        long latencyJitterMillis = args.length > 2 ? Long.parseLong(args[2]) : 25;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        int requestsPerSecond = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        new StandInServer(port, latencyMillis, latencyJitterMillis, errorRate, requestsPerSecond).start();
+    }
+
+    /**
+     * Starts serving requests and prints the request counters every ten seconds.
+     */
+    public void start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(mPort), 0);
+        server.createContext(DISCOVERY_PATH, new DiscoveryHandler());
+        server.createContext(OUTLOOK_PATH, new OutlookHandler());
+        // Each request sleeps for the simulated latency, so give them plenty of threads
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        System.out.println("Stand-in server listening on port " + mPort
+                + ", latency=" + mLatencyMillis + "+-" + mLatencyJitterMillis + "ms"
+                + ", errorRate=" + mErrorRate
+                + ", throttle=" + (mRateLimiter == null ? "off" : mRateLimiter.mRequestsPerSecond + "/s"));
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println("requests=" + mRequestCount.get()
+                        + ", sent=" + mSentMailCount.get()
+                        + ", notModified=" + mNotModifiedCount.get()
+                        + ", throttled=" + mThrottledCount.get()
+                        + ", errors=" + mErrorCount.get());
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Applies the simulated latency, throttling and errors.
+     * @return True if the request can be served, false if a failure response was already sent.
+     */
+    private boolean simulateConditions(HttpExchange exchange) throws IOException {
+        mRequestCount.incrementAndGet();
+
+        long latency = mLatencyMillis + (long) ((mRandom.nextDouble() * 2 - 1) * mLatencyJitterMillis);
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (mRateLimiter != null && !mRateLimiter.tryAcquire()) {
+            mThrottledCount.incrementAndGet();
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            sendJson(exchange, 429, "{\"error\":{\"code\":\"ApplicationThrottled\",\"message\":\"Too many requests\"}}");
+            return false;
+        }
+
+        if (mRandom.nextDouble() < mErrorRate) {
+            mErrorCount.incrementAndGet();
+            sendJson(exchange, 503, "{\"error\":{\"code\":\"ServiceUnavailable\",\"message\":\"Simulated failure\"}}");
+            return false;
+        }
+        return true;
+    }
+
+    private static void sendJson(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json;odata.metadata=minimal");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        try {
+            responseBody.write(bytes);
+        } finally {
+            responseBody.close();
+        }
+    }
+
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (inputStream.read(buffer) != -1) {
+            // Discard the request body, the stand-in doesn't keep the messages
+        }
+        inputStream.close();
+    }
+
+    private String getBaseUrl(HttpExchange exchange) {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null) {
+            host = "localhost:" + mPort;
+        }
+        return "http://" + host;
+    }
+
+    /**
+     * Serves GET services, with or without $select, like the discovery service.
+     */
+    private class DiscoveryHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            drain(exchange.getRequestBody());
+            if (!simulateConditions(exchange)) {
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if (!"GET".equals(exchange.getRequestMethod()) || !path.endsWith("/services")) {
+                sendJson(exchange, 404, "{\"error\":{\"code\":\"NotFound\",\"message\":\"" + path + "\"}}");
+                return;
+            }
+
+            String baseUrl = getBaseUrl(exchange);
+            String services = "{"
+                    + "\"@odata.context\":\"" + baseUrl + DISCOVERY_PATH + "$metadata#allServices\","
+                    + "\"value\":[{"
+                    + "\"@odata.type\":\"#Microsoft.DiscoveryServices.ServiceInfo\","
+                    + "\"capability\":\"Mail\","
+                    + "\"serviceEndpointUri\":\"" + baseUrl + "/api/v1.0\","
+                    + "\"serviceName\":\"Office 365 Exchange (stand-in)\","
+                    + "\"serviceResourceId\":\"" + OUTLOOK_RESOURCE_ID + "\""
+                    + "}]}";
+
+            // The services only change with the host they point to
+            String eTag = "\"" + Integer.toHexString(services.hashCode()) + "\"";
+            exchange.getResponseHeaders().add("ETag", eTag);
+            if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                mNotModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            sendJson(exchange, 200, services);
+        }
+    }
+
+    /**
+     * Serves POST me/sendmail like the Outlook service, which accepts the message and
+     * returns no content.
+     */
+    private class OutlookHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            drain(exchange.getRequestBody());
+            if (!simulateConditions(exchange)) {
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if (!"POST".equals(exchange.getRequestMethod()) || !SEND_MAIL_PATH.equalsIgnoreCase(path)) {
+                sendJson(exchange, 404, "{\"error\":{\"code\":\"NotFound\",\"message\":\"" + path + "\"}}");
+                return;
+            }
+
+            mSentMailCount.incrementAndGet();
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+        }
+    }
+
+    /**
+     * Fixed window limiter, good enough to simulate the service throttling.
+     */
+    private static class RateLimiter {
+        private final int mRequestsPerSecond;
+        private long mWindowStart;
+        private int mWindowCount;
+
+        RateLimiter(int requestsPerSecond) {
+            mRequestsPerSecond = requestsPerSecond;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            if (now - mWindowStart >= 1000) {
+                mWindowStart = now;
+                mWindowCount = 0;
+            }
+            return ++mWindowCount <= mRequestsPerSecond;
+        }
+    }
+}